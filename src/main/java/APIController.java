@@ -1,10 +1,16 @@
 import io.github.cdimascio.dotenv.Dotenv;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import spark.ResponseTransformer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static spark.Spark.*;
 import static spark.Spark.post;
@@ -41,11 +47,45 @@ class ResponseError {
 }
 
 public class APIController {
-    private static Boolean getBoolean(String val) {
+    // the boolean parameters of a request, and their flags in the request options
+    private static final String[] FLAG_PARAMS = {"NER", "wordAnnotations", "synonyms", "splitIntoParagraphs",
+            "numericClassifiers", "indices", "spaces", "wikiConcepts", "allowAlternativeNames", "hierarchy"};
+    private static final int[] FLAGS = {RequestOptions.NER, RequestOptions.WORD_ANNOTATIONS, RequestOptions.SYNONYMS,
+            RequestOptions.SPLIT_INTO_PARAGRAPHS, RequestOptions.NUMERIC_CLASSIFIERS, RequestOptions.INDICES,
+            RequestOptions.SPACES, RequestOptions.WIKI_CONCEPTS, RequestOptions.ALLOW_ALTERNATIVE_NAMES,
+            RequestOptions.HIERARCHY};
+
+    private static Double getDouble(String val) {
+        if (val == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(val);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + val);
+        }
+    }
+
+    private static Long getLong(String val) {
         if (val == null) {
             return null;
         }
-        return Boolean.valueOf(val);
+        try {
+            return Long.valueOf(val);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer: " + val);
+        }
+    }
+
+    private static Integer getInteger(String val) {
+        if (val == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(val);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer: " + val);
+        }
     }
 
     public static void main(String[] args) {
@@ -56,59 +96,302 @@ public class APIController {
                 .load();
         int port = Integer.parseInt(Objects.requireNonNull(dotenv.get("PORT")));
         port(port);
-        DocumentAnnotatorMicroservice APIService = new DocumentAnnotatorMicroservice();
+        // with workers, the documents are annotated in their processes, and this one only answers the requests
+        int workers = Integer.parseInt(dotenv.get("WORKERS", "0"));
+        DocumentAnnotatorMicroservice APIService = workers > 0 ? null : new DocumentAnnotatorMicroservice();
+        WorkerPool workerPool = workers > 0 ? new WorkerPool(workers,
+                Integer.parseInt(dotenv.get("WORKER_BASE_PORT", "9100")),
+                dotenv.get("WORKER_JAVA_OPTS", ""),
+                Long.parseLong(dotenv.get("WORKER_RESTART_DELAY_MS", "1000")),
+                Long.parseLong(dotenv.get("WORKER_MAX_ANSWER_MS", "600000")),
+                Integer.parseInt(dotenv.get("RETRY_AFTER_SECONDS", "5"))) : null;
+        if (workerPool != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(workerPool::close));
+        }
+        AdmissionController admission = new AdmissionController(
+                Integer.parseInt(dotenv.get("MAX_CONCURRENT_REQUESTS", "4")),
+                Integer.parseInt(dotenv.get("MAX_QUEUED_REQUESTS", "16")),
+                Long.parseLong(dotenv.get("MAX_IN_FLIGHT_BYTES", "52428800")),
+                Long.parseLong(dotenv.get("MAX_QUEUE_WAIT_MS", "5000")),
+                Long.parseLong(dotenv.get("REQUEST_DEADLINE_MS", "120000")),
+                Integer.parseInt(dotenv.get("RETRY_AFTER_SECONDS", "5")));
 
-        after((req, res) -> res.type("application/json"));
+        after((req, res) -> {
+            if (!req.pathInfo().equals("/metrics")) {
+                res.type("application/json");
+            }
+        });
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.getInstance().toPrometheus();
+        });
+        // ready once the pipelines are warmed up, in this process or in at least one worker
+        AtomicBoolean warmedUp = new AtomicBoolean(false);
+        Metrics.getInstance().registerGauge("ready", () -> isReady(workerPool, warmedUp) ? 1 : 0);
+        get("/ready", (req, res) -> {
+            JSONObject readiness = new JSONObject();
+            readiness.put("ready", isReady(workerPool, warmedUp));
+            if (workerPool != null) {
+                readiness.put("workersReady", workerPool.getReadyWorkers());
+            }
+            res.status(readiness.getBoolean("ready") ? 200 : 503);
+            return readiness;
+        });
         exception(IllegalArgumentException.class, (e, req, res) -> {
             res.status(400);
             res.body(JsonUtil.toJson(new ResponseError(e)));
         });
+        exception(AdmissionController.RejectedException.class, (e, req, res) -> {
+            res.status(e.getStatus());
+            if (e.getRetryAfterSeconds() > 0) {
+                res.header("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            }
+            res.body(JsonUtil.toJson(new ResponseError(e)));
+        });
+        exception(TimeoutException.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", String.valueOf(admission.getRetryAfterSeconds()));
+            res.body(JsonUtil.toJson(new ResponseError("Annotation didn't finish within the request deadline")));
+        });
         post("/annotate", (req, res) -> {
-            String id = req.queryParams("id");
-            Boolean NER = getBoolean(req.queryParams("NER"));
-            Boolean wordAnnotations = getBoolean(req.queryParams("wordAnnotations"));
-            Boolean synonyms = getBoolean(req.queryParams("synonyms"));
-            Boolean splitIntoParagraphs = getBoolean(req.queryParams("splitIntoParagraphs"));
-            Boolean numericClassifiers = getBoolean(req.queryParams("numericClassifiers"));
-            Boolean indices = getBoolean(req.queryParams("indices"));
-            Boolean spaces = getBoolean(req.queryParams("spaces"));
-            Boolean wikiConcepts = getBoolean(req.queryParams("wikiConcepts"));
-            String ontology = req.queryParams("ontology");
-            Boolean allowAlternativeNames = getBoolean(req.queryParams("allowAlternativeNames"));
-            Boolean hierarchy = getBoolean(req.queryParams("hierarchy"));
-            List<String> texts = new ArrayList<>();
-            List<String> languages = new ArrayList<>();
-            String[] langArr = req.queryParamsValues("languages");
-            for (String lang : langArr) {
-                languages.add(lang);
+            Map<String, String[]> params = req.raw().getParameterMap();
+            ResponseError missingText = checkTexts(params);
+            if (missingText != null) {
+                return missingText;
+            }
+            try (AdmissionController.Permit permit = admission.admit(textBytes(params))) {
+                return workerPool != null
+                        ? workerPool.annotate(params, permit.getRemainingMillis())
+                        : annotate(APIService, params, permit.getRemainingMillis());
+            }
+        });
+
+        // asynchronous jobs, run by their own threads in this process or in the workers. Their documents are admitted
+        // like the requests, but aren't bound by the request deadline, only by the job document timeout
+        JobStore.Annotator jobAnnotator = (params, timeoutMillis) -> {
+            // the texts of the documents were checked when the job was submitted
+            AdmissionController.Permit permit = admission.admit(textBytes(params));
+            try {
+                return workerPool != null ? workerPool.annotate(params, timeoutMillis)
+                        : annotate(APIService, params, timeoutMillis);
+            } finally {
+                permit.close();
+            }
+        };
+        JobStore jobs = new JobStore(jobAnnotator,
+                Integer.parseInt(dotenv.get("JOB_THREADS", "2")),
+                Integer.parseInt(dotenv.get("JOB_MAX_PENDING", "100")),
+                Long.parseLong(dotenv.get("JOB_MAX_PENDING_BYTES", "268435456")),
+                Integer.parseInt(dotenv.get("JOB_MAX_DOCUMENTS", "1000")),
+                Integer.parseInt(dotenv.get("JOB_MAX_STORED", "100")),
+                Long.parseLong(dotenv.get("JOB_MAX_STORED_BYTES", "268435456")),
+                Long.parseLong(dotenv.get("JOB_DOCUMENT_TIMEOUT_MS", "0")),
+                Integer.parseInt(dotenv.get("RETRY_AFTER_SECONDS", "5")));
+        post("/jobs", (req, res) -> {
+            JobStore.Job job = jobs.submit(jobDocuments(req.raw().getParameterMap()));
+            res.status(202);
+            res.header("Location", "/jobs/" + job.getId());
+            return job.toJson();
+        });
+        get("/jobs/:id", (req, res) -> {
+            JobStore.Job job = jobs.get(req.params(":id"));
+            if (job == null) {
+                res.status(404);
+                return new ResponseError("No job %s", req.params(":id"));
+            }
+            Long waitMillis = getLong(req.queryParams("waitMs"));
+            if (waitMillis != null) {
+                Integer completed = getInteger(req.queryParams("completed"));
+                job.awaitProgress(completed == null ? job.getCompleted() : completed, waitMillis);
+            }
+            return job.toJson();
+        });
+        get("/jobs/:id/results", (req, res) -> {
+            JobStore.Job job = jobs.get(req.params(":id"));
+            if (job == null) {
+                res.status(404);
+                return new ResponseError("No job %s", req.params(":id"));
+            }
+            Integer from = getInteger(req.queryParams("from"));
+            return job.resultsJson(from == null ? 0 : from);
+        });
+        delete("/jobs/:id", (req, res) -> {
+            JobStore.Job job = jobs.remove(req.params(":id"));
+            if (job == null) {
+                res.status(404);
+                return new ResponseError("No job %s", req.params(":id"));
+            }
+            return job.toJson();
+        });
+
+        // the requests are answered during the warm-up, /ready tells the load balancer to wait for it
+        if (APIService != null) {
+            Thread warmUp = new Thread(() -> {
                 try {
-                    String text = req.queryParams("text_" + lang);
-                    if (text == null) {
-                        throw new Exception();
-                    }
-                    texts.add(text);
+                    APIService.warmUp();
                 } catch (Exception e) {
-                    JSONObject error = new JSONObject();
-                    return new ResponseError("\"text_" + lang + "\" field is missing. Text for language \"" + lang + "\" is required");
+                    e.printStackTrace();
+                } finally {
+                    warmedUp.set(true);
                 }
+            }, "warm-up");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
+    }
+
+    private static boolean isReady(WorkerPool workerPool, AtomicBoolean warmedUp) {
+        return workerPool != null ? workerPool.getReadyWorkers() > 0 : warmedUp.get();
+    }
+
+    /**
+     * Get the documents of a job: the documents of the "documents" parameter, a json array of objects holding the
+     * parameters of each document ("id", "languages" and the texts, and any option to override), the other parameters
+     * of the request being their options. Without it, the request is a single document, as for /annotate.
+     *
+     * @return the parameters of the annotation of each document
+     * @throws IllegalArgumentException if the documents aren't valid, or one of them misses its texts
+     */
+    static List<Map<String, String[]>> jobDocuments(Map<String, String[]> params) {
+        Map<String, String[]> options = new HashMap<>();
+        for (Map.Entry<String, String[]> param : params.entrySet()) {
+            if (!param.getKey().equals("documents")) {
+                options.put(param.getKey(), param.getValue().clone());
             }
-            return APIService.annotateDocument(
-                    id,
-                    texts,
-                    languages,
-                    NER,
-                    wordAnnotations,
-                    synonyms,
-                    splitIntoParagraphs,
-                    numericClassifiers,
-                    indices,
-                    spaces,
-                    wikiConcepts,
-                    ontology,
-                    allowAlternativeNames,
-                    hierarchy
-            );
-        });
+        }
+        List<Map<String, String[]>> documents = new ArrayList<>();
+        String documentsParam = getParam(params, "documents");
+        if (documentsParam == null) {
+            documents.add(options);
+        } else {
+            JSONArray documentsArr;
+            try {
+                documentsArr = new JSONArray(documentsParam);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("\"documents\" must be a json array: " + e.getMessage());
+            }
+            for (int i = 0; i < documentsArr.length(); ++i) {
+                JSONObject document = documentsArr.optJSONObject(i);
+                if (document == null) {
+                    throw new IllegalArgumentException("Document " + i + " is not a json object");
+                }
+                Map<String, String[]> documentParams = new HashMap<>(options);
+                for (String name : document.keySet()) {
+                    JSONArray values = document.optJSONArray(name);
+                    if (values == null) {
+                        documentParams.put(name, new String[]{String.valueOf(document.get(name))});
+                    } else {
+                        String[] array = new String[values.length()];
+                        for (int j = 0; j < array.length; ++j) {
+                            array[j] = String.valueOf(values.get(j));
+                        }
+                        documentParams.put(name, array);
+                    }
+                }
+                documents.add(documentParams);
+            }
+        }
+        for (int i = 0; i < documents.size(); ++i) {
+            ResponseError missingText = checkTexts(documents.get(i));
+            if (missingText != null) {
+                throw new IllegalArgumentException("Document " + i + ": " + missingText.getMessage());
+            }
+            // the options are checked before the job is accepted
+            try {
+                parseOptions(documents.get(i));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Document " + i + ": " + e.getMessage());
+            }
+        }
+        return documents;
     }
-}
 
+    private static String getParam(Map<String, String[]> params, String name) {
+        String[] values = params.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * @return the error to answer with if the languages or the text of one of them are missing, null if there is none
+     */
+    static ResponseError checkTexts(Map<String, String[]> params) {
+        String[] langArr = params.get("languages");
+        if (langArr == null) {
+            return new ResponseError("\"languages\" field is missing");
+        }
+        for (String lang : langArr) {
+            if (getParam(params, "text_" + lang) == null) {
+                return new ResponseError("\"text_" + lang + "\" field is missing. Text for language \"" + lang + "\" is required");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the total size of the texts of a request in bytes, whose texts were checked, see {@link #checkTexts(Map)}
+     */
+    static long textBytes(Map<String, String[]> params) {
+        long textBytes = 0;
+        for (String lang : params.get("languages")) {
+            textBytes += Metrics.utf8Length(getParam(params, "text_" + lang));
+        }
+        return textBytes;
+    }
+
+    /**
+     * @return the options of the request, see {@link RequestOptions}
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    static RequestOptions parseOptions(Map<String, String[]> params) {
+        long start = System.nanoTime();
+        int flags = RequestOptions.DEFAULT_FLAGS;
+        for (int i = 0; i < FLAG_PARAMS.length; ++i) {
+            String value = getParam(params, FLAG_PARAMS[i]);
+            if (value != null) {
+                flags = Boolean.parseBoolean(value) ? flags | FLAGS[i] : flags & ~FLAGS[i];
+            }
+        }
+        Double wikiCutoff = getDouble(getParam(params, "wikiCutoff"));
+        Integer wikiTopK = getInteger(getParam(params, "wikiTopK"));
+        String ontology = getParam(params, "ontology");
+        String annotatorsParam = getParam(params, "annotators");
+        RequestOptions options = RequestOptions.of(flags,
+                annotatorsParam == null ? null : Arrays.asList(annotatorsParam.split(",")),
+                wikiCutoff == null ? Wikification.DEFAULT_CUTOFF : wikiCutoff,
+                wikiTopK == null ? 0 : wikiTopK,
+                ontology == null ? RequestOptions.DEFAULT_ONTOLOGY : ontology);
+        Metrics.getInstance().observe("request_options", System.nanoTime() - start);
+        return options;
+    }
+
+    /**
+     * Annotate the document of a request, in this process. Used by the API itself, or by the workers it sends the
+     * requests to, see {@link WorkerPool}.
+     *
+     * @param params        the parameters of the request
+     * @param timeoutMillis the time left for the request in ms, 0 for no limit
+     * @return the body of the answer
+     * @throws IllegalArgumentException if a parameter is invalid
+     * @throws TimeoutException         if the annotation didn't finish in time
+     */
+    static String annotate(DocumentAnnotatorMicroservice APIService, Map<String, String[]> params, long timeoutMillis)
+            throws TimeoutException {
+        ResponseError missingText = checkTexts(params);
+        if (missingText != null) {
+            return missingText.toString();
+        }
+        String id = getParam(params, "id");
+        RequestOptions options = parseOptions(params);
+        List<String> texts = new ArrayList<>();
+        List<String> languages = new ArrayList<>();
+        for (String lang : params.get("languages")) {
+            languages.add(lang);
+            texts.add(getParam(params, "text_" + lang));
+        }
+        JSONObject annotation = APIService.annotateDocument(id, texts, languages, options, timeoutMillis);
+        long start = System.nanoTime();
+        String body = annotation.toString();
+        Metrics.getInstance().observe("serialization", System.nanoTime() - start);
+        return body;
+    }
+}
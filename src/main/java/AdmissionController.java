@@ -0,0 +1,167 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for the annotation service.
+ * <p>
+ * At most {@link #maxConcurrent} requests are annotated at the same time, and the texts of the requests being annotated
+ * may not exceed {@link #maxInFlightBytes} in total. Requests that can't start right away wait in a queue of at most
+ * {@link #maxQueued} requests, for at most {@link #maxQueueWaitMillis}.
+ * Requests that don't fit in the queue are rejected right away, requests that waited too long are rejected
+ * when their wait time is over, so that an overloaded service answers quickly instead of running out of memory.
+ * <p>
+ * Each admitted request gets a deadline of {@link #requestDeadlineMillis} from its arrival, after which its pending
+ * work should be cancelled, see {@link Permit#getRemainingMillis()}.
+ */
+public class AdmissionController {
+    // the in-flight bytes are tracked in units of 1KB, to fit in the permits of a semaphore
+    private static final int BYTES_UNIT = 1024;
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxInFlightBytes;
+    private final long maxQueueWaitMillis;
+    private final long requestDeadlineMillis;
+    private final int retryAfterSeconds;
+
+    private final Semaphore concurrentPermits;
+    private final Semaphore bytesPermits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Exception thrown when a request is not admitted, it carries the HTTP status to answer with
+     */
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+        private final int retryAfterSeconds;
+
+        RejectedException(int status, int retryAfterSeconds, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the number of seconds after which the client may retry, or 0 if retrying won't help
+         */
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A request that was admitted. It must be closed once the request is done, to let the next ones in.
+     */
+    public class Permit implements AutoCloseable {
+        private final int bytesUnits;
+        private final long deadline;
+        private boolean closed;
+
+        private Permit(int bytesUnits, long arrival) {
+            this.bytesUnits = bytesUnits;
+            this.deadline = requestDeadlineMillis > 0 ? arrival + requestDeadlineMillis : 0;
+        }
+
+        /**
+         * @return the time left for the request in ms (at least 1), or 0 if there is no deadline
+         */
+        public long getRemainingMillis() {
+            if (deadline == 0) {
+                return 0;
+            }
+            return Math.max(1, deadline - System.currentTimeMillis());
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            bytesPermits.release(bytesUnits);
+            concurrentPermits.release();
+        }
+    }
+
+    /**
+     * Constructor for class #AdmissionController
+     *
+     * @param maxConcurrent         maximum number of requests annotated at the same time
+     * @param maxQueued             maximum number of requests waiting to be annotated
+     * @param maxInFlightBytes      maximum total size in bytes of the texts of the requests being annotated
+     * @param maxQueueWaitMillis    maximum time a request waits in the queue before being rejected
+     * @param requestDeadlineMillis maximum time for a request from its arrival, 0 for no limit
+     * @param retryAfterSeconds     the value of the Retry-After header sent with the rejections
+     */
+    public AdmissionController(int maxConcurrent, int maxQueued, long maxInFlightBytes, long maxQueueWaitMillis,
+                               long requestDeadlineMillis, int retryAfterSeconds) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        this.requestDeadlineMillis = requestDeadlineMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.concurrentPermits = new Semaphore(maxConcurrent, true);
+        this.bytesPermits = new Semaphore(toUnits(maxInFlightBytes), true);
+        Metrics metrics = Metrics.getInstance();
+        metrics.registerGauge("admission_in_flight_requests", () -> maxConcurrent - concurrentPermits.availablePermits());
+        metrics.registerGauge("admission_queued_requests", queued::get);
+        metrics.registerGauge("admission_in_flight_bytes",
+                () -> (long) (toUnits(maxInFlightBytes) - bytesPermits.availablePermits()) * BYTES_UNIT);
+    }
+
+    private static int toUnits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + BYTES_UNIT - 1) / BYTES_UNIT);
+    }
+
+    private RejectedException reject(String reason, int status, int retryAfter, String message) {
+        Metrics.getInstance().increment("admission_rejected_" + reason);
+        return new RejectedException(status, retryAfter, message);
+    }
+
+    /**
+     * Admit a request, waiting in the queue if the service is busy
+     *
+     * @param textBytes the total size of the texts of the request in bytes
+     * @return the permit of the request, to be closed when the request is done
+     * @throws RejectedException with status 413 if the texts can never fit, 429 if the queue is full, or 503 if the
+     *                           request waited in the queue for too long
+     */
+    public Permit admit(long textBytes) throws InterruptedException {
+        long arrival = System.currentTimeMillis();
+        if (textBytes > maxInFlightBytes) {
+            throw reject("too_large", 413, 0, "Texts of " + textBytes + " bytes exceed the limit of "
+                    + maxInFlightBytes + " bytes");
+        }
+        // requests that can start right away don't take a place in the queue
+        if (queued.incrementAndGet() > maxQueued + concurrentPermits.availablePermits()) {
+            queued.decrementAndGet();
+            throw reject("queue_full", 429, retryAfterSeconds, "Too many requests, the queue is full");
+        }
+        int units = toUnits(textBytes);
+        try {
+            if (!concurrentPermits.tryAcquire(maxQueueWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw reject("queue_timeout", 503, retryAfterSeconds, "Service is busy, try again later");
+            }
+            long waited = System.currentTimeMillis() - arrival;
+            if (!bytesPermits.tryAcquire(units, Math.max(0, maxQueueWaitMillis - waited), TimeUnit.MILLISECONDS)) {
+                concurrentPermits.release();
+                throw reject("queue_timeout", 503, retryAfterSeconds, "Service is busy, try again later");
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        Metrics.getInstance().observe("admission_wait", (System.currentTimeMillis() - arrival) * 1000000L);
+        return new Permit(units, arrival);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,104 @@
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The CoreNLP annotation of a text, as produced by {@link CoreNLPAPI}, before it's turned into JSON.
+ * It doesn't depend on the output options (indices, spaces, top entities), and the annotations of consecutive parts of
+ * a text can be joined with {@link #concat(List, int[])}, which is how paragraphs annotated on their own (and cached
+ * by {@link ParagraphCache}) make up their document.
+ */
+public class AnnotatedText {
+    /**
+     * A named entity mention, with its character offsets (end exclusive) and its word offsets (end inclusive)
+     */
+    public static class Mention {
+        final String type;
+        final String text;
+        final int begin;
+        final int end;
+        final int wordFrom;
+        final int wordTo;
+
+        Mention(String type, String text, int begin, int end, int wordFrom, int wordTo) {
+            this.type = type;
+            this.text = text;
+            this.begin = begin;
+            this.end = end;
+            this.wordFrom = wordFrom;
+            this.wordTo = wordTo;
+        }
+
+        Mention shift(int chars, int words) {
+            return new Mention(type, text, begin + chars, end + chars, wordFrom + words, wordTo + words);
+        }
+    }
+
+    // the tokens: original text, lemma, pos, synonyms (null if not looked up) and character offsets (end exclusive)
+    final String[] words;
+    final String[] norms;
+    final String[] tags;
+    final JSONArray[] synonyms;
+    final int[] begins;
+    final int[] ends;
+    // the end offsets of the sentences
+    final int[] sentenceEnds;
+    final List<Mention> mentions;
+
+    AnnotatedText(int nTokens, int nSentences, List<Mention> mentions) {
+        this.words = new String[nTokens];
+        this.norms = new String[nTokens];
+        this.tags = new String[nTokens];
+        this.synonyms = new JSONArray[nTokens];
+        this.begins = new int[nTokens];
+        this.ends = new int[nTokens];
+        this.sentenceEnds = new int[nSentences];
+        this.mentions = mentions;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    /**
+     * Join the annotations of parts of a text
+     *
+     * @param parts   the annotations of the parts, in order
+     * @param offsets the offset of each part in the text
+     * @return the annotation of the text, with the offsets of the tokens, sentences and mentions of each part shifted
+     */
+    public static AnnotatedText concat(List<AnnotatedText> parts, int[] offsets) {
+        int nTokens = 0;
+        int nSentences = 0;
+        for (AnnotatedText part : parts) {
+            nTokens += part.size();
+            nSentences += part.sentenceEnds.length;
+        }
+        AnnotatedText text = new AnnotatedText(nTokens, nSentences, new ArrayList<>());
+        int token = 0;
+        int sentence = 0;
+        for (int p = 0; p < parts.size(); ++p) {
+            AnnotatedText part = parts.get(p);
+            int offset = offsets[p];
+            int n = part.size();
+            System.arraycopy(part.words, 0, text.words, token, n);
+            System.arraycopy(part.norms, 0, text.norms, token, n);
+            System.arraycopy(part.tags, 0, text.tags, token, n);
+            System.arraycopy(part.synonyms, 0, text.synonyms, token, n);
+            for (int i = 0; i < n; ++i) {
+                text.begins[token + i] = part.begins[i] + offset;
+                text.ends[token + i] = part.ends[i] + offset;
+            }
+            for (int i = 0; i < part.sentenceEnds.length; ++i) {
+                text.sentenceEnds[sentence + i] = part.sentenceEnds[i] + offset;
+            }
+            for (Mention mention : part.mentions) {
+                text.mentions.add(mention.shift(offset, token));
+            }
+            token += n;
+            sentence += part.sentenceEnds.length;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,103 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A worker process of the API, started and supervised by {@link WorkerPool}. It loads its own pipelines, and annotates
+ * the requests the API sends it over a loopback connection.
+ * <p>
+ * Each request is a line of JSON, {"params": {name: [values]}, "timeoutMillis": n}, holding the parameters of the
+ * HTTP request. The answer is a line made of the HTTP status, a space, and the body (the annotated document, or the
+ * error message).
+ * <p>
+ * The worker exits when its standard input is closed, so that it never outlives the API that started it.
+ */
+public class AnnotationWorker {
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        Thread watchdog = new Thread(() -> {
+            try {
+                while (System.in.read() != -1) {
+                    // the API never writes, the read ends when it's gone
+                }
+            } catch (IOException e) {
+                // same as the end of the input
+            }
+            System.exit(0);
+        }, "api-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        DocumentAnnotatorMicroservice service = new DocumentAnnotatorMicroservice();
+        // the worker is only sent requests once it accepts connections, after the warm-up
+        service.warmUp();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Worker ready on port " + port);
+            while (true) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> serve(service, socket), "worker-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    private static void serve(DocumentAnnotatorMicroservice service, Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int status;
+                String body;
+                try {
+                    JSONObject request = new JSONObject(line);
+                    body = APIController.annotate(service, toParams(request.getJSONObject("params")),
+                            request.optLong("timeoutMillis", 0));
+                    status = 200;
+                } catch (IllegalArgumentException e) {
+                    status = 400;
+                    body = e.getMessage();
+                } catch (TimeoutException e) {
+                    status = 503;
+                    body = e.getMessage();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    status = 500;
+                    body = e.toString();
+                }
+                out.write(status + " " + (body == null ? "" : body.replace('\n', ' ')) + "\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Map<String, String[]> toParams(JSONObject json) {
+        Map<String, String[]> params = new HashMap<>();
+        for (String name : json.keySet()) {
+            JSONArray values = json.getJSONArray(name);
+            String[] array = new String[values.length()];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = values.getString(i);
+            }
+            params.put(name, array);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes lines to a file on a dedicated thread, so that the threads producing them never wait on the disk.
+ * <p>
+ * Lines (annotated documents, or any object whose {@link Object#toString()} is the line) are put in a bounded queue,
+ * serialized by the writer thread into a large direct buffer, and written through a {@link FileChannel} whenever the
+ * buffer is full, every {@link #flushEvery} lines, or when {@link #flushIntervalMillis} passed since the last flush.
+ * Each flush can optionally be followed by an fsync, and the output can be compressed on the fly.
+ * <p>
+ * Writing errors are reported to the producer by the next {@link #write(Object)}, and by {@link #close()}.
+ */
+public class AsyncOutputWriter implements AutoCloseable {
+    // marks the end of the queue
+    private static final Object END = new Object();
+
+    private final String path;
+    private final BlockingQueue<Object> queue;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final OutputStream sink;
+    private final long flushIntervalMillis;
+    private final int flushEvery;
+    private final boolean fsync;
+    private final Thread thread;
+    private volatile IOException error;
+    private boolean closed;
+
+    /**
+     * Writes the direct buffer to the channel when it's full or flushed
+     */
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+        }
+    }
+
+    /**
+     * Constructor for class #AsyncOutputWriter, the file is created or truncated
+     *
+     * @param path                the path of the output file
+     * @param bufferSize          the size of the write buffer in bytes
+     * @param queueSize           the maximum number of lines waiting to be written, producers wait when it's reached
+     * @param flushEvery          the number of lines after which the buffer is flushed, 0 to flush by size and time only
+     * @param flushIntervalMillis the maximum time between two flushes in ms, 0 to flush by size and number only
+     * @param fsync               whether to force the written data to the disk at each flush
+     * @param compression         the compression of the output
+     */
+    public AsyncOutputWriter(String path, int bufferSize, int queueSize, int flushEvery, long flushIntervalMillis,
+                             boolean fsync, CompressionCodec compression) throws IOException {
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.flushEvery = flushEvery;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.fsync = fsync;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(4096, bufferSize));
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // every flushed line can be decompressed, even if the program stops before closing the file
+        this.sink = compression.compress(new ChannelOutputStream());
+        Metrics.getInstance().registerGauge("output_queue_size", queue::size);
+        thread = new Thread(this::run, "output-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a line to be written, waiting only if the queue is full
+     *
+     * @param line the line, written as its {@link Object#toString()} followed by a newline
+     * @throws IOException if writing the previous lines failed
+     */
+    public void write(Object line) throws IOException, InterruptedException {
+        while (!queue.offer(line, 100, TimeUnit.MILLISECONDS)) {
+            checkError();
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Writing to " + path + " failed", error);
+        }
+    }
+
+    private void run() {
+        Metrics metrics = Metrics.getInstance();
+        long lastFlush = System.currentTimeMillis();
+        int unflushed = 0;
+        try {
+            while (true) {
+                Object line;
+                if (flushIntervalMillis > 0) {
+                    long wait = unflushed == 0 ? flushIntervalMillis
+                            : lastFlush + flushIntervalMillis - System.currentTimeMillis();
+                    line = queue.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                } else {
+                    line = queue.take();
+                }
+                if (line == END) {
+                    break;
+                }
+                if (line != null) {
+                    long start = System.nanoTime();
+                    byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                    metrics.observe("serialization", System.nanoTime() - start);
+                    sink.write(bytes);
+                    sink.write('\n');
+                    ++unflushed;
+                }
+                long now = System.currentTimeMillis();
+                if (unflushed > 0 && ((flushEvery > 0 && unflushed >= flushEvery)
+                        || (flushIntervalMillis > 0 && now - lastFlush >= flushIntervalMillis))) {
+                    flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                } else if (unflushed == 0) {
+                    lastFlush = now;
+                }
+            }
+            // ends the compressed stream, and writes what's left in the buffer
+            sink.close();
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new IOException("Writer interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() throws IOException {
+        sink.flush();
+        if (fsync) {
+            long start = System.nanoTime();
+            channel.force(false);
+            Metrics.getInstance().observe("output_fsync", System.nanoTime() - start);
+        }
+    }
+
+    private void drain() throws IOException {
+        long start = System.nanoTime();
+        buffer.flip();
+        long bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        Metrics metrics = Metrics.getInstance();
+        metrics.observe("output_write", System.nanoTime() - start);
+        metrics.increment("output_bytes", bytes);
+    }
+
+    /**
+     * Write all the queued lines, and close the file
+     *
+     * @throws IOException if writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            while (error == null && thread.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                // the writer is still working through the queue
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+        } finally {
+            channel.close();
+        }
+        checkError();
+    }
+}
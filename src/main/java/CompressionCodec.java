@@ -0,0 +1,103 @@
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression formats of the input and output files of the batch mode, chosen by name or by file extension
+ */
+public enum CompressionCodec {
+    NONE("none", ""),
+    GZIP("gzip", ".gz"),
+    ZSTD("zstd", ".zst");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final String extension;
+
+    CompressionCodec(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the extension of the files in this format, including the dot, or "" for uncompressed files
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @param name "none", "gzip" or "zstd"
+     * @throws IllegalArgumentException if the format isn't supported
+     */
+    public static CompressionCodec forName(String name) {
+        for (CompressionCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported compression: " + name);
+    }
+
+    /**
+     * @return the format of the file, according to its extension (".gz", ".zst" or ".zstd")
+     */
+    public static CompressionCodec forFile(String fileName) {
+        if (fileName.endsWith(".gz")) {
+            return GZIP;
+        }
+        if (fileName.endsWith(".zst") || fileName.endsWith(".zstd")) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the file name without the extension of its format
+     */
+    public static String stripExtension(String fileName) {
+        CompressionCodec codec = forFile(fileName);
+        if (codec == NONE) {
+            return fileName;
+        }
+        return fileName.substring(0, fileName.lastIndexOf('.'));
+    }
+
+    /**
+     * @return a stream decompressing the given stream
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * @return a stream compressing into the given stream. Flushing it makes all the data written so far readable.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE, true);
+            case ZSTD:
+                return new ZstdOutputStream(out);
+            default:
+                return out;
+        }
+    }
+}
@@ -1,13 +1,23 @@
+import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.pipeline.CoreDocument;
 import edu.stanford.nlp.pipeline.CoreEntityMention;
 import edu.stanford.nlp.pipeline.CoreSentence;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
-import org.jetbrains.annotations.NotNull;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * API Class for enriching text and annotating it with POS, Lemmatization, and Named Entities
@@ -18,18 +28,53 @@ import java.util.*;
  * <p>
  * If the documents in the dataset are long, set {@link #splitIntoParagraphs} to true, which will force splitting
  * sentences on double newlines `\n\n`, which is usually considered a paragraph separation symbol.
+ * <p>
+ * Long texts can also be annotated in parallel segments, see {@link #setSegmentation(int, int)}.
+ * <p>
+ * When splitting into paragraphs, the annotations of the paragraphs can be cached, see
+ * {@link #setParagraphCache(ParagraphCache)}.
+ * <p>
+ * Each pipeline annotates the text of a single language. Languages other than English need the CoreNLP models jar of
+ * the language on the classpath (see {@link #hasModels(String)}), and only run the requested annotators that the
+ * models provide. Their annotations are put under the keys suffixed with the language, e.g. "NE_de".
  */
 public class CoreNLPAPI implements DocumentEnricher {
+    // annotators that work on each sentence independently, so they can be run on segments of the text
+    private static final Set<String> SENTENCE_LEVEL_ANNOTATORS = new HashSet<>(Arrays.asList(
+            "pos", "lemma", "ner", "parse", "depparse", "truecase", "sentiment"));
+    // the annotators that can be requested, in pipeline order
+    private static final List<String> SUPPORTED_ANNOTATORS = Arrays.asList("tokenize", "ssplit", "pos", "lemma", "ner");
+    // the names of the properties files of the CoreNLP models jars, by language code
+    private static final Map<String, String> LANGUAGE_PROPERTIES = new HashMap<>();
+    // the separator of the paragraphs, at which the sentence splitter always breaks when splitting into paragraphs
+    private static final Pattern PARAGRAPH_SEPARATOR = Pattern.compile("\\n\\s*\\n");
+
+    static {
+        LANGUAGE_PROPERTIES.put("ar", "StanfordCoreNLP-arabic.properties");
+        LANGUAGE_PROPERTIES.put("de", "StanfordCoreNLP-german.properties");
+        LANGUAGE_PROPERTIES.put("es", "StanfordCoreNLP-spanish.properties");
+        LANGUAGE_PROPERTIES.put("fr", "StanfordCoreNLP-french.properties");
+        LANGUAGE_PROPERTIES.put("zh", "StanfordCoreNLP-chinese.properties");
+    }
+
+    private final String language;
     private boolean NER;
-    private StanfordCoreNLP pipeline;
+    // the annotators of the pipeline, in order, run one by one so that the time of each annotator can be measured
+    private List<String> annotatorNames;
+    private List<Annotator> annotators;
     private WordNetAPI wn;
     private boolean synonyms;
     private boolean splitIntoParagraphs;
     private boolean numericClassifiers;
     private boolean temporalEntities;
     private boolean spaces;
+    private boolean spaceOffsets;
     private boolean indices;
     private boolean wordAnnotations;
+    private int segmentLength;
+    private int segmentThreads = 1;
+    private int maxEntities;
+    private ParagraphCache paragraphCache;
 
     /**
      * Constructor for class #CoreNLPAPI
@@ -37,12 +82,169 @@ public class CoreNLPAPI implements DocumentEnricher {
      * @param NER whether or not to generate named entity as part of the annotation
      */
     CoreNLPAPI(boolean NER, boolean splitIntoParagraphs, boolean numericClassifiers) {
-        this.NER = NER;
+        this(defaultAnnotators(NER), splitIntoParagraphs, numericClassifiers);
+    }
+
+    /**
+     * Constructor for class #CoreNLPAPI, running exactly the given annotators
+     *
+     * @param annotators the annotators of the pipeline, as returned by {@link #resolveAnnotators(Collection)}.
+     *                   Named entities are generated if "ner" is one of them
+     */
+    CoreNLPAPI(List<String> annotators, boolean splitIntoParagraphs, boolean numericClassifiers) {
+        this("en", annotators, splitIntoParagraphs, numericClassifiers);
+    }
+
+    /**
+     * Constructor for class #CoreNLPAPI, annotating the texts of the given language
+     *
+     * @param language   the code of the language, which must have its models, see {@link #hasModels(String)}
+     * @param annotators the requested annotators, as returned by {@link #resolveAnnotators(Collection)}. Only the ones
+     *                   provided by the models of the language are run
+     */
+    CoreNLPAPI(String language, List<String> annotators, boolean splitIntoParagraphs, boolean numericClassifiers) {
+        this.language = language;
+        if (!language.equals("en")) {
+            annotators = new ArrayList<>(annotators);
+            annotators.retainAll(Arrays.asList(loadLanguageProperties(language).getProperty("annotators", "")
+                    .split("\\s*,\\s*")));
+        }
+        this.annotatorNames = new ArrayList<>(annotators);
+        this.NER = annotators.contains("ner");
         this.splitIntoParagraphs = splitIntoParagraphs;
         this.numericClassifiers = numericClassifiers;
         init();
     }
 
+    /**
+     * Constructor of the views of a pipeline, see {@link #withOutput(boolean, boolean, boolean, boolean)}
+     */
+    private CoreNLPAPI(CoreNLPAPI base, boolean wordAnnotations, boolean synonyms, boolean indices, boolean spaces) {
+        this.language = base.language;
+        this.NER = base.NER;
+        this.annotatorNames = base.annotatorNames;
+        this.annotators = base.annotators;
+        this.wn = base.wn;
+        this.splitIntoParagraphs = base.splitIntoParagraphs;
+        this.numericClassifiers = base.numericClassifiers;
+        this.temporalEntities = base.temporalEntities;
+        this.spaceOffsets = base.spaceOffsets;
+        this.segmentLength = base.segmentLength;
+        this.segmentThreads = base.segmentThreads;
+        this.maxEntities = base.maxEntities;
+        this.paragraphCache = base.paragraphCache;
+        this.wordAnnotations = wordAnnotations;
+        this.synonyms = synonyms;
+        this.indices = indices;
+        this.spaces = spaces;
+    }
+
+    /**
+     * Get a view of this pipeline producing the given output, so that the requests wanting different outputs can share
+     * the pipeline without changing its settings under each other. The settings of this pipeline are copied, they
+     * must not be changed afterwards.
+     *
+     * @return a pipeline sharing the annotators of this one, with the given output options
+     */
+    public CoreNLPAPI withOutput(boolean wordAnnotations, boolean synonyms, boolean indices, boolean spaces) {
+        return new CoreNLPAPI(this, wordAnnotations, synonyms, indices, spaces);
+    }
+
+    /**
+     * @return the annotators needed for the full annotation: the words with their pos and lemma, and the named
+     * entities if NER is true
+     */
+    public static List<String> defaultAnnotators(boolean NER) {
+        return NER ? SUPPORTED_ANNOTATORS : SUPPORTED_ANNOTATORS.subList(0, 4);
+    }
+
+    /**
+     * Complete the requested annotators with the ones they depend on, and put them in pipeline order.
+     * The tokenizer and the sentence splitter are always included, lemma requires pos, and ner requires both.
+     *
+     * @param requested the names of the requested annotators
+     * @return the annotators of the minimal pipeline providing the requested ones
+     * @throws IllegalArgumentException if one of the annotators isn't supported
+     */
+    public static List<String> resolveAnnotators(Collection<String> requested) {
+        Set<String> names = new HashSet<>();
+        for (String name : requested) {
+            String annotator = name.trim().toLowerCase();
+            if (annotator.isEmpty()) {
+                continue;
+            }
+            if (!SUPPORTED_ANNOTATORS.contains(annotator)) {
+                throw new IllegalArgumentException("Unsupported annotator \"" + name + "\", the supported annotators are "
+                        + SUPPORTED_ANNOTATORS);
+            }
+            names.add(annotator);
+        }
+        if (names.contains("ner")) {
+            names.add("lemma");
+        }
+        if (names.contains("lemma")) {
+            names.add("pos");
+        }
+        names.add("tokenize");
+        names.add("ssplit");
+        List<String> annotators = new ArrayList<>();
+        for (String annotator : SUPPORTED_ANNOTATORS) {
+            if (names.contains(annotator)) {
+                annotators.add(annotator);
+            }
+        }
+        return annotators;
+    }
+
+    /**
+     * @return whether texts of the given language can be annotated: English always can, the other languages when the
+     * CoreNLP models jar of the language is on the classpath
+     */
+    public static boolean hasModels(String language) {
+        if (language.equals("en")) {
+            return true;
+        }
+        String properties = LANGUAGE_PROPERTIES.get(language);
+        return properties != null && CoreNLPAPI.class.getClassLoader().getResource(properties) != null;
+    }
+
+    private static Properties loadLanguageProperties(String language) {
+        Properties props = new Properties();
+        String properties = LANGUAGE_PROPERTIES.get(language);
+        try (InputStream in = properties == null ? null
+                : CoreNLPAPI.class.getClassLoader().getResourceAsStream(properties)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No CoreNLP models for language \"" + language + "\"");
+            }
+            props.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read the CoreNLP properties of language \"" + language + "\"", e);
+        }
+        return props;
+    }
+
+    /**
+     * @return the code of the language annotated by this pipeline
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * @return the index of the text annotated by this pipeline among the texts of a document, the first one of its
+     * language, or -1 if there is none
+     */
+    public int textIndex(List<String> languages) {
+        return languages.indexOf(language);
+    }
+
+    /**
+     * @return the annotators run by this pipeline, in order
+     */
+    public List<String> getAnnotatorNames() {
+        return Collections.unmodifiableList(annotatorNames);
+    }
+
     public void setSynonyms(boolean synonyms) {
         this.synonyms = synonyms;
     }
@@ -59,24 +261,69 @@ public class CoreNLPAPI implements DocumentEnricher {
         this.spaces = spaces;
     }
 
+    /**
+     * Output each space as a [begin, end) pair of character offsets in the text, instead of the space itself
+     */
+    public void setSpaceOffsets(boolean spaceOffsets) {
+        this.spaceOffsets = spaceOffsets;
+    }
+
     public void setWordAnnotations(boolean wordAnnotations) {
         this.wordAnnotations = wordAnnotations;
     }
 
     /**
-     * Initiating the CoreNLP pipeline with the suitable annotators
-     * The following annotators will be added:
+     * Limit the named entities of the output to the most frequent ones, so that huge documents don't produce huge
+     * NE arrays. When indices are enabled, the mentions of the most frequent entities are kept.
+     *
+     * @param maxEntities the maximum number of entities, a value of 0 keeps all of them
+     */
+    public void setMaxEntities(int maxEntities) {
+        this.maxEntities = maxEntities;
+    }
+
+    /**
+     * Enable annotating long texts in parallel segments.
+     * Texts longer than the segment length are tokenized and split into sentences as a whole, then the sentences are
+     * grouped into segments of about the segment length (preferably ending at a paragraph end), and the rest of the
+     * annotators are run on the segments in parallel. The output is the same as annotating the text as a whole.
+     *
+     * @param segmentLength  the length of the segments in characters, a value of 0 disables segmentation
+     * @param segmentThreads the number of segments annotated at the same time
+     */
+    public void setSegmentation(int segmentLength, int segmentThreads) {
+        this.segmentLength = segmentLength;
+        this.segmentThreads = Math.max(1, segmentThreads);
+    }
+
+    /**
+     * Cache the annotations of the paragraphs, so that only the new or edited paragraphs of a text are annotated.
+     * Only used when {@link #splitIntoParagraphs} is true: each paragraph is then annotated on its own and the
+     * annotations are joined, with their offsets shifted. The output is the same as annotating the text as a whole.
+     *
+     * @param paragraphCache the cache, shared by the pipelines, null to annotate the texts as a whole
+     */
+    public void setParagraphCache(ParagraphCache paragraphCache) {
+        this.paragraphCache = paragraphCache;
+    }
+
+    /**
+     * Initiating the CoreNLP pipeline with the annotators in {@link #annotatorNames}, by default:
      * - sentence splitter
      * - tokenizer
      * - pos tagger
      * - Lemmatization
      * <p>
      * If {@link #NER} is true, Named-Entity annotator will be added as well.
+     * <p>
+     * The annotators of the pipeline are then taken out of its annotator pool, to be run one by one by
+     * {@link #annotate(String)}. The pool is shared by all the pipelines, hence the lock.
      */
     private void init() {
-        Properties props = new Properties();
+        // the models of the other languages come with their own properties, completed with the options below
+        Properties props = language.equals("en") ? new Properties() : loadLanguageProperties(language);
+        props.setProperty("annotators", String.join(", ", annotatorNames));
         if (NER) {
-            props.setProperty("annotators", "tokenize, ssplit, pos, lemma, ner");
             props.setProperty("ner.buildEntityMentions", "true");
             props.setProperty("ner.applyFineGrained", "false");
             if (!temporalEntities) {
@@ -86,36 +333,332 @@ public class CoreNLPAPI implements DocumentEnricher {
                 System.out.println("Numeric classifiers are off");
                 props.setProperty("ner.applyNumericClassifiers", "false");
             }
-        } else {
-            props.setProperty("annotators", "tokenize, ssplit, pos, lemma");
         }
         //if splitInto paragraphs is enabled, then split on double \n (paragraph symbol)
         if (splitIntoParagraphs) {
             props.setProperty("ssplit.newlineIsSentenceBreak", "two");
         }
-        pipeline = new StanfordCoreNLP(props);
+        annotators = new ArrayList<>();
+        synchronized (CoreNLPAPI.class) {
+            StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+            for (String annotator : annotatorNames) {
+                annotators.add(pipeline.pool.get(annotator));
+            }
+        }
         wn = WordNetAPI.getInstance();
     }
 
     /**
-     * Generate a json object containing information about a token from a given #CoreLabel object
+     * Drop the annotators of this pipeline from the annotator cache shared by the pipelines, so that their models can
+     * be garbage collected once the pipeline isn't used anymore. Annotators also used by other pipelines are only
+     * loaded again if a new pipeline needs them.
+     */
+    void release() {
+        Set<Annotator> released = Collections.newSetFromMap(new IdentityHashMap<>());
+        released.addAll(annotators);
+        synchronized (CoreNLPAPI.class) {
+            StanfordCoreNLP.GLOBAL_ANNOTATOR_CACHE.values().removeIf(
+                    annotator -> released.contains(annotator.getIfDefined()));
+        }
+    }
+
+    /**
+     * Annotate the text by running the annotators one by one, recording the latency of each of them.
+     * The sentence boundaries are handed to the listener as soon as the sentence splitter is done.
+     *
+     * @param text              the text to annotate
+     * @param sentencesListener receives the end offsets of the sentences, may be null
+     * @return the annotated document
+     */
+    private CoreDocument annotate(String text, Consumer<int[]> sentencesListener)
+            throws InterruptedException, ExecutionException {
+        CoreDocument doc = new CoreDocument(text);
+        Annotation annotation = doc.annotation();
+        // the annotators that need the whole text (tokenizer, sentence splitter) run first
+        int first = 0;
+        while (first < annotators.size() && !SENTENCE_LEVEL_ANNOTATORS.contains(annotatorNames.get(first))) {
+            runAnnotator(first, annotation);
+            ++first;
+        }
+        if (sentencesListener != null) {
+            List<CoreMap> sentences = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+            int[] sentenceEnds = new int[sentences.size()];
+            for (int i = 0; i < sentenceEnds.length; ++i) {
+                sentenceEnds[i] = sentences.get(i).get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+            }
+            sentencesListener.accept(sentenceEnds);
+        }
+        boolean sentenceLevel = true;
+        for (int i = first; i < annotators.size(); ++i) {
+            sentenceLevel &= SENTENCE_LEVEL_ANNOTATORS.contains(annotatorNames.get(i));
+        }
+        List<Annotation> segments = first < annotators.size() && sentenceLevel && segmentLength > 0
+                && text.length() > segmentLength
+                ? splitIntoSegments(annotation, segmentLength) : Collections.singletonList(annotation);
+        if (segments.size() == 1) {
+            for (int i = first; i < annotators.size(); ++i) {
+                runAnnotator(i, annotation);
+            }
+        } else {
+            int from = first;
+            ExecutorService.parallelize("corenlp_segments", segments, (segment) -> {
+                long start = System.currentTimeMillis();
+                for (int i = from; i < annotators.size(); ++i) {
+                    runAnnotator(i, segment);
+                }
+                return System.currentTimeMillis() - start;
+            }, segmentThreads);
+            mergeSegments(annotation, segments);
+        }
+        doc.wrapAnnotations();
+        Metrics.getInstance().increment("tokens", doc.tokens().size());
+        return doc;
+    }
+
+    private void runAnnotator(int i, Annotation annotation) {
+        if (Thread.interrupted()) {
+            throw new RuntimeInterruptedException();
+        }
+        long start = System.nanoTime();
+        annotators.get(i).annotate(annotation);
+        Metrics.getInstance().observe("corenlp_" + annotatorNames.get(i), System.nanoTime() - start);
+    }
+
+    /**
+     * Group the sentences of a tokenized and sentence split document into segments of about segmentLength
+     * characters. A segment is preferably cut after a sentence that ends a paragraph, if that keeps it at least half
+     * the segment length.
+     * Each segment shares the text of the document and holds views of its own tokens and sentences, so the token
+     * objects are annotated in place and their offsets and indices stay global.
      *
-     * @param token the token to generate the information about
+     * @param annotation    the tokenized and sentence split document
+     * @param segmentLength the length of the segments in characters, see {@link #setSegmentation(int, int)}
+     * @return the segments, in order
+     */
+    static List<Annotation> splitIntoSegments(Annotation annotation, int segmentLength) {
+        String text = annotation.get(CoreAnnotations.TextAnnotation.class);
+        List<CoreLabel> tokens = annotation.get(CoreAnnotations.TokensAnnotation.class);
+        List<CoreMap> sentences = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+        List<Annotation> segments = new ArrayList<>();
+        if (sentences == null || sentences.isEmpty()) {
+            segments.add(annotation);
+            return segments;
+        }
+        int segmentStart = 0;
+        int segmentBegin = sentences.get(0).get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
+        int paragraphCut = -1;
+        for (int i = 0; i < sentences.size(); ++i) {
+            int end = sentences.get(i).get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+            if (end - segmentBegin >= segmentLength || i == sentences.size() - 1) {
+                int cut = paragraphCut != -1 && i < sentences.size() - 1 ? paragraphCut : i + 1;
+                Annotation segment = new Annotation(text);
+                int tokenBegin = sentences.get(segmentStart).get(CoreAnnotations.TokenBeginAnnotation.class);
+                int tokenEnd = sentences.get(cut - 1).get(CoreAnnotations.TokenEndAnnotation.class);
+                segment.set(CoreAnnotations.TokensAnnotation.class, tokens.subList(tokenBegin, tokenEnd));
+                segment.set(CoreAnnotations.SentencesAnnotation.class, sentences.subList(segmentStart, cut));
+                segments.add(segment);
+                segmentStart = cut;
+                if (cut < sentences.size()) {
+                    segmentBegin = sentences.get(cut).get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
+                }
+                paragraphCut = -1;
+                // the sentences after the paragraph cut belong to the next segment
+                i = cut - 1;
+                continue;
+            }
+            if (end - segmentBegin >= segmentLength / 2 && text.startsWith("\n\n", end)) {
+                paragraphCut = i + 1;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Copy the document-level annotations produced on the segments back to the document, in the order of the segments
+     */
+    static void mergeSegments(Annotation annotation, List<Annotation> segments) {
+        List<CoreMap> mentions = null;
+        for (Annotation segment : segments) {
+            List<CoreMap> segmentMentions = segment.get(CoreAnnotations.MentionsAnnotation.class);
+            if (segmentMentions != null) {
+                if (mentions == null) {
+                    mentions = new ArrayList<>();
+                }
+                mentions.addAll(segmentMentions);
+            }
+        }
+        if (mentions != null) {
+            annotation.set(CoreAnnotations.MentionsAnnotation.class, mentions);
+        }
+    }
+
+    /**
+     * Annotate the text as a whole, see {@link #annotate(String, Consumer)}
+     *
+     * @param text              the text to annotate
+     * @param sentencesListener receives the end offsets of the sentences, may be null
+     * @return the annotation of the text, with the offsets relative to the text
+     */
+    private AnnotatedText annotateText(String text, Consumer<int[]> sentencesListener)
+            throws InterruptedException, ExecutionException {
+        CoreDocument doc = annotate(text, sentencesListener);
+        //get the sentences list
+        List<CoreSentence> sentences = doc.sentences();
+        //calculate the running sum of the number of words in sentences
+        ArrayList<Integer> cumulativeSumOfSetentences = new ArrayList<>();
+        int counter = 0;
+        for (CoreSentence sentence : sentences) {
+            cumulativeSumOfSetentences.add(counter);
+            counter += sentence.tokens().size();
+        }
+        List<CoreLabel> tokens = doc.tokens();
+        List<AnnotatedText.Mention> mentions = new ArrayList<>();
+        if (NER && doc.entityMentions() != null) {
+            for (CoreEntityMention mention : doc.entityMentions()) {
+                mentions.add(new AnnotatedText.Mention(mention.entityType(), mention.text(),
+                        mention.charOffsets().first, mention.charOffsets().second,
+                        getTokenWordIdx(mention.tokens().get(0), cumulativeSumOfSetentences),
+                        getTokenWordIdx(mention.tokens().get(mention.tokens().size() - 1), cumulativeSumOfSetentences)));
+            }
+        }
+        AnnotatedText annotated = new AnnotatedText(tokens.size(), sentences.size(), mentions);
+        for (int i = 0; i < tokens.size(); ++i) {
+            CoreLabel token = tokens.get(i);
+            annotated.words[i] = token.originalText();
+            annotated.norms[i] = token.lemma();
+            annotated.tags[i] = token.tag();
+            annotated.begins[i] = token.beginPosition();
+            annotated.ends[i] = token.endPosition();
+            //synonyms need the lemma and the pos, which may not have been requested
+            if (wordAnnotations && synonyms && language.equals("en") && token.lemma() != null && token.tag() != null) {
+                annotated.synonyms[i] = new JSONArray(wn.getSynonyms(token.lemma(), token.tag()));
+            }
+        }
+        for (int i = 0; i < sentences.size(); ++i) {
+            annotated.sentenceEnds[i] = sentences.get(i).charOffsets().second;
+        }
+        return annotated;
+    }
+
+    /**
+     * Annotate the paragraphs of the text one by one, taking the ones annotated before from the paragraph cache, and
+     * join them into the annotation of the text. As the sentences never cross a paragraph separator (see
+     * {@link #splitIntoParagraphs}), the result is the same as annotating the text as a whole.
+     * The paragraphs missing from the cache are annotated in parallel, by up to {@link #segmentThreads} threads.
+     *
+     * @param text              the text to annotate
+     * @param sentencesListener receives the end offsets of the sentences once all the paragraphs are annotated, may
+     *                          be null
+     * @return the annotation of the text
+     */
+    private AnnotatedText annotateParagraphs(String text, Consumer<int[]> sentencesListener)
+            throws InterruptedException, ExecutionException {
+        List<int[]> paragraphs = splitParagraphs(text);
+        List<AnnotatedText> parts = new ArrayList<>(Collections.nCopies(paragraphs.size(), null));
+        List<Integer> missing = new ArrayList<>();
+        int[] offsets = new int[paragraphs.size()];
+        for (int i = 0; i < paragraphs.size(); ++i) {
+            int[] paragraph = paragraphs.get(i);
+            offsets[i] = paragraph[0];
+            parts.set(i, paragraphCache.get(paragraphKey(text.substring(paragraph[0], paragraph[1]))));
+            if (parts.get(i) == null) {
+                missing.add(i);
+            }
+        }
+        ExecutorService.parallelize("corenlp_paragraphs", missing, (i) -> {
+            long start = System.currentTimeMillis();
+            String paragraph = text.substring(paragraphs.get(i)[0], paragraphs.get(i)[1]);
+            try {
+                AnnotatedText annotated = annotateText(paragraph, null);
+                parts.set(i, annotated);
+                paragraphCache.put(paragraphKey(paragraph), annotated);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Annotating paragraph " + i + " failed", e);
+            }
+            return System.currentTimeMillis() - start;
+        }, segmentThreads);
+        Metrics.getInstance().increment("paragraphs_annotated", missing.size());
+        AnnotatedText annotated = AnnotatedText.concat(parts, offsets);
+        if (sentencesListener != null) {
+            sentencesListener.accept(annotated.sentenceEnds);
+        }
+        return annotated;
+    }
+
+    /**
+     * @return the [begin, end) character offsets of the paragraphs of the text, the non blank parts between the
+     * paragraph separators, without their surrounding whitespace
+     */
+    static List<int[]> splitParagraphs(String text) {
+        List<int[]> paragraphs = new ArrayList<>();
+        Matcher separator = PARAGRAPH_SEPARATOR.matcher(text);
+        int begin = 0;
+        while (begin < text.length()) {
+            int end = separator.find() ? separator.start() : text.length();
+            int from = begin;
+            int to = end;
+            while (from < to && Character.isWhitespace(text.charAt(from))) {
+                ++from;
+            }
+            while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+                --to;
+            }
+            if (from < to) {
+                paragraphs.add(new int[]{from, to});
+            }
+            begin = end < text.length() ? separator.end() : end;
+        }
+        return paragraphs;
+    }
+
+    /**
+     * Drop the paragraphs of a text from the paragraph cache, see {@link #setParagraphCache}
+     *
+     * @param text the text, as given to {@link #process(String, String)}
+     */
+    public void forgetParagraphs(String text) {
+        if (paragraphCache == null || !splitIntoParagraphs) {
+            return;
+        }
+        text = normalizeNewlines(text);
+        for (int[] paragraph : splitParagraphs(text)) {
+            paragraphCache.remove(paragraphKey(text.substring(paragraph[0], paragraph[1])));
+        }
+    }
+
+    static String normalizeNewlines(String text) {
+        //CoreNLP crashed when \r\n used as a newline separator, the space is to preserve the length of the document
+        return text.replace("\r\n", " \n").replace('\r', '\n');
+    }
+
+    /**
+     * @return the key of a paragraph in the paragraph cache: the options the annotation of the paragraph depends on,
+     * and the hash of the paragraph
+     */
+    private String paragraphKey(String paragraph) {
+        return language + "|" + String.join("+", annotatorNames) + "|" + numericClassifiers + "|" + temporalEntities
+                + "|" + (wordAnnotations && synonyms) + "|"
+                + EnrichmentCache.hashTexts(Collections.singletonList(paragraph), Collections.singletonList(language));
+    }
+
+    /**
+     * Generate a json object containing information about a token of the annotated text
+     *
+     * @param text the annotated text
+     * @param i    the index of the token
      * @return json object of the token
      */
-    private JSONObject tokenToJson(CoreLabel token) {
+    private JSONObject tokenToJson(AnnotatedText text, int i) {
         JSONObject tokenJson = new JSONObject();
-        tokenJson.put("word", token.originalText());
-        //tokenJson.put("token", token.word());
-        tokenJson.put("norm", token.lemma());
-        tokenJson.put("pos", token.tag());
-        //tokenJson.put("ner", token.ner());
+        tokenJson.put("word", text.words[i]);
+        tokenJson.put("norm", text.norms[i]);
+        tokenJson.put("pos", text.tags[i]);
         if (indices) {
-            tokenJson.put("iFrom", token.beginPosition());
-            tokenJson.put("iTo", token.endPosition() - 1);
+            tokenJson.put("iFrom", text.begins[i]);
+            tokenJson.put("iTo", text.ends[i] - 1);
         }
-        if (synonyms) {
-            tokenJson.put("synonyms", new JSONArray(wn.getSynonyms(token.lemma(), token.tag())));
+        if (text.synonyms[i] != null) {
+            tokenJson.put("synonyms", text.synonyms[i]);
         }
         return tokenJson;
     }
@@ -134,61 +677,53 @@ public class CoreNLPAPI implements DocumentEnricher {
     /**
      * Generate a json object containing information about the given named entity,
      *
-     * @param mention                  the named entity mention
-     * @param cumulativeSumOfSentences the running sum of number of words of sentences, to be used to identify the wordIndex
+     * @param mention the named entity mention
      * @return json object of the named entity
      */
-    private JSONObject entityMentionToJson(CoreEntityMention mention, ArrayList<Integer> cumulativeSumOfSentences, int frequency) {
+    private JSONObject entityMentionToJson(AnnotatedText.Mention mention, int frequency) {
         JSONObject entityJson = new JSONObject();
-        entityJson.put("text", mention.text());
-        entityJson.put("type", mention.entityType());
+        entityJson.put("text", mention.text);
+        entityJson.put("type", mention.type);
         if (indices) {
-            entityJson.put("iFrom", mention.charOffsets().first);
-            entityJson.put("iTo", mention.charOffsets().second - 1);
-            entityJson.put("wFrom", getTokenWordIdx(mention.tokens().get(0), cumulativeSumOfSentences));
-            entityJson.put("wTo", getTokenWordIdx(mention.tokens().get(mention.tokens().size() - 1), cumulativeSumOfSentences));
+            entityJson.put("iFrom", mention.begin);
+            entityJson.put("iTo", mention.end - 1);
+            entityJson.put("wFrom", mention.wordFrom);
+            entityJson.put("wTo", mention.wordTo);
         }
         if (frequency != -1) {
             entityJson.put("freq", frequency);
         }
-        if (false && synonyms) {
-            entityJson.put("synonyms", new JSONArray(wn.getSynonyms(mention.text(), "NN")));
-        }
         return entityJson;
     }
 
     /**
      * Generate the spaces array out of the original text and the tokens, and output them as #JSONArray object
      * The spaces will be the gaps between each consecutive pair of tokens
-     * This method first sort all the tokens by beginning position.
-     * Then it proceeds to extract those characters that are between each pair of consecutive tokens and add them as spaces
      *
      * @param originalText the full original text
-     * @param tokens       the tokens extracted from that text
+     * @param tokens       the annotated text, whose tokens come in document order
      * @return array of spaces that split the tokens
      */
-    private JSONArray calculateSpaces(String originalText, List<CoreLabel> tokens) {
-
-        ArrayList<String> spaces = new ArrayList<>();
-        //sort tokens by first position
-        tokens.sort(Comparator.comparingInt(CoreLabel::beginPosition));
-        //first space item
-        spaces.add(originalText.substring(0, tokens.get(0).beginPosition()));
-        //spaces between tokens
-        for (int i = 0; i < tokens.size() - 1; ++i) {
-            spaces.add(originalText.substring(tokens.get(i).endPosition(), tokens.get(i + 1).beginPosition()));
-        }
-        //last space item
-        spaces.add(originalText.substring(tokens.get(tokens.size() - 1).endPosition()));
-        // create a JSONArray object to add spaces into it
+    private JSONArray calculateSpaces(String originalText, AnnotatedText tokens) {
         JSONArray spacesArr = new JSONArray();
-        //add them from the list
-        for (String space : spaces) {
-            spacesArr.put(space);
+        int begin = 0;
+        for (int i = 0; i < tokens.size(); ++i) {
+            addSpace(spacesArr, originalText, begin, tokens.begins[i]);
+            begin = tokens.ends[i];
         }
+        //last space item
+        addSpace(spacesArr, originalText, begin, originalText.length());
         return spacesArr;
     }
 
+    private void addSpace(JSONArray spacesArr, String originalText, int begin, int end) {
+        if (spaceOffsets) {
+            spacesArr.put(new JSONArray().put(begin).put(end));
+        } else {
+            spacesArr.put(originalText.substring(begin, end));
+        }
+    }
+
     /**
      * Annotate the text with the annotation pipeline
      * The format of the json will be the following:
@@ -224,104 +759,91 @@ public class CoreNLPAPI implements DocumentEnricher {
      * @return the annotated text
      */
     public JSONObject process(String id, String text) {
-        //create the annotated article object and add the id of the article
-        JSONObject annotatedArticle = new JSONObject();
-        annotatedArticle.put("id", id);
+        return process(id, text, null);
+    }
+
+    /**
+     * Same as {@link #process(String, String)}, handing the end offsets of the sentences of the text to the given
+     * listener as soon as the text is split into sentences
+     */
+    public JSONObject process(String id, String text, Consumer<int[]> sentencesListener) {
+        JSONObject annotatedArticle;
         try {
-            //CoreNLP crashed when \r\n used as a newline separator, the space is to preserve the length of the document
-            text = text.replaceAll("\\r\\n", " \\n").replaceAll("\\r", "\\n");
-            //create a document object out of the text and annotate it
-            CoreDocument doc = new CoreDocument(text);
-            pipeline.annotate(doc);
-            //get the sentences list
-            List<CoreSentence> sentences = doc.sentences();
-            //calculate the running sum of the number of words in sentences
-            ArrayList<Integer> cumulativeSumOfSetentences = new ArrayList<>();
-            int counter = 0;
-            for (CoreSentence sentence : sentences) {
-                cumulativeSumOfSetentences.add(counter);
-                counter += sentence.tokens().size();
-            }
+            text = normalizeNewlines(text);
+            //annotate the text, paragraph by paragraph if they are cached
+            AnnotatedText doc = paragraphCache != null && splitIntoParagraphs
+                    ? annotateParagraphs(text, sentencesListener) : annotateText(text, sentencesListener);
+            //create the annotated article object and add the id of the article
+            annotatedArticle = new AnnotatedArticle(doc.sentenceEnds);
+            annotatedArticle.put("id", id);
+            long outputStart = System.nanoTime();
             if (wordAnnotations) {
                 JSONObject annotatedWords = new JSONObject();
                 //add the words annotation list
                 JSONArray words = new JSONArray();
-                List<CoreLabel> tokens = doc.tokens();
-                for (CoreLabel token : tokens) {
-                    words.put(tokenToJson(token));
+                for (int i = 0; i < doc.size(); ++i) {
+                    words.put(tokenToJson(doc, i));
                 }
                 annotatedWords.put("words", words);
                 if (spaces) {
                     //add the spaces list
-                    if (tokens.isEmpty()) {
+                    if (doc.size() == 0) {
                         annotatedWords.put("spaces", new JSONArray());
                     } else {
-                        annotatedWords.put("spaces", calculateSpaces(text, tokens));
+                        annotatedWords.put("spaces", calculateSpaces(text, doc));
                     }
                 }
-                annotatedArticle.put("annotatedWords", annotatedWords);
+                annotatedArticle.put(outputKey("annotatedWords"), annotatedWords);
             }
             //if NER is enabled, add the named entity information in the `annotations` field
             if (NER) {
 
                 JSONArray annotations = new JSONArray();
+                List<AnnotatedText.Mention> entityMentions = doc.mentions;
                 if (!indices) {
-                    class FreqType implements Comparable<FreqType>{
-                        int freq;
-                        int idx;
-                        @Override
-                        public int compareTo(@NotNull FreqType freqType) {
-                            return freqType.freq-freq;
-                        }
-                        public FreqType(int freq,int idx){
-                            this.freq=freq;
-                            this.idx=idx;
-                        }
+                    //merge the annotations, most frequent first
+                    EntityAggregator<AnnotatedText.Mention> aggregator = new EntityAggregator<>();
+                    for (AnnotatedText.Mention em : entityMentions) {
+                        aggregator.add(em.type, em.text, em);
                     }
-                    HashMap<String, Integer> frequency = new HashMap<>();
-                    List<CoreEntityMention> entityMentions = doc.entityMentions();
-                    List<Boolean> repeated = new ArrayList<>();
-                    List<FreqType> freqToIdx=new ArrayList<>();
-                    //merge the annotations
-                    for (CoreEntityMention em : doc.entityMentions()) {
-                        String annotType = em.entityType() + "$$$" + em.text();
-                        if (!frequency.containsKey(annotType)) {
-                            frequency.put(annotType, 1);
-                            repeated.add(false);
-                        } else {
-                            frequency.put(annotType, frequency.get(annotType) + 1);
-                            repeated.add(true);
-                        }
+                    for (EntityAggregator.Entity<AnnotatedText.Mention> entity : aggregator.getEntities(maxEntities)) {
+                        annotations.put(entityMentionToJson(entity.getFirstMention(), entity.getFrequency()));
+                    }
+                } else if (maxEntities > 0) {
+                    //keep the mentions of the most frequent entities only
+                    EntityAggregator<AnnotatedText.Mention> aggregator = new EntityAggregator<>();
+                    List<EntityAggregator.Entity<AnnotatedText.Mention>> mentionEntities = new ArrayList<>();
+                    for (AnnotatedText.Mention em : entityMentions) {
+                        mentionEntities.add(aggregator.add(em.type, em.text, em));
                     }
+                    aggregator.getEntities(maxEntities);
                     for (int i = 0; i < entityMentions.size(); ++i) {
-                        if (!repeated.get(i)) {
-                            CoreEntityMention em = entityMentions.get(i);
-                            String annotType = em.entityType() + "$$$" + em.text();
-                            freqToIdx.add(new FreqType(frequency.get(annotType),i));
+                        if (mentionEntities.get(i).isSelected()) {
+                            annotations.put(entityMentionToJson(entityMentions.get(i), -1));
                         }
                     }
-                    Collections.sort(freqToIdx);
-                    for (FreqType type:freqToIdx){
-                        CoreEntityMention em = entityMentions.get(type.idx);
-                        String annotType = em.entityType() + "$$$" + em.text();
-                        assert (frequency.get(annotType)==type.freq);
-                        annotations.put(entityMentionToJson(em, cumulativeSumOfSetentences, frequency.get(annotType)));
-                    }
                 } else {
-                    for (CoreEntityMention em : doc.entityMentions()) {
-                        annotations.put(entityMentionToJson(em, cumulativeSumOfSetentences, -1));
+                    for (AnnotatedText.Mention em : entityMentions) {
+                        annotations.put(entityMentionToJson(em, -1));
                     }
                 }
-                annotatedArticle.put("NE", annotations);
+                annotatedArticle.put(outputKey("NE"), annotations);
             }
             //System.out.println("Annotated with NE & Word Annotations");
             //annotatedArticle.put("process","CoreNLP");
+            Metrics.getInstance().observe("corenlp_output", System.nanoTime() - outputStart);
             return annotatedArticle;
         } catch (Exception ex) {
+            // the deadline of the request is over or the request was cancelled, its result isn't wanted
+            if (isInterruption(ex)) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeInterruptedException();
+            }
             ex.printStackTrace();
         }
-        // if anything failed, return an empty annotation object (with only id added)
+        // if anything failed, return an empty annotation object (with only id added), not to be cached
         annotatedArticle = new JSONObject();
+        annotatedArticle.put("corenlpDegraded", true);
         //annotatedArticle.put("process","CoreNLP");
         if (wordAnnotations) {
             JSONObject annotatedWords = new JSONObject();
@@ -329,22 +851,92 @@ public class CoreNLPAPI implements DocumentEnricher {
             if (spaces) {
                 annotatedWords.put("spaces", new JSONArray());
             }
-            annotatedArticle.put("annotatedWords", annotatedWords);
+            annotatedArticle.put(outputKey("annotatedWords"), annotatedWords);
         }
         if (NER) {
-            annotatedArticle.put("NE", new JSONArray());
+            annotatedArticle.put(outputKey("NE"), new JSONArray());
         }
         //System.out.println("Annotated with NE & Word Annotations");
         return annotatedArticle;
     }
 
+    /**
+     * The annotation of a text, remembering the sentences of the text for the enrichers that need them when the
+     * annotation is taken from the cache, see {@link SentenceBoundaries}
+     */
+    private static class AnnotatedArticle extends JSONObject {
+        private final int[] sentenceEnds;
+
+        AnnotatedArticle(int[] sentenceEnds) {
+            this.sentenceEnds = sentenceEnds;
+        }
+    }
+
+    /**
+     * @param enrichment a result of a CoreNLP pipeline
+     * @return the end offsets of the sentences of the annotated text, or null if the annotation failed
+     */
+    static int[] getSentenceEnds(JSONObject enrichment) {
+        return enrichment instanceof AnnotatedArticle ? ((AnnotatedArticle) enrichment).sentenceEnds : null;
+    }
+
+    /**
+     * @return whether the exception, or one of its causes, comes from the interruption of the annotation
+     */
+    private static boolean isInterruption(Throwable e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof RuntimeInterruptedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The empty annotations returned when the annotation failed aren't cached
+     */
+    @Override
+    public boolean isCacheable(JSONObject enrichment) {
+        return enrichment == null || !enrichment.optBoolean("corenlpDegraded");
+    }
+
+    @Override
+    public String getOptionsSignature() {
+        return "CoreNLP:language=" + language + ",annotators=" + String.join("+", annotatorNames) + ",NER=" + NER + ",splitIntoParagraphs=" + splitIntoParagraphs
+                + ",numericClassifiers=" + numericClassifiers + ",temporalEntities=" + temporalEntities
+                + ",wordAnnotations=" + wordAnnotations + ",synonyms=" + synonyms
+                + ",indices=" + indices + ",spaces=" + spaces + ",spaceOffsets=" + spaceOffsets
+                + ",maxEntities=" + maxEntities;
+    }
+
     @Override
     public JSONObject process(String id, List<String> text, List<String> language) {
-        for (int i = 0; i < language.size(); ++i) {
-            if (language.get(i).equals("en")) {
-                return process(id, text.get(i));
+        return process(id, text, language, null);
+    }
+
+    @Override
+    public JSONObject process(String id, List<String> text, List<String> language, SentenceBoundaries sentences) {
+        int textIndex = textIndex(language);
+        if (textIndex < 0) {
+            return null;
+        }
+        try {
+            return process(id, text.get(textIndex), sentences == null ? null
+                    : sentenceEnds -> sentences.publish(textIndex, sentenceEnds));
+        } finally {
+            if (sentences != null) {
+                sentences.skip(textIndex);
             }
         }
-        return null;
+    }
+
+    /**
+     * @return the key of an annotation in the output, suffixed with the language unless it's English
+     */
+    private String outputKey(String key) {
+        return language.equals("en") ? key : key + "_" + language;
     }
 }
\ No newline at end of file
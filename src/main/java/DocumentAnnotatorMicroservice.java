@@ -1,29 +1,82 @@
 import io.github.cdimascio.dotenv.Dotenv;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class DocumentAnnotatorMicroservice {
-    private CoreNLPAPI NER_SplitIntoParagraphsPipeline;
-    private CoreNLPAPI NERPipeline;
-    private CoreNLPAPI SplitIntoParagraphsPipeline;
-    private CoreNLPAPI NonePipeline;
-    private CoreNLPAPI NER_SplitIntoParagraphsPipelineNumericalClassifiers;
-    private CoreNLPAPI NERPipelineNumericalClassifiers;
-    private CoreNLPAPI SplitIntoParagraphsPipelineNumericalClassifiers;
-    private CoreNLPAPI NonePipelineNumericalClassifiers;
+    // the maximum number of enricher plans kept, see #preparePipeLine
+    private static final int MAX_PLANS = 256;
+    // the maximum number of wikifications with other selections than the default one kept, see #getWikification
+    private static final int MAX_WIKIFICATIONS = 64;
+    // CoreNLP pipelines requested so far, by annotators and options, see #getSuitablePipeline
+    private final Map<String, LazyPipeline> pipelines = new ConcurrentHashMap<>();
+    // the enrichers prepared for the requests, by languages and options, least recently used first
+    private final LinkedHashMap<String, List<DocumentEnricher>> plans =
+            new LinkedHashMap<String, List<DocumentEnricher>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<DocumentEnricher>> eldest) {
+                    return size() > MAX_PLANS;
+                }
+            };
+    // the languages other than English with loaded pipelines, least recently used first
+    private final LinkedHashMap<String, Boolean> loadedLanguages = new LinkedHashMap<>(16, 0.75f, true);
+    // the languages without CoreNLP models, already reported
+    private final Set<String> missingLanguages = Collections.synchronizedSet(new HashSet<>());
     private Wikification wikification;
+    // the wikifications selecting the concepts with other cutoffs than the default one, by cutoff and top k, least
+    // recently used first
+    private final LinkedHashMap<String, Wikification> wikifications =
+            new LinkedHashMap<String, Wikification>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Wikification> eldest) {
+                    return size() > MAX_WIKIFICATIONS;
+                }
+            };
 
     private OntologyMapping ontMapping;
-    private volatile List<JSONObject> enrichments;
+    private EnrichmentCache enrichmentCache;
+    // null if the paragraphs aren't cached
+    private ParagraphCache paragraphCache;
+    // null if the detection of near-duplicates is disabled
+    private NearDuplicateDetector nearDuplicates;
 
     private String wikifierWebsite, wikifierKey;
     private int wikifierThreads, wikifierMaxLength;
+    private long wikifierSentencesWait;
+    private long wikifierCoalesceWindow;
+    private int wikifierCoalesceChunkLength;
+    private int wikifierTimeout, wikifierRetries, wikifierBreakerFailures;
+    private long wikifierRetryBackoff, wikifierBreakerOpen, wikifierHedgeAfter;
     private String ontologyDir;
+    private int enrichmentCacheSize;
+    private int paragraphCacheSize;
+    private int corenlpSegmentLength, corenlpSegmentThreads;
+    private int corenlpMaxLanguages;
+    private boolean languageIdentification;
+    private double nearDuplicateThreshold;
+    private int nearDuplicateMaxDocuments;
+    private boolean nearDuplicateLink;
+    private int neTopK;
+    private boolean spaceOffsets;
+    private String warmUpDocuments;
+    private int warmUpMaxDocuments, warmUpMaxLength, warmUpRounds;
 
     private void loadEnv() {
 
@@ -37,20 +90,44 @@ public class DocumentAnnotatorMicroservice {
         wikifierWebsite = dotenv.get("WIKIFIER_URL");
         wikifierMaxLength = Integer.parseInt(Objects.requireNonNull(dotenv.get("WIKIFIER_MAX_LENGTH")));
         wikifierThreads = Integer.parseInt(Objects.requireNonNull(dotenv.get("WIKIFIER_N_THREADS")));
+        wikifierSentencesWait = Long.parseLong(dotenv.get("WIKIFIER_SENTENCES_WAIT_MS", "10000"));
+        wikifierCoalesceWindow = Long.parseLong(dotenv.get("WIKIFIER_COALESCE_WINDOW_MS", "0"));
+        wikifierCoalesceChunkLength = Integer.parseInt(dotenv.get("WIKIFIER_COALESCE_CHUNK_LENGTH", "2000"));
+        wikifierTimeout = Integer.parseInt(dotenv.get("WIKIFIER_TIMEOUT_MS", "60000"));
+        wikifierRetries = Integer.parseInt(dotenv.get("WIKIFIER_RETRIES", "2"));
+        wikifierRetryBackoff = Long.parseLong(dotenv.get("WIKIFIER_RETRY_BACKOFF_MS", "500"));
+        wikifierBreakerFailures = Integer.parseInt(dotenv.get("WIKIFIER_BREAKER_FAILURES", "5"));
+        wikifierBreakerOpen = Long.parseLong(dotenv.get("WIKIFIER_BREAKER_OPEN_MS", "30000"));
+        wikifierHedgeAfter = Long.parseLong(dotenv.get("WIKIFIER_HEDGE_AFTER_MS", "0"));
+        enrichmentCacheSize = Integer.parseInt(dotenv.get("ENRICHMENT_CACHE_SIZE", "1000"));
+        paragraphCacheSize = Integer.parseInt(dotenv.get("PARAGRAPH_CACHE_SIZE", "0"));
+        corenlpSegmentLength = Integer.parseInt(dotenv.get("CORENLP_SEGMENT_LENGTH", "0"));
+        corenlpSegmentThreads = Integer.parseInt(dotenv.get("CORENLP_SEGMENT_THREADS", "4"));
+        corenlpMaxLanguages = Math.max(1, Integer.parseInt(dotenv.get("CORENLP_MAX_LANGUAGES", "2")));
+        languageIdentification = Boolean.parseBoolean(dotenv.get("LANGUAGE_IDENTIFICATION", "true"));
+        nearDuplicateThreshold = Double.parseDouble(dotenv.get("NEAR_DUPLICATE_THRESHOLD", "0"));
+        nearDuplicateMaxDocuments = Integer.parseInt(dotenv.get("NEAR_DUPLICATE_MAX_DOCUMENTS", "10000"));
+        nearDuplicateLink = dotenv.get("NEAR_DUPLICATE_MODE", "link").equals("link");
+        neTopK = Integer.parseInt(dotenv.get("NE_TOP_K", "0"));
+        spaceOffsets = dotenv.get("SPACES_FORMAT", "text").equals("offsets");
+        warmUpDocuments = dotenv.get("WARMUP_DOCUMENTS", "example/raw/");
+        warmUpMaxDocuments = Integer.parseInt(dotenv.get("WARMUP_MAX_DOCUMENTS", "3"));
+        warmUpMaxLength = Integer.parseInt(dotenv.get("WARMUP_MAX_LENGTH", "10000"));
+        warmUpRounds = Integer.parseInt(dotenv.get("WARMUP_ROUNDS", "2"));
 
     }
 
-    private void initPipelines() {
-
-        NER_SplitIntoParagraphsPipeline = new CoreNLPAPI(true, true, false);
-        SplitIntoParagraphsPipeline = new CoreNLPAPI(false, true, false);
-        NERPipeline = new CoreNLPAPI(true, false, false);
-        NonePipeline = new CoreNLPAPI(false, false, false);
-        NER_SplitIntoParagraphsPipelineNumericalClassifiers = new CoreNLPAPI(true, true, true);
-        SplitIntoParagraphsPipelineNumericalClassifiers = new CoreNLPAPI(false, true, true);
-        NERPipelineNumericalClassifiers = new CoreNLPAPI(true, false, true);
-        NonePipelineNumericalClassifiers = new CoreNLPAPI(false, false, true);
-        wikification = new Wikification(wikifierKey, wikifierWebsite, wikifierMaxLength, wikifierThreads);
+    private void initPipelines(boolean initEnrichers) {
+        enrichmentCache = new EnrichmentCache(enrichmentCacheSize);
+        if (paragraphCacheSize > 0) {
+            paragraphCache = new ParagraphCache(paragraphCacheSize);
+        }
+        if (nearDuplicateThreshold > 0) {
+            nearDuplicates = new NearDuplicateDetector(nearDuplicateThreshold, nearDuplicateMaxDocuments);
+        }
+        if (initEnrichers) {
+            initEnrichers();
+        }
         try {
             ontMapping = new OntologyMapping(ontologyDir, true, false);
         } catch (IOException | NoSuchFieldException e) {
@@ -59,47 +136,234 @@ public class DocumentAnnotatorMicroservice {
         //System.out.println("Pipeline Initialized");
     }
 
-    private CoreNLPAPI getSuitablePipeline(boolean NER, boolean splitIntoParagraphs, boolean numericalClassifiers) {
-        if (numericalClassifiers) {
-            if (NER) {
-                if (splitIntoParagraphs) {
-                    return NER_SplitIntoParagraphsPipelineNumericalClassifiers;
+    private void initEnrichers() {
+        // the pipelines of the full annotation are built upfront, so that the first requests don't load the models
+        for (boolean NER : new boolean[]{true, false}) {
+            for (boolean splitIntoParagraphs : new boolean[]{true, false}) {
+                for (boolean numericClassifiers : new boolean[]{false, true}) {
+                    getSuitablePipeline("en", CoreNLPAPI.defaultAnnotators(NER), splitIntoParagraphs,
+                            numericClassifiers);
                 }
-                return NERPipelineNumericalClassifiers;
             }
-            // not NER
-            if (splitIntoParagraphs) {
-                return SplitIntoParagraphsPipelineNumericalClassifiers;
+        }
+        wikification = new Wikification(wikifierKey, wikifierWebsite, wikifierMaxLength, wikifierThreads,
+                wikifierTimeout);
+        wikification.getClient().setRetries(wikifierRetries, wikifierRetryBackoff);
+        wikification.getClient().setCircuitBreaker(wikifierBreakerFailures, wikifierBreakerOpen);
+        wikification.getClient().setHedgeAfterMillis(wikifierHedgeAfter);
+        wikification.setSentencesWaitMillis(wikifierSentencesWait);
+        if (wikifierCoalesceWindow > 0) {
+            wikification.enableCoalescing(wikifierCoalesceWindow, wikifierCoalesceChunkLength);
+        }
+    }
+
+    /**
+     * Run representative documents through the pipelines built upfront (see {@link #initEnrichers()}), WordNet and the
+     * ontology mapping, so that the first requests don't pay for the classes, dictionaries and models CoreNLP loads
+     * lazily, nor run on a cold JIT.
+     * <p>
+     * The documents are the "text" fields of WARMUP_DOCUMENTS (a json lines file, or a directory of them), at most
+     * WARMUP_MAX_DOCUMENTS of them cut to WARMUP_MAX_LENGTH characters, annotated WARMUP_ROUNDS times by each pipeline.
+     * They aren't wikified, so the wikifier isn't called, and they aren't cached nor counted as annotated documents.
+     * Their paragraphs are dropped from the paragraph cache once annotated, the other paragraphs are kept.
+     *
+     * @return the number of documents annotated, 0 if the warm-up is disabled or there are no documents
+     */
+    public int warmUp() {
+        List<String> documents = readWarmUpDocuments();
+        if (documents.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        List<String> languages = Collections.singletonList("en");
+        int annotated = 0;
+        for (int round = 0; round < warmUpRounds; ++round) {
+            for (boolean NER : new boolean[]{true, false}) {
+                for (boolean splitIntoParagraphs : new boolean[]{true, false}) {
+                    for (boolean numericClassifiers : new boolean[]{false, true}) {
+                        int flags = RequestOptions.WORD_ANNOTATIONS | RequestOptions.SYNONYMS
+                                | RequestOptions.ALLOW_ALTERNATIVE_NAMES | RequestOptions.HIERARCHY
+                                | (NER ? RequestOptions.NER : 0)
+                                | (splitIntoParagraphs ? RequestOptions.SPLIT_INTO_PARAGRAPHS : 0)
+                                | (numericClassifiers ? RequestOptions.NUMERIC_CLASSIFIERS : 0);
+                        RequestOptions options = RequestOptions.of(flags, null, Wikification.DEFAULT_CUTOFF, 0, "ALL");
+                        List<DocumentEnricher> tasks = preparePipeLine(languages, options);
+                        for (int i = 0; i < documents.size(); ++i) {
+                            try {
+                                warmUp("warmup_" + i, documents.get(i), languages, tasks);
+                                ++annotated;
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Metrics.getInstance().observe("warm_up", nanos);
+        System.out.println("Warm-up: " + annotated + " annotations of " + documents.size() + " documents in "
+                + nanos / 1000000 + " ms");
+        return annotated;
+    }
+
+    private void warmUp(String id, String text, List<String> languages, List<DocumentEnricher> tasks) {
+        List<String> texts = Collections.singletonList(cleanText(text));
+        SentenceBoundaries sentences = prepareSentenceBoundaries(languages, tasks);
+        JSONObject annotationsObj = new JSONObject();
+        for (DocumentEnricher task : tasks) {
+            JSONObject enrichment = task.process(id, texts, languages, sentences);
+            if (enrichment != null) {
+                for (String key : enrichment.keySet()) {
+                    annotationsObj.put(key, enrichment.get(key));
+                }
             }
-            return NonePipelineNumericalClassifiers;
+            // right away, so that the paragraphs of the warm-up documents don't take the place of the ones of the
+            // requests, which may already be served
+            if (task instanceof CoreNLPAPI) {
+                ((CoreNLPAPI) task).forgetParagraphs(texts.get(0));
+            }
+        }
+        if (ontMapping != null) {
+            ontMapping.withOptions(true, true).MapWithOntology(annotationsObj, "ALL");
+        }
+    }
+
+    /**
+     * @return the texts of the warm-up documents, see {@link #warmUp()}
+     */
+    private List<String> readWarmUpDocuments() {
+        List<String> documents = new ArrayList<>();
+        if (warmUpDocuments.isEmpty() || warmUpMaxDocuments <= 0 || warmUpRounds <= 0) {
+            return documents;
+        }
+        File path = new File(warmUpDocuments);
+        File[] files = path.isDirectory() ? path.listFiles(File::isFile) : new File[]{path};
+        if (files == null || !path.exists()) {
+            System.out.println("No warm-up documents in " + warmUpDocuments);
+            return documents;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while (documents.size() < warmUpMaxDocuments && (line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String text = new JSONObject(line).optString("text", "");
+                    if (!text.isEmpty()) {
+                        documents.add(text.substring(0, Math.min(text.length(), warmUpMaxLength)));
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Can't read the warm-up documents of " + file + ": " + e);
+            }
+            if (documents.size() >= warmUpMaxDocuments) {
+                break;
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Get the pipeline of the language running exactly the given annotators, building it the first time it's needed.
+     * Pipelines without "ner" are cheap to build, as they don't load the NER models.
+     * <p>
+     * The pipelines of the languages other than English are only built once a text of the language comes, and at
+     * most CORENLP_MAX_LANGUAGES of these languages keep their pipelines loaded: the pipelines of the least recently
+     * used one are dropped to make room for a new one.
+     *
+     * @param language   the language of the pipeline, which must have its models, see {@link CoreNLPAPI#hasModels}
+     * @param annotators the annotators of the pipeline, as returned by {@link CoreNLPAPI#resolveAnnotators}
+     */
+    private CoreNLPAPI getSuitablePipeline(String language, List<String> annotators, boolean splitIntoParagraphs,
+                                           boolean numericalClassifiers) {
+        String key = language + "|" + String.join(",", annotators) + "|splitIntoParagraphs=" + splitIntoParagraphs
+                + "|numericClassifiers=" + numericalClassifiers;
+        if (!language.equals("en")) {
+            useLanguage(language);
+        }
+        // the pipeline is built outside of the lock of the map, the lookups of the other pipelines don't wait for it
+        return pipelines.computeIfAbsent(key,
+                k -> new LazyPipeline(language, annotators, splitIntoParagraphs, numericalClassifiers)).get();
+    }
+
+    /**
+     * A CoreNLP pipeline, built by the first request that needs it. The requests needing it at the same time wait for
+     * it to be built, while the other pipelines stay available.
+     */
+    private class LazyPipeline {
+        private final String language;
+        private final List<String> annotators;
+        private final boolean splitIntoParagraphs;
+        private final boolean numericClassifiers;
+        private volatile CoreNLPAPI pipeline;
+        private volatile boolean released;
+
+        LazyPipeline(String language, List<String> annotators, boolean splitIntoParagraphs,
+                     boolean numericClassifiers) {
+            this.language = language;
+            this.annotators = annotators;
+            this.splitIntoParagraphs = splitIntoParagraphs;
+            this.numericClassifiers = numericClassifiers;
         }
-        if (NER) {
-            if (splitIntoParagraphs) {
-                return NER_SplitIntoParagraphsPipeline;
+
+        synchronized CoreNLPAPI get() {
+            if (pipeline == null) {
+                CoreNLPAPI built = new CoreNLPAPI(language, annotators, splitIntoParagraphs, numericClassifiers);
+                built.setSegmentation(corenlpSegmentLength, corenlpSegmentThreads);
+                built.setMaxEntities(neTopK);
+                built.setSpaceOffsets(spaceOffsets);
+                built.setParagraphCache(paragraphCache);
+                pipeline = built;
+                // unloaded while it was being built, the request still gets it
+                if (released) {
+                    built.release();
+                }
             }
-            return NERPipeline;
+            return pipeline;
         }
-        // not NER
-        if (splitIntoParagraphs) {
-            return SplitIntoParagraphsPipeline;
+
+        /**
+         * Release the pipeline, see {@link CoreNLPAPI#release()}, without waiting for it if it's being built
+         */
+        void release() {
+            released = true;
+            CoreNLPAPI built = pipeline;
+            if (built != null) {
+                built.release();
+            }
         }
-        return NonePipeline;
     }
 
-    private CoreNLPAPI initializePipelineConfigs(boolean NER, boolean wordAnnotations, boolean splitIntoParagraphs, boolean numericClassifiers, boolean synonyms,
-                                                 boolean indices, boolean spaces, boolean allowAlternativeNames, boolean hierarchy) {
-        //System.out.println("Entered initialization");
-        CoreNLPAPI corenlp = getSuitablePipeline(NER, splitIntoParagraphs,numericClassifiers);
-        //System.out.println("Finished initialization");
-        corenlp.setSpaces(spaces);
-        corenlp.setIndices(indices);
-        corenlp.setWordAnnotations(wordAnnotations);
-        corenlp.setSynonyms(synonyms);
-        corenlp.setNumericClassifiers(numericClassifiers);
-        ontMapping.setAllowAlternativeNames(allowAlternativeNames);
-        ontMapping.setHierarchy(hierarchy);
-        //System.out.println("Finished initialization");
-        return corenlp;
+    /**
+     * Mark the language as the most recently used one, unloading the least recently used language if there are too
+     * many of them. Requests still running with the pipelines of the unloaded language finish normally.
+     */
+    private void useLanguage(String language) {
+        String unloaded = null;
+        synchronized (loadedLanguages) {
+            loadedLanguages.put(language, true);
+            if (loadedLanguages.size() > corenlpMaxLanguages) {
+                unloaded = loadedLanguages.keySet().iterator().next();
+                loadedLanguages.remove(unloaded);
+            }
+        }
+        if (unloaded != null) {
+            System.out.println("Unloading the CoreNLP pipelines of language " + unloaded);
+            Metrics.getInstance().increment("corenlp_languages_unloaded");
+            String prefix = unloaded + "|";
+            for (Map.Entry<String, LazyPipeline> entry : pipelines.entrySet()) {
+                if (entry.getKey().startsWith(prefix) && pipelines.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().release();
+                }
+            }
+            // the plans may hold views of the unloaded pipelines
+            synchronized (plans) {
+                plans.clear();
+            }
+        }
     }
 
     private String cleanText(String articleText) {
@@ -148,109 +412,407 @@ public class DocumentAnnotatorMicroservice {
     }
 
     public DocumentAnnotatorMicroservice() {
+        this(true);
+    }
+
+    /**
+     * Constructor for class #DocumentAnnotatorMicroservice
+     *
+     * @param initEnrichers whether to load the CoreNLP pipelines and the wikifier. If false, only the ontology mapping
+     *                      is loaded, which is enough for {@link #remapDocument(JSONObject, String, boolean, boolean)}
+     */
+    public DocumentAnnotatorMicroservice(boolean initEnrichers) {
         loadEnv();
-        initPipelines();
+        initPipelines(initEnrichers);
     }
 
-    private long execute(DocumentEnricher task, String id, List<String> texts, List<String> languages) {
+    /**
+     * Run a single enricher over the texts, reusing its cached result if the same texts were already enriched with
+     * the same enricher options
+     *
+     * @param textsHash   hash of the cleaned texts, see {@link EnrichmentCache#hashTexts(List, List)}
+     * @param sentences   the sentence boundaries of the texts, shared by the enrichers of the document
+     * @param enrichments the list to add the result of the enricher to
+     * @return the time consumed by the enricher
+     */
+    private long execute(DocumentEnricher task, String id, List<String> texts, List<String> languages, String textsHash,
+                         NearDuplicateDetector.Match duplicate, SentenceBoundaries sentences,
+                         List<JSONObject> enrichments) {
         long startTime = System.currentTimeMillis();
-        enrichments.add(task.process(id, texts, languages));
+        enrichments.add(enrich(task, id, texts, languages, textsHash, duplicate, sentences));
         long endTime = System.currentTimeMillis();
         return endTime - startTime;
     }
 
-    public List<DocumentEnricher> preparePipeLine(List<String> languages, Boolean NER, Boolean wordAnnotations, Boolean synonyms,
-                                                  Boolean splitIntoParagraphs, boolean numericClassifiers, Boolean indices, Boolean spaces,
-                                                  Boolean wikiConcepts, boolean allowAlternativeNames, boolean hierarchy) {
+    /**
+     * Run a single enricher over the texts, see {@link #execute}. The cached result of the near-duplicate of the texts,
+     * if any, is used instead for the enrichers that don't depend on the exact texts.
+     *
+     * @param duplicate the earlier document whose texts are nearly the same, or null
+     * @return the result of the enricher
+     */
+    JSONObject enrich(DocumentEnricher task, String id, List<String> texts, List<String> languages, String textsHash,
+                      NearDuplicateDetector.Match duplicate, SentenceBoundaries sentences) {
+        long startNanos = System.nanoTime();
+        String cacheKey = EnrichmentCache.key(task, sentences, textsHash);
+        JSONObject enrichment = enrichmentCache.get(cacheKey);
+        if (enrichment == null && duplicate != null && !task.dependsOnExactText()) {
+            enrichment = enrichmentCache.get(EnrichmentCache.key(task, sentences, duplicate.getTextsHash()));
+            if (enrichment != null) {
+                Metrics.getInstance().increment("near_duplicate_enrichments_reused");
+            }
+        }
+        if (enrichment == null) {
+            enrichment = task.process(id, texts, languages, sentences);
+            if (task.isCacheable(enrichment)) {
+                enrichmentCache.put(cacheKey, enrichment);
+            }
+        } else if (task instanceof CoreNLPAPI && ((CoreNLPAPI) task).textIndex(languages) >= 0) {
+            // the text wasn't split again, the wikifier gets the sentences of the cached annotation
+            int textIndex = ((CoreNLPAPI) task).textIndex(languages);
+            int[] sentenceEnds = CoreNLPAPI.getSentenceEnds(enrichment);
+            if (sentenceEnds != null) {
+                sentences.publish(textIndex, sentenceEnds);
+            } else {
+                sentences.skip(textIndex);
+            }
+        }
+        Metrics.getInstance().observe("enricher_" + task.getClass().getSimpleName(), System.nanoTime() - startNanos);
+        return enrichment;
+    }
+
+    /**
+     * Look for an earlier document with the same or nearly the same texts, see {@link NearDuplicateDetector}
+     *
+     * @param textsHash the hash of the cleaned texts, as returned by {@link #prepareTexts(List, List)}
+     * @param options   the options of the document, only the documents with the same options are compared
+     * @return the document with the earlier document it duplicates, if any, to register once annotated, see
+     * {@link #registerAnnotated(NearDuplicateDetector.Checked, List, List)}, or null if the detection is disabled
+     */
+    NearDuplicateDetector.Checked findDuplicate(String id, List<String> texts, String textsHash,
+                                                RequestOptions options) {
+        return nearDuplicates == null ? null : nearDuplicates.check(id, texts, textsHash, options.getKey());
+    }
+
+    /**
+     * Add an annotated document to the near-duplicate index, if it was fully annotated: one enrichment per enricher,
+     * none of them degraded. The later duplicates of a document whose annotation failed or was cut short are annotated
+     * rather than linked to it.
+     *
+     * @param checked     the document, as returned by {@link #findDuplicate(String, List, String, RequestOptions)}
+     * @param tasks       the enrichers of the document
+     * @param enrichments their results
+     */
+    void registerAnnotated(NearDuplicateDetector.Checked checked, List<DocumentEnricher> tasks,
+                           List<JSONObject> enrichments) {
+        if (checked == null || enrichments.size() != tasks.size()) {
+            return;
+        }
+        for (JSONObject enrichment : enrichments) {
+            if (enrichment == null || enrichment.optBoolean("wikiDegraded")
+                    || enrichment.optBoolean("corenlpDegraded")) {
+                return;
+            }
+        }
+        nearDuplicates.register(checked);
+    }
+
+    /**
+     * @return the document to output instead of the annotation of a duplicate, linking it to the earlier document,
+     * or null if the duplicate is to be annotated (reusing what can be reused from the earlier document)
+     */
+    JSONObject linkDuplicate(String id, List<String> texts, NearDuplicateDetector.Match duplicate) {
+        if (duplicate == null || !nearDuplicateLink) {
+            return null;
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.increment("near_duplicates_linked");
+        for (String text : texts) {
+            metrics.increment("near_duplicate_bytes_skipped", Metrics.utf8Length(text));
+        }
+        JSONObject linked = new JSONObject();
+        linked.put("id", id);
+        linked.put("duplicateOf", duplicate.getId());
+        linked.put("similarity", duplicate.getSimilarity());
+        return linked;
+    }
+
+    /**
+     * @return the number of documents checked, of exact and near duplicates found, and of enricher results reused, or
+     * null if the detection of near-duplicates is disabled
+     */
+    public JSONObject getNearDuplicateStats() {
+        if (nearDuplicates == null) {
+            return null;
+        }
+        Metrics metrics = Metrics.getInstance();
+        JSONObject stats = nearDuplicates.getStats();
+        stats.put("mode", nearDuplicateLink ? "link" : "reuse");
+        stats.put("linked", metrics.getCount("near_duplicates_linked"));
+        stats.put("reusedEnrichments", metrics.getCount("near_duplicate_enrichments_reused"));
+        return stats;
+    }
+
+    /**
+     * @return the size, hits, misses and evictions of the enrichment results cache
+     */
+    public JSONObject getCacheStats() {
+        return enrichmentCache.getStats();
+    }
+
+    /**
+     * @return the size, hits, misses and evictions of the paragraph annotations cache, or null if PARAGRAPH_CACHE_SIZE
+     * is 0
+     */
+    public JSONObject getParagraphCacheStats() {
+        return paragraphCache == null ? null : paragraphCache.getStats();
+    }
+
+    /**
+     * Identify the languages of the texts given as "xx" or "auto", see {@link LanguageIdentifier}, before preparing the
+     * enrichers: they decide which CoreNLP pipelines run, and the language the wikifier is told.
+     * Nothing is identified if LANGUAGE_IDENTIFICATION is false.
+     *
+     * @return the languages of the texts, the given ones where they are known
+     */
+    public List<String> identifyLanguages(List<String> texts, List<String> languages) {
+        if (!languageIdentification) {
+            return languages;
+        }
+        return LanguageIdentifier.getInstance().identify(texts, languages);
+    }
+
+    /**
+     * Prepare the enrichers of a request: a CoreNLP pipeline per language with models, producing the requested output,
+     * and the wikification. The enrichers are prepared once for the same languages and options, and then shared by
+     * the requests, which only read them.
+     *
+     * @param languages the languages of the texts
+     * @param options   the options of the request
+     * @return the enrichers to run, not to be modified
+     */
+    public List<DocumentEnricher> preparePipeLine(List<String> languages, RequestOptions options) {
+        Set<String> distinctLanguages = new LinkedHashSet<>(languages);
+        String key = String.join(",", distinctLanguages) + "|" + options.getKey();
+        List<DocumentEnricher> plan;
+        synchronized (plans) {
+            plan = plans.get(key);
+        }
+        if (plan != null) {
+            Metrics.getInstance().increment("enricher_plans_reused");
+            // the languages of the plan are in use, they shouldn't be the next ones unloaded
+            for (DocumentEnricher task : plan) {
+                if (task instanceof CoreNLPAPI && !((CoreNLPAPI) task).getLanguage().equals("en")) {
+                    useLanguage(((CoreNLPAPI) task).getLanguage());
+                }
+            }
+            return plan;
+        }
         List<DocumentEnricher> tasks = new ArrayList<>();
-        enrichments = new ArrayList<>();
-        //System.out.println("Configurations Set");
-        if ((languages.contains("en") || languages.contains("xx")) && (wordAnnotations || NER)) {
-            tasks.add(initializePipelineConfigs(NER, wordAnnotations, splitIntoParagraphs, numericClassifiers, synonyms, indices, spaces, allowAlternativeNames, hierarchy));
+        if (options.is(RequestOptions.WORD_ANNOTATIONS) || options.is(RequestOptions.NER)) {
+            // a pipeline per language, their texts are annotated in parallel
+            for (String language : distinctLanguages) {
+                if (CoreNLPAPI.hasModels(language)) {
+                    tasks.add(getSuitablePipeline(language, options.getAnnotators(),
+                            options.is(RequestOptions.SPLIT_INTO_PARAGRAPHS),
+                            options.is(RequestOptions.NUMERIC_CLASSIFIERS))
+                            .withOutput(options.is(RequestOptions.WORD_ANNOTATIONS), options.is(RequestOptions.SYNONYMS),
+                                    options.is(RequestOptions.INDICES), options.is(RequestOptions.SPACES)));
+                } else if (missingLanguages.add(language)) {
+                    System.out.println("No CoreNLP models for language " + language + ", its texts are not annotated");
+                }
+            }
         }
-        if (wikiConcepts) {
-            tasks.add(wikification);
+        if (options.is(RequestOptions.WIKI_CONCEPTS)) {
+            tasks.add(getWikification(options.getWikiCutoff(), options.getWikiTopK()));
+        }
+        plan = Collections.unmodifiableList(tasks);
+        synchronized (plans) {
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Get the wikification selecting the concepts with the given cutoff and top k, sharing the client of the default one.
+     * The selections are chosen by the clients, only the most recently used ones are kept: a selection used again after
+     * being dropped gets a new wikification, whose results are cached under the same signature.
+     */
+    private Wikification getWikification(double cutoff, int topK) {
+        Wikification selection = wikification.withSelection(cutoff, topK);
+        if (selection == wikification) {
+            return wikification;
+        }
+        // the same instance for the same selection, so that its results are staged together
+        synchronized (wikifications) {
+            return wikifications.computeIfAbsent(cutoff + "|" + topK, k -> selection);
+        }
+    }
+
+    public JSONObject annotateDocument(String id, List<String> texts, List<String> languages,
+                                       List<DocumentEnricher> tasks, RequestOptions options) {
+        try {
+            return annotateDocument(id, texts, languages, tasks, options, 0);
+        } catch (TimeoutException e) {
+            // can't happen without a timeout
+            throw new IllegalStateException(e);
         }
-        //System.out.println("Pipeline Initialized");
-        return tasks;
     }
 
-    public JSONObject annotateDocument(String id, List<String> texts, List<String> languages, List<DocumentEnricher> tasks, String ontology) {
+    /**
+     * Annotate the document with the given enrichers, giving up if they don't finish within the given time.
+     * The work still pending (CoreNLP annotators, wikifier chunks) is cancelled when the time is over.
+     *
+     * @param timeoutMillis the maximum time for the enrichers in ms, a value of 0 means no limit
+     * @throws TimeoutException if the enrichers didn't finish in time
+     */
+    public JSONObject annotateDocument(String id, List<String> texts, List<String> languages,
+                                       List<DocumentEnricher> tasks, RequestOptions options, long timeoutMillis)
+            throws TimeoutException {
         assert (texts.size() == languages.size());
-        JSONObject annotatedDocument = new JSONObject();
-        annotatedDocument.put("id", id);
         boolean parallelizeTasks = true;
-        for (int i = 0; i < texts.size(); ++i) {
-            texts.set(i, cleanText(texts.get(i)));
+        Metrics metrics = Metrics.getInstance();
+        long documentStart = System.nanoTime();
+        String textsHash = prepareTexts(texts, languages);
+        NearDuplicateDetector.Checked checked = findDuplicate(id, texts, textsHash, options);
+        NearDuplicateDetector.Match duplicate = checked == null ? null : checked.getMatch();
+        JSONObject linked = linkDuplicate(id, texts, duplicate);
+        if (linked != null) {
+            return linked;
         }
+        List<JSONObject> enrichments = Collections.synchronizedList(new ArrayList<>());
+        SentenceBoundaries sentences = prepareSentenceBoundaries(languages, tasks);
         if (parallelizeTasks) {
             try {
-                ExecutorService.parallelize(tasks, (task) -> {
-                    return execute(task, id, texts, languages);
-                }, 2);
+                ExecutorService.parallelize("enrichers", tasks, (task) -> {
+                    return execute(task, id, texts, languages, textsHash, duplicate, sentences, enrichments);
+                }, Math.max(2, tasks.size()), timeoutMillis);
+                registerAnnotated(checked, tasks, enrichments);
             } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
+            } catch (TimeoutException e) {
+                metrics.increment("deadline_exceeded");
+                throw e;
             }
         } else {
             for (DocumentEnricher task : tasks) {
-                execute(task, id, texts, languages);
+                execute(task, id, texts, languages, textsHash, duplicate, sentences, enrichments);
             }
+            registerAnnotated(checked, tasks, enrichments);
         }
+        return mergeEnrichments(id, enrichments, options, documentStart);
+    }
+
+    /**
+     * Clean the texts of a document in place, see {@link #cleanText(String)}
+     *
+     * @return the hash of the cleaned texts, used as key of the enrichment cache and to tell exact duplicates apart
+     */
+    String prepareTexts(List<String> texts, List<String> languages) {
+        Metrics metrics = Metrics.getInstance();
+        for (int i = 0; i < texts.size(); ++i) {
+            long start = System.nanoTime();
+            texts.set(i, cleanText(texts.get(i)));
+            metrics.observe("clean_text", System.nanoTime() - start);
+            metrics.increment("bytes", Metrics.utf8Length(texts.get(i)));
+        }
+        return enrichmentCache.isEnabled() || nearDuplicates != null ? EnrichmentCache.hashTexts(texts, languages) : "";
+    }
+
+    /**
+     * @return the sentence boundaries shared by the enrichers of a document: the wikifier chunks the texts along the
+     * sentences found by CoreNLP, as soon as they are split. The texts no CoreNLP pipeline annotates are marked as not
+     * split.
+     */
+    SentenceBoundaries prepareSentenceBoundaries(List<String> languages, List<DocumentEnricher> tasks) {
+        SentenceBoundaries sentences = new SentenceBoundaries(languages.size());
+        boolean[] split = new boolean[languages.size()];
+        for (DocumentEnricher task : tasks) {
+            if (task instanceof CoreNLPAPI) {
+                int textIndex = ((CoreNLPAPI) task).textIndex(languages);
+                if (textIndex >= 0) {
+                    split[textIndex] = true;
+                }
+            }
+        }
+        for (int i = 0; i < split.length; ++i) {
+            if (!split[i]) {
+                sentences.markNotSplit(i);
+            }
+        }
+        return sentences;
+    }
+
+    /**
+     * Merge the results of the enrichers of a document, and map them with the ontology
+     *
+     * @param options       the options of the request, deciding the ontology mapping
+     * @param documentStart the time the annotation of the document started, as given by {@link System#nanoTime()}
+     * @return the annotated document
+     */
+    JSONObject mergeEnrichments(String id, List<JSONObject> enrichments, RequestOptions options, long documentStart) {
+        Metrics metrics = Metrics.getInstance();
+        JSONObject annotatedDocument = new JSONObject();
+        annotatedDocument.put("id", id);
         JSONObject annotationsObj = new JSONObject();
         for (JSONObject enrichment : enrichments) {
+            if (enrichment == null) {
+                continue;
+            }
             for (String key : enrichment.keySet()) {
-                annotationsObj.put(key, enrichment.get(key));
+                //cached enrichments may come from a document with a different id
+                annotationsObj.put(key, key.equals("id") ? id : enrichment.get(key));
             }
         }
         annotatedDocument.put("annotations", annotationsObj);
-        if (!ontology.equals("")) {
-            ontMapping.MapWithOntology(annotationsObj, ontology);
+        if (!options.getOntology().equals("")) {
+            long start = System.nanoTime();
+            ontMapping.withOptions(options.is(RequestOptions.ALLOW_ALTERNATIVE_NAMES), options.is(RequestOptions.HIERARCHY))
+                    .MapWithOntology(annotationsObj, options.getOntology());
+            metrics.observe("ontology_mapping", System.nanoTime() - start);
         }
+        metrics.observe("document", System.nanoTime() - documentStart);
+        metrics.increment("documents");
         return annotatedDocument;
     }
 
-    public JSONObject annotateDocument(String id, List<String> texts, List<String> languages,
-                                       Boolean NER, Boolean wordAnnotations, Boolean synonyms,
-                                       Boolean splitIntoParagraphs, Boolean numericClassifiers, Boolean indices, Boolean spaces,
-                                       Boolean wikiConcepts,
-                                       String ontology, Boolean allowAlternativeNames, Boolean hierarchy) {
-        System.out.println("Annotation started");
-        //initiate default parameters if null
-        if (NER == null) {
-            NER = true;
-        }
-        if (wordAnnotations == null) {
-            wordAnnotations = true;
-        }
-        if (synonyms == null) {
-            synonyms = true;
-        }
-        if (splitIntoParagraphs == null) {
-            splitIntoParagraphs = true;
-        }
-        if (indices == null) {
-            indices = false;
-        }
-        if (spaces == null) {
-            spaces = false;
+    /**
+     * Re-run the ontology mapping over an already annotated document, without running CoreNLP and the wikifier again.
+     * The stored `annotatedWords`, `NE` and `wiki` fields are mapped, and any previous `ontology_terms` are replaced.
+     *
+     * @param annotatedDocument the annotated document as produced by
+     *                          {@link #annotateDocument(String, List, List, List, RequestOptions)}
+     * @param ontology          the ontology to map with, "ALL" for all the ontologies, or "" to remove the mapping
+     * @return the same document object, with the new ontology terms
+     */
+    public JSONObject remapDocument(JSONObject annotatedDocument, String ontology, boolean allowAlternativeNames,
+                                    boolean hierarchy) {
+        if (!annotatedDocument.has("annotations")) {
+            return annotatedDocument;
         }
-        if (wikiConcepts == null) {
-            wikiConcepts = true;
-        }
-        if (ontology == null) {
-            ontology = "InforMEA";
-        }
-        if (allowAlternativeNames == null) {
-            allowAlternativeNames = true;
-        }
-        if (hierarchy == null) {
-            hierarchy = false;
-        }
-        if (numericClassifiers==null){
-            numericClassifiers=true;
+        JSONObject annotationsObj = annotatedDocument.getJSONObject("annotations");
+        annotationsObj.remove("ontology_terms");
+        if (!ontology.equals("")) {
+            long start = System.nanoTime();
+            ontMapping.withOptions(allowAlternativeNames, hierarchy).MapWithOntology(annotationsObj, ontology);
+            Metrics.getInstance().observe("ontology_mapping", System.nanoTime() - start);
         }
-        List<DocumentEnricher> tasks = preparePipeLine(languages, NER, wordAnnotations, synonyms, splitIntoParagraphs, numericClassifiers, indices, spaces, wikiConcepts, allowAlternativeNames, hierarchy);
-        return annotateDocument(id, texts, languages, tasks, ontology);
+        return annotatedDocument;
+    }
 
+    /**
+     * Annotate the document of a request, see {@link #annotateDocument(String, List, List, List, RequestOptions, long)}
+     *
+     * @param languages     the languages of the texts, "xx" or "auto" for the ones to identify
+     * @param options       the options of the request
+     * @param timeoutMillis the maximum time for the enrichers in ms, a value of 0 means no limit
+     * @throws TimeoutException if the enrichers didn't finish in time
+     */
+    public JSONObject annotateDocument(String id, List<String> texts, List<String> languages, RequestOptions options,
+                                       long timeoutMillis) throws TimeoutException {
+        System.out.println("Annotation started");
+        languages = identifyLanguages(texts, languages);
+        List<DocumentEnricher> tasks = preparePipeLine(languages, options);
+        return annotateDocument(id, texts, languages, tasks, options, timeoutMillis);
     }
 }
@@ -4,4 +4,51 @@ import java.util.List;
 
 public interface DocumentEnricher {
     JSONObject process(String id, List<String> text, List<String> language);
+
+    /**
+     * Same as {@link #process(String, List, List)}, sharing the sentence boundaries of the texts with the other
+     * enrichers of the request. Enrichers that split the texts into sentences publish them, and enrichers that need
+     * them may wait for them.
+     *
+     * @param sentences the sentence boundaries of the texts of the request
+     */
+    default JSONObject process(String id, List<String> text, List<String> language, SentenceBoundaries sentences) {
+        return process(id, text, language);
+    }
+
+    /**
+     * @param enrichment a result of the enricher
+     * @return whether the result may be cached, false for results that are incomplete because of a transient error
+     */
+    default boolean isCacheable(JSONObject enrichment) {
+        return true;
+    }
+
+    /**
+     * @return whether the result depends on the exact characters of the texts (e.g. through character offsets), so
+     * that the result for a near-duplicate text can't be used instead, see {@link NearDuplicateDetector}
+     */
+    default boolean dependsOnExactText() {
+        return true;
+    }
+
+    /**
+     * A string that uniquely identifies the enricher and every option that changes its output.
+     * Used as part of the key when caching enrichment results, so two enrichers (or the same enricher with different
+     * options) never share cached results.
+     *
+     * @return the options signature of the enricher
+     */
+    String getOptionsSignature();
+
+    /**
+     * Same as {@link #getOptionsSignature()}, for the enrichers whose output also depends on the sentence boundaries
+     * made available to them by the other enrichers of the request
+     *
+     * @param sentences the sentence boundaries of the texts of the request, may be null
+     * @return the options signature of the enricher for the request
+     */
+    default String getOptionsSignature(SentenceBoundaries sentences) {
+        return getOptionsSignature();
+    }
 }
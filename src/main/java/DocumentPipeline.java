@@ -0,0 +1,195 @@
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Staged, asynchronous annotation of a stream of documents, used in batch mode.
+ * <p>
+ * Each enricher runs on its own stage (CoreNLP on one per language), as do the ontology mapping and the writing of
+ * the output, so the stages of consecutive documents overlap: while a document waits on the wikifier, CoreNLP already
+ * annotates the next one, and the previous one is being mapped and written. The wikifier stage, which mostly waits
+ * on the network, works on up to {@link #maxInFlight} documents at the same time; the other stages work on one
+ * document at a time.
+ * <p>
+ * At most {@link #maxInFlight} documents are in the pipeline at the same time, and the documents are written in the
+ * order they were submitted. A document that fails is written as its id and the error, so that the output keeps one
+ * line per document.
+ */
+public class DocumentPipeline implements AutoCloseable {
+    private final DocumentAnnotatorMicroservice annotator;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    // the stages of the enrichers, by enricher, or by language for the CoreNLP pipelines so that the pipelines of an
+    // unloaded language aren't kept
+    private final Map<Object, java.util.concurrent.ExecutorService> enricherStages = new ConcurrentHashMap<>();
+    private final java.util.concurrent.ExecutorService mappingStage;
+    private final java.util.concurrent.ExecutorService writingStage;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private int errors;
+
+    /**
+     * Constructor for class #DocumentPipeline
+     *
+     * @param annotator   the annotator providing the enrichers and the ontology mapping
+     * @param maxInFlight the maximum number of documents in the pipeline at the same time
+     */
+    public DocumentPipeline(DocumentAnnotatorMicroservice annotator, int maxInFlight) {
+        this.annotator = annotator;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.mappingStage = newStage("ontology_mapping", 1);
+        this.writingStage = newStage("writing", 1);
+        Metrics.getInstance().registerGauge("pipeline_documents_in_flight",
+                () -> this.maxInFlight - inFlight.availablePermits());
+    }
+
+    private static java.util.concurrent.ExecutorService newStage(String name, int nThreads) {
+        return Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r, "stage-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submit a document to the pipeline, waiting if the pipeline is full
+     *
+     * @param id        the id of the document
+     * @param texts     the texts of the document, one per language
+     * @param languages the languages of the texts
+     * @param enrichers the enrichers to run, as returned by
+     *                  {@link DocumentAnnotatorMicroservice#preparePipeLine(List, RequestOptions)}
+     * @param options   the options of the documents, deciding the ontology mapping
+     * @param writer    called with the annotated document, or its failure (see {@link #failed}), on the writing
+     *                  stage, in the order of submission
+     */
+    public void submit(String id, List<String> texts, List<String> languages, List<DocumentEnricher> enrichers,
+                       RequestOptions options, Consumer<JSONObject> writer) throws InterruptedException {
+        inFlight.acquire();
+        // until the document reaches the writing stage, which releases its place, a failure releases it here
+        boolean queued = false;
+        try {
+            CompletableFuture<JSONObject> document;
+            try {
+                document = annotate(id, texts, languages, enrichers, options);
+            } catch (RuntimeException e) {
+                document = CompletableFuture.completedFuture(failed(id, e));
+            }
+            lastWrite = lastWrite.thenCombineAsync(document, (v, annotation) -> {
+                try {
+                    if (annotation != null) {
+                        writer.accept(annotation);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            }, writingStage);
+            queued = true;
+        } finally {
+            if (!queued) {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Start annotating a document on the stages, see {@link #submit}
+     *
+     * @return the annotated document, or its failure
+     */
+    private CompletableFuture<JSONObject> annotate(String id, List<String> texts, List<String> languages,
+                                                   List<DocumentEnricher> enrichers, RequestOptions options) {
+        long documentStart = System.nanoTime();
+        String textsHash = annotator.prepareTexts(texts, languages);
+        NearDuplicateDetector.Checked checked = annotator.findDuplicate(id, texts, textsHash, options);
+        NearDuplicateDetector.Match duplicate = checked == null ? null : checked.getMatch();
+        JSONObject linked = annotator.linkDuplicate(id, texts, duplicate);
+        // a linked duplicate isn't enriched, it's only written in its turn
+        List<DocumentEnricher> tasks = linked != null ? new ArrayList<>() : enrichers;
+        SentenceBoundaries sentences = annotator.prepareSentenceBoundaries(languages, tasks);
+        List<CompletableFuture<JSONObject>> enrichments = new ArrayList<>();
+        for (DocumentEnricher enricher : tasks) {
+            Object stageKey = enricher instanceof CoreNLPAPI
+                    ? "CoreNLPAPI_" + ((CoreNLPAPI) enricher).getLanguage() : enricher;
+            java.util.concurrent.ExecutorService stage = enricherStages.computeIfAbsent(stageKey,
+                    k -> newStage(enricher.getClass().getSimpleName(),
+                            enricher instanceof Wikification ? maxInFlight : 1));
+            enrichments.add(CompletableFuture.supplyAsync(
+                    () -> annotator.enrich(enricher, id, texts, languages, textsHash, duplicate, sentences),
+                    stage));
+        }
+        return CompletableFuture
+                .allOf(enrichments.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(v -> {
+                    if (linked != null) {
+                        return linked;
+                    }
+                    List<JSONObject> results = new ArrayList<>();
+                    for (CompletableFuture<JSONObject> enrichment : enrichments) {
+                        results.add(enrichment.join());
+                    }
+                    annotator.registerAnnotated(checked, tasks, results);
+                    return annotator.mergeEnrichments(id, results, options, documentStart);
+                }, mappingStage)
+                .exceptionally(e -> failed(id, e));
+    }
+
+    /**
+     * Count a document that failed
+     *
+     * @return the line written in its place: its id, and the error
+     */
+    private JSONObject failed(String id, Throwable e) {
+        e.printStackTrace();
+        synchronized (this) {
+            errors++;
+        }
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return new JSONObject().put("id", id).put("error", String.valueOf(cause));
+    }
+
+    /**
+     * Wait until all the submitted documents are written
+     */
+    public void flush() {
+        lastWrite.join();
+    }
+
+    /**
+     * @return the number of documents that failed to be annotated, and were written as their failure
+     */
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Wait until all the submitted documents are written, and stop the stages. If interrupted while waiting for the
+     * writing stage to stop, the interrupt status of the thread is set again.
+     */
+    @Override
+    public void close() {
+        flush();
+        for (java.util.concurrent.ExecutorService stage : enricherStages.values()) {
+            stage.shutdown();
+        }
+        mappingStage.shutdown();
+        writingStage.shutdown();
+        try {
+            writingStage.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,10 +2,16 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This program is used to annotate articles using CoreNLP pipeline
@@ -14,6 +20,9 @@ import java.util.Scanner;
  * <p>
  * The program process files stored in a given directory.
  * Each file should contain list of json files, one per line, each should contain an id column, and a text column.
+ * The texts may be given per language, in the text columns suffixed with the language (e.g. "text_en") listed in the
+ * "languages" field. The languages given as "xx" or "auto", or the language of the text column if there is no
+ * "languages" field, are identified by {@link LanguageIdentifier}.
  * The program will create an output file for each input file, and write the corresponding annotations in it.
  * <p>
  * To use the program, modify the configuration in the config file and then run the program.
@@ -33,10 +42,35 @@ import java.util.Scanner;
  * - @writeBatch [0,inf): The number of annotated articles to process before writing on disk. This is used in case that writing
  * on disk is the bottleneck.Lower value means more time, higher value means higher memory usage. A good starting value
  * is 100. A value of 0 will make writing to disk once per file it.
+ * The output is written on its own thread, and is also written when @outputBufferSize bytes are buffered, or
+ * @outputFlushInterval ms after the last write.
+ * - @outputBufferSize [4096,inf): the size in bytes of the output buffer.
+ * - @outputQueueSize [1,inf): the maximum number of annotated articles waiting to be written.
+ * - @outputFlushInterval [0,inf): the maximum time in ms an annotated article waits in the buffer before being written.
+ * A value of 0 will deactivate it.
+ * - @outputFsync: if true, the output is forced to the disk each time it's written.
+ * - @outputCompression: "none" (default), "gzip" or "zstd" to compress the output files on the fly. The extension of
+ * the compression of the input file, if any, is replaced by the one of the output compression (".gz" or ".zst").
+ * - @inputCompression: "auto" (default) to decompress the input files according to their extension (".gz", ".zst" or
+ * ".zstd"), or "none", "gzip" or "zstd" for all the files.
  * - @fileFrom: the index of the file in the directory to start the process from. This is used especially for running
  * multiple instances of the program in parallel
  * - @fileTo: the index of the file in the directory to end the process at (inclusive). This is used especially for
  * running multiple instances of the program in parallel
+ * - @mode: "annotate" (default) to annotate raw documents, or "remap" to read files previously produced by this program
+ * from @inputDir and only run the ontology mapping again (with @ontology, @hierarchy and @allowAlternativeNames) over
+ * the stored annotations, without running CoreNLP and the wikifier.
+ * - @metricsReportInterval: [0,inf), the number of seconds between two reports of the per-stage latencies and the
+ * throughput of the program. A value of 0 will deactivate it.
+ * - @annotators: optional list of the CoreNLP annotators to run, among "tokenize", "ssplit", "pos", "lemma" and "ner".
+ * The annotators they depend on are added. If given, only the annotations they provide are produced (e.g. ["ssplit"]
+ * for the words and spaces only), otherwise they follow @NER and @wordAnnotations.
+ * - @wikiCutoff (0,1]: the wiki concepts of each chunk are kept by decreasing pageRank until their squared pageRanks
+ * sum up to this fraction of the total (default 0.8).
+ * - @wikiTopK [0,inf): the maximum number of wiki concepts kept for each chunk (default 0, no limit).
+ * - @pipelineDepth [1,inf): the maximum number of documents being annotated at the same time. The stages of consecutive
+ * documents (CoreNLP, wikifier, ontology mapping and writing) overlap, e.g. CoreNLP annotates a document while the
+ * previous one waits on the wikifier. A value of 1 annotates one document at a time.
  * <p>
  * Main class of the program.
  */
@@ -57,10 +91,22 @@ public class DocumentsAnnotator {
     private static boolean indices;
     private static boolean wordAnnotations;
     private static boolean wikiConcepts;
+    private static double wikiCutoff;
+    private static int wikiTopK;
     private static String ontology;
     private static boolean allowAlternativeNames;
     private static boolean hierarchy;
     private static boolean numericClassifiers;
+    private static String mode;
+    private static int metricsReportInterval;
+    private static List<String> annotators;
+    private static int pipelineDepth;
+    private static int outputBufferSize;
+    private static int outputQueueSize;
+    private static long outputFlushInterval;
+    private static boolean outputFsync;
+    private static String outputCompression;
+    private static String inputCompression;
     private static final String configPath = "config/config.json";
     private static DocumentAnnotatorMicroservice annotator;
 
@@ -90,9 +136,28 @@ public class DocumentsAnnotator {
             indices = (Boolean) config.get("indices");
             wordAnnotations = (Boolean) config.get("wordAnnotations");
             wikiConcepts = (Boolean) config.get("wikiConcepts");
+            wikiCutoff = config.optDouble("wikiCutoff", Wikification.DEFAULT_CUTOFF);
+            wikiTopK = config.optInt("wikiTopK", 0);
             ontology = String.valueOf(config.get("ontology"));
             allowAlternativeNames = (Boolean) config.get("allowAlternativeNames");
             hierarchy = (Boolean) config.get("hierarchy");
+            mode = config.optString("mode", "annotate");
+            metricsReportInterval = config.optInt("metricsReportInterval", 0);
+            pipelineDepth = config.optInt("pipelineDepth", 4);
+            outputBufferSize = config.optInt("outputBufferSize", 1 << 20);
+            outputQueueSize = config.optInt("outputQueueSize", 1000);
+            outputFlushInterval = config.optLong("outputFlushInterval", 1000);
+            outputFsync = config.optBoolean("outputFsync", false);
+            outputCompression = config.optString("outputCompression", "none");
+            inputCompression = config.optString("inputCompression", "auto");
+            JSONArray annotatorsArr = config.optJSONArray("annotators");
+            annotators = null;
+            if (annotatorsArr != null) {
+                annotators = new ArrayList<>();
+                for (int i = 0; i < annotatorsArr.length(); ++i) {
+                    annotators.add(annotatorsArr.getString(i));
+                }
+            }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             NER = true;
@@ -112,9 +177,21 @@ public class DocumentsAnnotator {
             indices = true;
             wordAnnotations = true;
             wikiConcepts = true;
+            wikiCutoff = Wikification.DEFAULT_CUTOFF;
+            wikiTopK = 0;
             ontology = "InforMEA";
             allowAlternativeNames = true;
             hierarchy = false;
+            mode = "annotate";
+            metricsReportInterval = 0;
+            annotators = null;
+            pipelineDepth = 4;
+            outputBufferSize = 1 << 20;
+            outputQueueSize = 1000;
+            outputFlushInterval = 1000;
+            outputFsync = false;
+            outputCompression = "none";
+            inputCompression = "auto";
         }
     }
 
@@ -137,6 +214,96 @@ public class DocumentsAnnotator {
         return fileList;
     }
 
+    /**
+     * @param file the name of the input file
+     * @return the path of the output file of the given input file
+     */
+    private static String outputPath(String file) {
+        CompressionCodec codec = CompressionCodec.forName(outputCompression);
+        return outputDir + CompressionCodec.stripExtension(file) + codec.getExtension();
+    }
+
+    /**
+     * Open an output file, written asynchronously with the configured flush policy
+     *
+     * @param path the path of the output file, see {@link #outputPath(String)}
+     * @return the writer of the output file
+     */
+    private static AsyncOutputWriter openOutput(String path) throws IOException {
+        return new AsyncOutputWriter(path, outputBufferSize, outputQueueSize, writeBatch, outputFlushInterval,
+                outputFsync, CompressionCodec.forName(outputCompression));
+    }
+
+    /**
+     * Open an input file for reading, decompressing it if needed. The compression is given by
+     * {@link #inputCompression}, or by the extension of the file if it's "auto". Compressed files are decompressed
+     * on their own thread, ahead of the reading.
+     *
+     * @param file the name of the input file
+     * @return the reader of the lines of the file
+     */
+    private static BufferedReader openInput(String file) throws IOException {
+        CompressionCodec codec = inputCompression.equals("auto") ? CompressionCodec.forFile(file)
+                : CompressionCodec.forName(inputCompression);
+        InputStream in = new FileInputStream(inputDir + file);
+        if (codec != CompressionCodec.NONE) {
+            in = new ReadAheadInputStream(codec.decompress(new BufferedInputStream(in, 1 << 16)), 1 << 20, 4);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Re-run only the ontology mapping over files previously annotated by this program.
+     * Each line of the files in {@link #inputDir} should be an annotated document, which will be mapped again with
+     * the configured ontology and written to the file of the same name in {@link #outputDir}.
+     * Lines that can't be parsed are written back unchanged. Each file is written next to its output file, and renamed
+     * once complete, so that the files can be re-mapped in place ({@link #outputDir} the same as {@link #inputDir}).
+     */
+    private static void remapFiles() {
+        annotator = new DocumentAnnotatorMicroservice(false);
+        ArrayList<String> fileList = listFilesForFolder(new File(inputDir));
+        int itemCounter = 0;
+        int errorCounter = 0;
+        int totalFilesProcessed = 0;
+        for (int fileCounter = fileFrom; fileCounter < fileList.size() && fileCounter <= fileTo; fileCounter++) {
+            String file = fileList.get(fileCounter);
+            System.out.println("Re-mapping file: " + file);
+            String output = outputPath(file);
+            String partial = output + ".partial";
+            try {
+                try (BufferedReader reader = openInput(file);
+                     AsyncOutputWriter out = openOutput(partial)) {
+                    String annotationJson;
+                    while ((annotationJson = reader.readLine()) != null) {
+                        ++itemCounter;
+                        Object line = annotationJson;
+                        try {
+                            JSONObject annotation = new JSONObject(annotationJson);
+                            line = annotator.remapDocument(annotation, ontology, allowAlternativeNames, hierarchy);
+                        } catch (Exception e) {
+                            errorCounter++;
+                            System.out.println("Found " + errorCounter + " errors");
+                        }
+                        out.write(line);
+                        if (verbose > 0 && itemCounter % verbose == 0) {
+                            System.out.println("Re-mapped " + itemCounter + " articles");
+                        }
+                    }
+                }
+                Files.move(Paths.get(partial), Paths.get(output), StandardCopyOption.REPLACE_EXISTING);
+                ++totalFilesProcessed;
+                System.out.println("Processed " + totalFilesProcessed + " files");
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                // the output file, if any, is left as it was
+                new File(partial).delete();
+            }
+        }
+        System.out.println("Re-mapping Finished");
+        System.out.println("Total Files Processed: " + totalFilesProcessed);
+        System.out.println("Total Articles Processed: " + itemCounter);
+    }
+
     /**
      * The main method of the program.
      * It first loads the config.
@@ -153,6 +320,22 @@ public class DocumentsAnnotator {
     public static void main(String[] args) {
         //loading the config
         loadConfig();
+        long runStart = System.currentTimeMillis();
+        Metrics.getInstance().startPeriodicReport(metricsReportInterval);
+        if (mode.equals("remap")) {
+            remapFiles();
+        } else {
+            annotateFiles();
+        }
+        if (metricsReportInterval > 0) {
+            Metrics.getInstance().stopPeriodicReport((System.currentTimeMillis() - runStart) / 1000.0);
+        }
+    }
+
+    /**
+     * Annotate the documents of the files in the selected range, see {@link #main(String[])}
+     */
+    private static void annotateFiles() {
         //initiating the pipeline and output list
 /*
         CoreNLPAPI corenlp = new CoreNLPAPI(NER, splitIntoParagraphs, temporalEntities);
@@ -165,7 +348,10 @@ public class DocumentsAnnotator {
         List<String> languagesSupported = new ArrayList<>();
         languagesSupported.add("xx");
 
-        ArrayList<JSONObject> output = new ArrayList<>();
+        DocumentPipeline pipeline = new DocumentPipeline(annotator, pipelineDepth);
+        RequestOptions options = RequestOptions.of(annotators, NER, wordAnnotations, synonyms, splitIntoParagraphs,
+                numericClassifiers, indices, spaces, wikiConcepts, wikiCutoff, wikiTopK, ontology,
+                allowAlternativeNames, hierarchy);
 
         //getting the names of the files in the directory
         ArrayList<String> fileList = listFilesForFolder(new File(inputDir));
@@ -177,68 +363,102 @@ public class DocumentsAnnotator {
         for (int fileCounter = fileFrom; fileCounter < fileList.size() && fileCounter <= fileTo; fileCounter++) {
             String file = fileList.get(fileCounter);
             System.out.println("Processing file: " + file);
-            try {
-                BufferedReader reader = new BufferedReader(new FileReader(inputDir + file));
+            try (BufferedReader reader = openInput(file);
+                 AsyncOutputWriter out = openOutput(outputPath(file))) {
                 String articleJson;
-                PrintWriter out = new PrintWriter(outputDir + file);
-                //read one article per line
-                while ((articleJson = reader.readLine()) != null) {
-                    String articleId;
-                    ArrayList<String> articleTexts = new ArrayList<>();
-                    ArrayList<String> languages = new ArrayList<>();
-                    ++itemCounter;
-                    try {
-                        //extract the id and text
-                        JSONObject article = new JSONObject(articleJson);
-                        articleId = String.valueOf(article.get(idColumnName));
-                        JSONArray langArr = article.getJSONArray("languages");
-                        for (Object langItem : langArr) {
-                            String lang = (String) langItem;
-                            String textFieldName = textColumnName + "_" + lang;
-                            if (!article.has(textFieldName)) {
-                                throw new NoSuchFieldException(textFieldName);
+                AtomicBoolean writerInterrupted = new AtomicBoolean();
+                AtomicReference<IOException> writeFailure = new AtomicReference<>();
+                try {
+                    //read one article per line
+                    while ((articleJson = reader.readLine()) != null) {
+                        String articleId;
+                        ArrayList<String> articleTexts = new ArrayList<>();
+                        ArrayList<String> languages = new ArrayList<>();
+                        ++itemCounter;
+                        try {
+                            //extract the id and text
+                            JSONObject article = new JSONObject(articleJson);
+                            articleId = String.valueOf(article.get(idColumnName));
+                            //without languages, the text is in the text column, and its language is identified
+                            JSONArray langArr = article.has("languages") ? article.getJSONArray("languages")
+                                    : new JSONArray().put(LanguageIdentifier.UNKNOWN);
+                            for (Object langItem : langArr) {
+                                String lang = (String) langItem;
+                                String textFieldName = article.has("languages") ? textColumnName + "_" + lang
+                                        : textColumnName;
+                                if (!article.has(textFieldName)) {
+                                    throw new NoSuchFieldException(textFieldName);
+                                }
+                                languages.add(lang);
+                                articleTexts.add(article.getString(textFieldName));
                             }
-                            languages.add(lang);
-                            articleTexts.add(article.getString(textFieldName));
+                        } catch (Exception e) {
+                            articleId = String.valueOf(itemCounter);
+                            errorCounter++;
+                            System.out.println("Found " + errorCounter + " errors");
                         }
-                    } catch (Exception e) {
-                        articleId = String.valueOf(itemCounter);
-                        errorCounter++;
-                        System.out.println("Found " + errorCounter + " errors");
-                    }
-                    //annotate the article
-                    List<DocumentEnricher> enrichers = annotator.preparePipeLine(languages, NER, wordAnnotations, synonyms, splitIntoParagraphs, numericClassifiers, indices, spaces, wikiConcepts, allowAlternativeNames, hierarchy);
-                    JSONObject annotation = annotator.annotateDocument(articleId, articleTexts, languages, enrichers, ontology);
-                    assert annotation != null;
-                    output.add(annotation);
-                    if (writeBatch > 0 && itemCounter % writeBatch == 0) {
-                        for (JSONObject object : output) {
-                            object.write(out);
-                            out.println();
+                        //annotate the article, it's written once it leaves the pipeline
+                        List<String> articleLanguages = annotator.identifyLanguages(articleTexts, languages);
+                        List<DocumentEnricher> enrichers = annotator.preparePipeLine(articleLanguages, options);
+                        int item = itemCounter;
+                        pipeline.submit(articleId, articleTexts, articleLanguages, enrichers, options, annotation -> {
+                            if (writeFailure.get() != null) {
+                                return;
+                            }
+                            try {
+                                out.write(annotation);
+                            } catch (IOException e) {
+                                // the reading stops at its next article, the next articles aren't written
+                                writeFailure.compareAndSet(null, e);
+                            } catch (InterruptedException e) {
+                                // the reading stops at its next article
+                                Thread.currentThread().interrupt();
+                                writerInterrupted.set(true);
+                            }
+                            //state progress when number of articles processed is a multiple of verbose (if verbose is activated)
+                            if (verbose > 0 && item % verbose == 0) {
+                                System.out.println("Processed " + item + " articles");
+                            }
+                        });
+                        if (writerInterrupted.get()) {
+                            throw new InterruptedException("Writing " + file + " was interrupted");
+                        }
+                        if (writeFailure.get() != null) {
+                            throw new IOException("Writing " + file + " failed", writeFailure.get());
                         }
-                        output.clear();
-                    }
-                    //state progress when number of articles processed is a multiple of verbose (if verbose is activated)
-                    if (verbose > 0 && itemCounter % verbose == 0) {
-                        System.out.println("Processed " + itemCounter + " articles");
                     }
+                } finally {
+                    //write any remaining annotations to the disk (will be all annotations if writeBatch is big or
+                    //disabled), the output is closed once the articles submitted, even on failure, are out of the
+                    //pipeline
+                    pipeline.flush();
                 }
-                //write any remaining annotations to the disk (will be all annotations if writeBatch is big or disabled
-                for (JSONObject object : output) {
-                    object.write(out);
-                    out.println();
+                if (writeFailure.get() != null) {
+                    throw new IOException("Writing " + file + " failed", writeFailure.get());
                 }
-                output.clear();
-                out.close();
                 ++totalFilesProcessed;
                 System.out.println("Processed " + totalFilesProcessed + " files");
-
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                break;
             }
         }
+        pipeline.close();
+        if (pipeline.getErrors() > 0) {
+            System.out.println("Failed to annotate " + pipeline.getErrors() + " articles");
+        }
         System.out.println("Processing Finished");
         System.out.println("Total Files Processed: " + totalFilesProcessed);
         System.out.println("Total Articles Processed: " + itemCounter);
+        System.out.println("Enrichment Cache: " + annotator.getCacheStats());
+        if (annotator.getParagraphCacheStats() != null) {
+            System.out.println("Paragraph Cache: " + annotator.getParagraphCacheStats());
+        }
+        if (annotator.getNearDuplicateStats() != null) {
+            System.out.println("Near-duplicates: " + annotator.getNearDuplicateStats());
+        }
     }
 }
\ No newline at end of file
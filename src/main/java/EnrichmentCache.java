@@ -0,0 +1,151 @@
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the results of individual {@link DocumentEnricher}s.
+ * <p>
+ * Entries are keyed by the options signature of the enricher and a hash of the cleaned texts (and their languages),
+ * so a change in the options of one stage, or in a later stage like the ontology mapping, doesn't invalidate the
+ * cached results of the others.
+ * <p>
+ * Cached objects are shared between documents, they must be treated as read-only by the callers.
+ */
+public class EnrichmentCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, JSONObject> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor for class #EnrichmentCache
+     *
+     * @param maxSize the maximum number of results kept in the cache, a value of 0 disables the cache
+     */
+    public EnrichmentCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                if (size() > EnrichmentCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    Metrics.getInstance().increment("enrichment_cache_evictions");
+                    return true;
+                }
+                return false;
+            }
+        };
+        Metrics.getInstance().registerGauge("enrichment_cache_size", this::size);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Hash the given texts along with their languages, to be used as the text part of the cache key
+     *
+     * @param texts     the (cleaned) texts of the document
+     * @param languages the language of each text
+     * @return hex encoded SHA-256 of the texts
+     */
+    public static String hashTexts(List<String> texts, List<String> languages) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < texts.size(); ++i) {
+                digest.update(languages.get(i).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(texts.get(i).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String key(DocumentEnricher enricher, String textsHash) {
+        return enricher.getOptionsSignature() + "|" + textsHash;
+    }
+
+    /**
+     * Same as {@link #key(DocumentEnricher, String)}, for the result of the enricher with the given sentence
+     * boundaries, see {@link DocumentEnricher#getOptionsSignature(SentenceBoundaries)}
+     */
+    public static String key(DocumentEnricher enricher, SentenceBoundaries sentences, String textsHash) {
+        return enricher.getOptionsSignature(sentences) + "|" + textsHash;
+    }
+
+    public JSONObject get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        JSONObject result;
+        synchronized (entries) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            Metrics.getInstance().increment("enrichment_cache_misses");
+        } else {
+            hits.incrementAndGet();
+            Metrics.getInstance().increment("enrichment_cache_hits");
+        }
+        return result;
+    }
+
+    public void put(String key, JSONObject result) {
+        if (!isEnabled() || result == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, result);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return json object with the size, capacity, hits, misses, evictions and hit rate of the cache
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("size", size());
+        stats.put("maxSize", maxSize);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("evictions", evictions.get());
+        stats.put("hitRate", h + m == 0 ? 0.0 : h * 1.0 / (h + m));
+        return stats;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregates the named entity mentions of a document by their (type, text) pair.
+ * <p>
+ * Mentions are counted in a single pass with {@link #add(String, String, Object)}, which looks the pair up in a small
+ * hash table without building a combined key. {@link #getEntities(int)} then orders the entities by frequency
+ * (most frequent first, ties in order of first occurrence) with a counting sort, optionally keeping only the top ones.
+ *
+ * @param <M> the type of the mentions, the first mention of each entity is kept to represent it
+ */
+public class EntityAggregator<M> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * An entity, identified by its type and text, with the number of times it was mentioned
+     */
+    public static class Entity<M> {
+        private final String type;
+        private final String text;
+        private final int hash;
+        private final M firstMention;
+        private int frequency;
+        private boolean selected;
+        private Entity<M> next;
+
+        private Entity(String type, String text, int hash, M firstMention) {
+            this.type = type;
+            this.text = text;
+            this.hash = hash;
+            this.firstMention = firstMention;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public M getFirstMention() {
+            return firstMention;
+        }
+
+        public int getFrequency() {
+            return frequency;
+        }
+
+        /**
+         * @return true if the entity was among the entities returned by the last call to {@link #getEntities(int)}
+         */
+        public boolean isSelected() {
+            return selected;
+        }
+    }
+
+    private Entity<M>[] table;
+    // the entities in order of first occurrence
+    private final List<Entity<M>> entities = new ArrayList<>();
+    private int maxFrequency;
+
+    @SuppressWarnings("unchecked")
+    public EntityAggregator() {
+        table = (Entity<M>[]) new Entity<?>[INITIAL_CAPACITY];
+    }
+
+    private static int hash(String type, String text) {
+        int h = 31 * type.hashCode() + text.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Count a mention of the entity with the given type and text
+     *
+     * @return the entity the mention belongs to
+     */
+    public Entity<M> add(String type, String text, M mention) {
+        int hash = hash(type, text);
+        int idx = hash & (table.length - 1);
+        for (Entity<M> entity = table[idx]; entity != null; entity = entity.next) {
+            if (entity.hash == hash && entity.text.equals(text) && entity.type.equals(type)) {
+                maxFrequency = Math.max(maxFrequency, ++entity.frequency);
+                return entity;
+            }
+        }
+        Entity<M> entity = new Entity<>(type, text, hash, mention);
+        entity.frequency = 1;
+        maxFrequency = Math.max(maxFrequency, 1);
+        entity.next = table[idx];
+        table[idx] = entity;
+        entities.add(entity);
+        if (entities.size() > table.length * 3 / 4) {
+            resize();
+        }
+        return entity;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        Entity<M>[] newTable = (Entity<M>[]) new Entity<?>[table.length * 2];
+        for (Entity<M> entity : entities) {
+            int idx = entity.hash & (newTable.length - 1);
+            entity.next = newTable[idx];
+            newTable[idx] = entity;
+        }
+        table = newTable;
+    }
+
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Get the entities ordered by frequency, most frequent first, and in order of first occurrence for equal
+     * frequencies. The returned entities are marked as selected, see {@link Entity#isSelected()}.
+     *
+     * @param maxEntities the maximum number of entities to return, a value of 0 returns all of them
+     * @return the ordered entities
+     */
+    public List<Entity<M>> getEntities(int maxEntities) {
+        int n = maxEntities > 0 ? Math.min(maxEntities, entities.size()) : entities.size();
+        // counting sort on the frequency, descending, stable w.r.t. the order of first occurrence
+        int[] start = new int[maxFrequency + 2];
+        for (Entity<M> entity : entities) {
+            ++start[maxFrequency - entity.frequency + 1];
+        }
+        for (int i = 1; i < start.length; ++i) {
+            start[i] += start[i - 1];
+        }
+        @SuppressWarnings("unchecked")
+        Entity<M>[] ordered = (Entity<M>[]) new Entity<?>[entities.size()];
+        for (Entity<M> entity : entities) {
+            ordered[start[maxFrequency - entity.frequency]++] = entity;
+        }
+        List<Entity<M>> result = new ArrayList<>(n);
+        for (int i = 0; i < ordered.length; ++i) {
+            ordered[i].selected = i < n;
+            if (i < n) {
+                result.add(ordered[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -1,9 +1,27 @@
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 public class ExecutorService {
+    // tasks that are currently running/waiting for a thread, and threads allocated, over all the parallelized calls
+    private static final AtomicInteger activeTasks = new AtomicInteger();
+    private static final AtomicInteger queuedTasks = new AtomicInteger();
+    private static final AtomicInteger poolThreads = new AtomicInteger();
+
+    static {
+        Metrics metrics = Metrics.getInstance();
+        metrics.registerGauge("pool_active_tasks", activeTasks::get);
+        metrics.registerGauge("pool_queued_tasks", queuedTasks::get);
+        metrics.registerGauge("pool_threads", poolThreads::get);
+        metrics.registerGauge("pool_saturation", () -> {
+            int threads = poolThreads.get();
+            return threads == 0 ? 0.0 : activeTasks.get() * 1.0 / threads;
+        });
+    }
+
     private static class Result {
         private final long wait;
         Result(long code) {
@@ -14,34 +32,107 @@ public class ExecutorService {
 
     public static<T> void  parallelize(List<T> inputs, Function<T,Long> func, int nThreads) throws InterruptedException,
             ExecutionException {
+        parallelize("default", inputs, func, nThreads);
+    }
+
+    /**
+     * Run the function over all the inputs using a pool of the given size, and wait for all of them to finish.
+     * The elapsed time is recorded under the "pool_{name}" stage, and the sum of the times reported by the tasks in
+     * the "pool_{name}_task_ms" counter, so that the speed-up of the pool can be derived from both.
+     *
+     * @param name     the name of the pool, used in the metrics
+     * @param inputs   the inputs to process
+     * @param func     the function to apply to each input, it should return the time it consumed in ms
+     * @param nThreads the size of the pool
+     */
+    public static<T> void  parallelize(String name, List<T> inputs, Function<T,Long> func, int nThreads)
+            throws InterruptedException, ExecutionException {
+        run(name, inputs, func, nThreads, 0);
+    }
+
+    /**
+     * Same as {@link #parallelize(String, List, Function, int)}, but gives up on the tasks that didn't finish within the
+     * given time. The threads running them are interrupted, which in turn cancels the work they are waiting for if it
+     * responds to interrupts, as the calls to the wikifier do (see {@link WikifierClient#annotate(String, String)}).
+     *
+     * @param timeoutMillis the maximum time to wait for the tasks in ms, a value of 0 or less means no limit
+     * @throws TimeoutException if some of the tasks didn't finish in time
+     */
+    public static<T> void  parallelize(String name, List<T> inputs, Function<T,Long> func, int nThreads,
+                                       long timeoutMillis) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!run(name, inputs, func, nThreads, timeoutMillis)) {
+            throw new TimeoutException("Tasks of pool " + name + " didn't finish in " + timeoutMillis + " ms");
+        }
+    }
+
+    /**
+     * @return true if all the tasks finished, false if some were cancelled because of the timeout
+     */
+    private static<T> boolean run(String name, List<T> inputs, Function<T,Long> func, int nThreads,
+                                  long timeoutMillis) throws InterruptedException, ExecutionException {
 
 
         List<Callable<Result>> tasks = new ArrayList<>();
+        // each task leaves the queue exactly once, either when it starts or when the call ends without starting it
+        List<AtomicBoolean> dequeued = new ArrayList<>();
         for (T object : inputs) {
+            AtomicBoolean taskDequeued = new AtomicBoolean();
+            dequeued.add(taskDequeued);
             Callable<Result> c = () -> {
-                long timeConsumed = func.apply(object);
-                return new Result(timeConsumed);
+                if (taskDequeued.compareAndSet(false, true)) {
+                    queuedTasks.decrementAndGet();
+                }
+                activeTasks.incrementAndGet();
+                try {
+                    long timeConsumed = func.apply(object);
+                    return new Result(timeConsumed);
+                } finally {
+                    activeTasks.decrementAndGet();
+                }
             };
             tasks.add(c);
         }
 
         java.util.concurrent.ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+        int threads = Math.min(nThreads, tasks.size());
+        poolThreads.addAndGet(threads);
+        queuedTasks.addAndGet(tasks.size());
         // some other exectuors you could try to see the different behaviours
         // ExecutorService exec = Executors.newFixedThreadPool(3);
         // ExecutorService exec = Executors.newSingleThreadExecutor();
+        long startNanos = System.nanoTime();
         try {
             long start = System.currentTimeMillis();
-            List<Future<Result>> results = exec.invokeAll(tasks);
+            List<Future<Result>> results = timeoutMillis > 0
+                    ? exec.invokeAll(tasks, timeoutMillis, TimeUnit.MILLISECONDS)
+                    : exec.invokeAll(tasks);
+            for (Future<Result> fr : results) {
+                if (fr.isCancelled()) {
+                    return false;
+                }
+            }
             long sum=0L;
             for (Future<Result> fr : results) {
                 sum += fr.get().wait;
                 //System.out.println(String.format("Task waited %d ms", fr.get().wait));
             }
             long elapsed = System.currentTimeMillis() - start;
+            Metrics metrics = Metrics.getInstance();
+            metrics.observe("pool_" + name, System.nanoTime() - startNanos);
+            metrics.increment("pool_" + name + "_task_ms", sum);
+            metrics.increment("pool_" + name + "_elapsed_ms", elapsed);
             //System.out.println(String.format("Elapsed time: %d ms", elapsed));
             //System.out.println(String.format("... but compute tasks waited for total of %d ms; speed-up of %.2fx", sum, ((double)sum) / (elapsed * 1d)));
+            return true;
         } finally {
+            for (AtomicBoolean taskDequeued : dequeued) {
+                if (taskDequeued.compareAndSet(false, true)) {
+                    queuedTasks.decrementAndGet();
+                }
+            }
+            poolThreads.addAndGet(-threads);
             exec.shutdown();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,474 @@
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous annotation jobs of the API, for the documents too large, or the batches too long, to be annotated while
+ * the client holds its request open.
+ * <p>
+ * A job is made of one or more documents, each given by the parameters of an annotation request. The jobs are run by
+ * {@link #jobThreads} threads, each annotating the documents of its job one after the other, and the answers are kept
+ * until the client fetches them. At most {@link #maxPending} jobs may wait for a thread, and the unfinished jobs may
+ * hold at most {@link #maxPendingBytes} of input. The finished jobs are kept, without their input, while there are at
+ * most {@link #maxStored} of them and their answers take at most {@link #maxStoredBytes}, the oldest finished ones are
+ * dropped first.
+ * <p>
+ * A cancelled job stops before its next document, the document being annotated is finished and its answer dropped.
+ */
+public class JobStore implements AutoCloseable {
+    // the longest a client may wait for the progress of a job in a single request
+    public static final long MAX_WAIT_MILLIS = 30000;
+
+    /**
+     * Annotates the document of a request, see {@link APIController#annotate} and {@link WorkerPool#annotate}
+     */
+    public interface Annotator {
+        String annotate(Map<String, String[]> params, long timeoutMillis) throws TimeoutException,
+                InterruptedException;
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, CANCELLED
+    }
+
+    /**
+     * A job, whose documents are annotated in order
+     */
+    public static class Job {
+        private final String id;
+        // the parameters of the documents, dropped once the job is finished
+        private List<Map<String, String[]>> documents;
+        private final int documentCount;
+        private final long inputBytes;
+        private boolean inputReleased;
+        // the answers of the annotated documents, in order
+        private final List<String> results = new ArrayList<>();
+        private final long submitted = System.currentTimeMillis();
+        private long started, finished;
+        private Status status = Status.QUEUED;
+        private int failed;
+        private long resultBytes;
+        private Future<?> future;
+
+        Job(String id, List<Map<String, String[]>> documents, long inputBytes) {
+            this.id = id;
+            this.documents = documents;
+            this.documentCount = documents.size();
+            this.inputBytes = inputBytes;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the number of documents annotated so far
+         */
+        public synchronized int getCompleted() {
+            return results.size();
+        }
+
+        public synchronized boolean isFinished() {
+            return status == Status.DONE || status == Status.CANCELLED;
+        }
+
+        synchronized long getResultBytes() {
+            return resultBytes;
+        }
+
+        private synchronized void setStatus(Status status) {
+            this.status = status;
+            if (status == Status.RUNNING) {
+                started = System.currentTimeMillis();
+            } else if (isFinished()) {
+                finished = System.currentTimeMillis();
+            }
+            notifyAll();
+        }
+
+        private synchronized void addResult(Result result) {
+            results.add(result.answer);
+            resultBytes += Metrics.utf8Length(result.answer);
+            if (!result.success) {
+                ++failed;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until more than the given number of documents are annotated, or the job is finished
+         *
+         * @param completed  the number of documents annotated the last time the client looked
+         * @param waitMillis the maximum time to wait in ms, at most {@link #MAX_WAIT_MILLIS}
+         */
+        public synchronized void awaitProgress(int completed, long waitMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + Math.min(waitMillis, MAX_WAIT_MILLIS);
+            long left;
+            while (results.size() <= completed && !isFinished() && (left = end - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+        }
+
+        /**
+         * @return json object with the id, status, number of documents, of annotated and failed ones, and the times
+         * (in ms since the epoch) the job was submitted, started and finished
+         */
+        public synchronized JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("jobId", id);
+            json.put("status", status.name().toLowerCase());
+            json.put("documents", documentCount);
+            json.put("completed", results.size());
+            json.put("failed", failed);
+            json.put("submitted", submitted);
+            if (started > 0) {
+                json.put("started", started);
+            }
+            if (finished > 0) {
+                json.put("finished", finished);
+            }
+            return json;
+        }
+
+        /**
+         * @param from the index of the first document
+         * @return the answers of the annotated documents from the given one, a json object with the id and status of
+         * the job and the "results" array, in the order of the documents
+         */
+        public synchronized String resultsJson(int from) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"jobId\":").append(JSONObject.quote(id))
+                    .append(",\"status\":").append(JSONObject.quote(status.name().toLowerCase()))
+                    .append(",\"from\":").append(from)
+                    .append(",\"results\":[");
+            for (int i = Math.max(0, from); i < results.size(); ++i) {
+                if (i > Math.max(0, from)) {
+                    json.append(',');
+                }
+                json.append(results.get(i));
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    private final Annotator annotator;
+    private final int jobThreads;
+    private final int maxPending;
+    private final long maxPendingBytes;
+    private final int maxDocuments;
+    private final int maxStored;
+    private final long maxStoredBytes;
+    private final long documentTimeoutMillis;
+    private final int retryAfterSeconds;
+    private final ThreadPoolExecutor executor;
+    // the jobs, oldest first, guarded by this
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // the size of the input of the unfinished jobs
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Constructor for class #JobStore
+     *
+     * @param annotator             annotates the documents of the jobs
+     * @param jobThreads            the number of jobs run at the same time
+     * @param maxPending            the maximum number of jobs waiting to run
+     * @param maxPendingBytes       the maximum total size of the input of the unfinished jobs
+     * @param maxDocuments          the maximum number of documents of a job
+     * @param maxStored             the maximum number of finished jobs kept
+     * @param maxStoredBytes        the maximum total size of the answers of the finished jobs kept
+     * @param documentTimeoutMillis the maximum time to annotate a document in ms, 0 for no limit
+     * @param retryAfterSeconds     the value of the Retry-After header sent when there are too many pending jobs
+     */
+    public JobStore(Annotator annotator, int jobThreads, int maxPending, long maxPendingBytes, int maxDocuments,
+                    int maxStored, long maxStoredBytes, long documentTimeoutMillis, int retryAfterSeconds) {
+        this.annotator = annotator;
+        this.jobThreads = Math.max(1, jobThreads);
+        this.maxPending = maxPending;
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxDocuments = maxDocuments;
+        this.maxStored = maxStored;
+        this.maxStoredBytes = maxStoredBytes;
+        this.documentTimeoutMillis = documentTimeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.jobThreads, this.jobThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "job-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics metrics = Metrics.getInstance();
+        metrics.registerGauge("jobs_pending", pending::get);
+        metrics.registerGauge("jobs_running", running::get);
+        metrics.registerGauge("jobs_pending_bytes", pendingBytes::get);
+        metrics.registerGauge("jobs_stored", this::size);
+    }
+
+    /**
+     * Submit a job, to be run once a job thread is free
+     *
+     * @param documents the parameters of the annotation requests of the documents
+     * @return the job
+     * @throws IllegalArgumentException              if the job has no documents, or too many of them
+     * @throws AdmissionController.RejectedException with status 413 if the input of the job can never fit, or 429 if
+     *                                               too many jobs, or too much input, are waiting to be annotated
+     */
+    public Job submit(List<Map<String, String[]>> documents) {
+        if (documents.isEmpty() || documents.size() > maxDocuments) {
+            throw new IllegalArgumentException("A job must have between 1 and " + maxDocuments + " documents, not "
+                    + documents.size());
+        }
+        long inputBytes = 0;
+        for (Map<String, String[]> document : documents) {
+            inputBytes += inputBytes(document);
+        }
+        if (inputBytes > maxPendingBytes) {
+            Metrics.getInstance().increment("jobs_rejected");
+            throw new AdmissionController.RejectedException(413, 0, "The input of " + inputBytes
+                    + " bytes exceeds the limit of " + maxPendingBytes + " bytes");
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            Metrics.getInstance().increment("jobs_rejected");
+            throw new AdmissionController.RejectedException(429, retryAfterSeconds, "Too many jobs are pending");
+        }
+        if (pendingBytes.addAndGet(inputBytes) > maxPendingBytes) {
+            pendingBytes.addAndGet(-inputBytes);
+            pending.decrementAndGet();
+            Metrics.getInstance().increment("jobs_rejected");
+            throw new AdmissionController.RejectedException(429, retryAfterSeconds, "Too much input is pending");
+        }
+        Job job = new Job(UUID.randomUUID().toString(), documents, inputBytes);
+        synchronized (this) {
+            jobs.put(job.id, job);
+        }
+        Metrics.getInstance().increment("jobs_submitted");
+        synchronized (job) {
+            job.future = executor.submit(() -> run(job));
+        }
+        return job;
+    }
+
+    /**
+     * @return the size of the parameters of a document
+     */
+    private static long inputBytes(Map<String, String[]> document) {
+        long bytes = 0;
+        for (Map.Entry<String, String[]> param : document.entrySet()) {
+            bytes += Metrics.utf8Length(param.getKey());
+            for (String value : param.getValue()) {
+                bytes += value == null ? 0 : Metrics.utf8Length(value);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the input of a finished job, once
+     */
+    private void releaseInput(Job job) {
+        synchronized (job) {
+            if (job.inputReleased) {
+                return;
+            }
+            job.inputReleased = true;
+            job.documents = null;
+        }
+        pendingBytes.addAndGet(-job.inputBytes);
+    }
+
+    private void run(Job job) {
+        List<Map<String, String[]>> documents;
+        synchronized (job) {
+            // a job cancelled before it started isn't run
+            if (job.status != Status.QUEUED) {
+                return;
+            }
+            pending.decrementAndGet();
+            job.setStatus(Status.RUNNING);
+            documents = job.documents;
+        }
+        running.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            for (Map<String, String[]> document : documents) {
+                if (job.getStatus() == Status.CANCELLED || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                Result result = annotate(job, document);
+                synchronized (job) {
+                    // the answer of a document finished after the job was cancelled is dropped
+                    if (job.status == Status.CANCELLED) {
+                        break;
+                    }
+                    job.addResult(result);
+                }
+            }
+        } finally {
+            running.decrementAndGet();
+            synchronized (job) {
+                if (job.status == Status.RUNNING) {
+                    job.setStatus(Status.DONE);
+                }
+            }
+            releaseInput(job);
+            Metrics.getInstance().observe("job", System.nanoTime() - start);
+            Metrics.getInstance().increment("jobs_finished");
+            evict();
+        }
+    }
+
+    /**
+     * The answer of a document of a job
+     */
+    private static class Result {
+        final String answer;
+        final boolean success;
+
+        Result(String answer, boolean success) {
+            this.answer = answer;
+            this.success = success;
+        }
+    }
+
+    /**
+     * Annotate a document of a job. While the service is too busy to admit it, the document is tried again after the
+     * Retry-After delay, unless the job is cancelled.
+     *
+     * @return the answer of the document, or a json object with its id, the HTTP status and the error if it failed
+     */
+    private Result annotate(Job job, Map<String, String[]> document) {
+        int status;
+        String message;
+        try {
+            while (true) {
+                try {
+                    String answer = annotator.annotate(document, documentTimeoutMillis);
+                    Metrics.getInstance().increment("job_documents");
+                    return new Result(answer, true);
+                } catch (AdmissionController.RejectedException e) {
+                    if (e.getRetryAfterSeconds() <= 0 || job.getStatus() == Status.CANCELLED) {
+                        throw e;
+                    }
+                    Metrics.getInstance().increment("job_documents_deferred");
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(e.getRetryAfterSeconds()));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            message = e.getMessage();
+        } catch (AdmissionController.RejectedException e) {
+            status = e.getStatus();
+            message = e.getMessage();
+        } catch (TimeoutException e) {
+            status = 503;
+            message = "Annotation didn't finish within the document deadline";
+        } catch (InterruptedException e) {
+            // the service is stopping, the job stops before its next document
+            Thread.currentThread().interrupt();
+            status = 503;
+            message = "Annotation was interrupted";
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 500;
+            message = e.toString();
+        }
+        Metrics.getInstance().increment("job_documents_failed");
+        String[] id = document.get("id");
+        JSONObject error = new JSONObject();
+        error.put("id", id == null || id.length == 0 ? JSONObject.NULL : id[0]);
+        error.put("status", status);
+        error.put("error", message);
+        return new Result(error.toString(), false);
+    }
+
+    /**
+     * Drop the oldest finished jobs while too many are kept, or their answers take too much space
+     */
+    private synchronized void evict() {
+        int stored = 0;
+        long bytes = 0;
+        for (Job job : jobs.values()) {
+            if (job.isFinished()) {
+                ++stored;
+                bytes += job.getResultBytes();
+            }
+        }
+        Iterator<Job> iterator = jobs.values().iterator();
+        while ((stored > maxStored || bytes > maxStoredBytes) && iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.isFinished()) {
+                iterator.remove();
+                --stored;
+                bytes -= job.getResultBytes();
+                Metrics.getInstance().increment("jobs_evicted");
+            }
+        }
+    }
+
+    /**
+     * @return the job, or null if there is none with this id, or it was dropped
+     */
+    public synchronized Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancel the job if it isn't finished, and drop it. A running job stops before its next document, see
+     * {@link #run(Job)}.
+     *
+     * @return the job, or null if there is none with this id
+     */
+    public Job remove(String id) {
+        Job job;
+        synchronized (this) {
+            job = jobs.remove(id);
+        }
+        if (job == null) {
+            return null;
+        }
+        synchronized (job) {
+            if (!job.isFinished()) {
+                // the job leaves the queue here if it didn't start, see #run
+                boolean queued = job.status == Status.QUEUED;
+                if (queued) {
+                    pending.decrementAndGet();
+                }
+                job.setStatus(Status.CANCELLED);
+                Metrics.getInstance().increment("jobs_cancelled");
+                if (queued) {
+                    job.future.cancel(false);
+                    releaseInput(job);
+                }
+            }
+        }
+        return job;
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
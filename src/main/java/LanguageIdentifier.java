@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Singleton Class identifying the language of a text locally, without calling any service.
+ * For usage, create an instance using LanguageIdentifier.getInstance(), and then call identify with the text.
+ * <p>
+ * Texts mostly written in a script used by a single language (Han, Arabic, Cyrillic, ...) are identified by their
+ * script. The languages written in latin script are told apart by the character trigrams of the text: each language
+ * has a profile of the trigrams of its most frequent words, and the language whose profile gives the text the highest
+ * log-likelihood wins, unless the runner-up is too close: the text is then likely in another language, or in none,
+ * and it's left unknown. Only the first {@link #MAX_SAMPLE_LENGTH} characters are read, so that the cost stays in the
+ * order of microseconds per KB.
+ */
+public class LanguageIdentifier {
+    /**
+     * The language of the texts whose language is unknown
+     */
+    public static final String UNKNOWN = "xx";
+    private static final int MAX_SAMPLE_LENGTH = 4096;
+    // the minimum number of trigrams of the text found in the profiles to decide on a latin language
+    private static final int MIN_KNOWN_TRIGRAMS = 8;
+    // the minimum log-likelihood ratio, per trigram found in the profiles, of the best latin language to the runner-up,
+    // the texts of the supported languages score above 1, those of unsupported ones (Finnish, Polish, Swedish, ...)
+    // and lists of names around 0.2
+    private static final double MIN_MARGIN = 0.5;
+    // the log-probability of a trigram in the profile of a language it doesn't appear in
+    private static final float UNSEEN_LOG_PROBABILITY = (float) Math.log(1e-5);
+    // the most frequent words of each language written in latin script, most frequent first
+    private static final String[][] PROFILES = {
+            {"en", "the of and to a in is it you that he was for on are with as i his they be at one have this from "
+                    + "or had by not word but what some we can out other were all there when up use your how said an "
+                    + "each she which do their time if will way about many then them write would like so these her "
+                    + "long make thing see him two has look more day could go come did number no most people my over "
+                    + "know water than call first who may down side been now find any new work part take get place "
+                    + "made live where after back little only round man year came show every good me give our under "
+                    + "name very through just great think say help low line turn cause much mean before move right "
+                    + "old too same tell does set three want well also small end put home read hand large even land "
+                    + "here must big high such follow why ask men change went light kind off need house try us again "
+                    + "point mother world near build earth father government between during against should because "
+                    + "being going nothing something including however while city country president million years"},
+            {"de", "der die und in den von zu das mit sich des auf f\u00fcr ist im dem nicht ein eine als auch es an werden "
+                    + "aus er hat dass sie nach wird bei einer um am sind noch wie einem \u00fcber einen so zum war haben "
+                    + "nur oder aber vor zur bis mehr durch man sein wurde sei prozent hatte kann gegen vom k\u00f6nnen "
+                    + "schon wenn habe seine ihre dann unter wir soll ich eines jahr zwei jahren diese dieser wieder "
+                    + "keine uhr seiner worden will zwischen immer millionen ersten was sagte gibt alle seit muss doch "
+                    + "jetzt drei neue damit bereits da ab ihr ihren nun sowie weil deutschen sollen m\u00fcssen neuen "
+                    + "geht kommt unternehmen heute regierung stadt zeit land menschen leben sehr viele gut gro\u00df welt "
+                    + "gemacht wurden dieses zwar w\u00fcrde deutschland pr\u00e4sident bundesregierung au\u00dferdem gegen\u00fcber "
+                    + "n\u00e4chsten letzten zeigt macht sagen einfach wirklich eigentlich nat\u00fcrlich gleich stellt"},
+            {"fr", "de la le et les des en un du une que est pour qui dans a par plus pas au sur ne se ce il sont \u00e9t\u00e9 "
+                    + "ou avec son mais comme on tout nous sa aux elle ses leur y fait cette ont ces bien sans peut "
+                    + "tous \u00eatre deux m\u00eame aussi entre encore tr\u00e8s apr\u00e8s avait autres lui selon avant dont depuis "
+                    + "faire contre \u00e9tait fois o\u00f9 vous je sous donc premier part ans pays autre ministre nouveau "
+                    + "dernier gouvernement alors temps jour monde ville france pr\u00e9sident aujourd'hui trois millions "
+                    + "ann\u00e9es toujours ainsi leurs quand chez moins cela peu beaucoup notre comment pourquoi rien "
+                    + "nouvelle premi\u00e8re politique national g\u00e9n\u00e9ral avoir dit fin pendant mois plusieurs travail "
+                    + "question probl\u00e8me semaine grande place enfants cependant certains notamment \u00e9galement"},
+            {"es", "de la que el en y a los del se las por un para con no una su al lo como m\u00e1s pero sus le ya o este "
+                    + "s\u00ed porque esta entre cuando muy sin sobre tambi\u00e9n me hasta hay donde quien desde todo nos "
+                    + "durante todos uno les ni contra otros ese eso ante ellos e esto m\u00ed antes algunos qu\u00e9 unos yo "
+                    + "otro otras otra \u00e9l tanto esa estos mucho quienes nada muchos cual poco ella estar estas algunas "
+                    + "algo nosotros a\u00f1os gobierno pa\u00eds ciudad presidente parte tiene puede ser fue hab\u00eda han sido "
+                    + "est\u00e1 est\u00e1n dijo seg\u00fan millones despu\u00e9s mundo vida tiempo nacional general nuevo primera "
+                    + "pol\u00edtica estado trabajo adem\u00e1s mientras tras cuenta forma mayor semana personas hacer"},
+            {"it", "di e il la che in a per un \u00e8 del non una le si i con da al dei sono come della pi\u00f9 anche ma alla "
+                    + "nel gli ha lo o se delle nella questo ci cui mi essere suo loro tutto hanno fatto stato dal sua "
+                    + "quando tra gi\u00e0 anni dopo questa molto solo tutti prima ancora stati degli sul perch\u00e9 era fra due "
+                    + "lei lui noi voi cos\u00ec governo presidente paese citt\u00e0 ogni poi sempre senza quello quella nuovo "
+                    + "parte tempo mondo vita detto milioni politica nazionale generale lavoro stato grande questi "
+                    + "italia italiano oggi ieri settimana persone fare dove mentre per\u00f2 secondo contro"},
+            {"pt", "de a o que e do da em um para \u00e9 com n\u00e3o uma os no se na por mais as dos como mas foi ao ele das "
+                    + "tem \u00e0 seu sua ou ser quando muito h\u00e1 nos j\u00e1 est\u00e1 eu tamb\u00e9m s\u00f3 pelo pela at\u00e9 isso ela entre era "
+                    + "depois sem mesmo aos ter seus quem nas me esse eles est\u00e3o voc\u00ea tinha foram essa num nem suas "
+                    + "meu \u00e0s minha t\u00eam numa pelos elas havia seja qual ser\u00e1 n\u00f3s tenho lhe deles essas esses pelas "
+                    + "este fosse dele governo pa\u00eds cidade presidente anos milh\u00f5es ainda ent\u00e3o sobre onde durante "
+                    + "pol\u00edtica nacional trabalho estado brasil portugal hoje semana pessoas fazer grande n\u00e3o"},
+            {"nl", "de en van ik te dat die in een hij het niet zijn is was op aan met als voor had er maar om hem dan "
+                    + "zou of wat mijn men dit zo door over ze zich bij ook tot je mij uit der daar haar naar heb hoe "
+                    + "heeft hebben deze u want nog zal me zij nu geen omdat iets worden toch al waren veel meer doen "
+                    + "toen moet ben zonder kan hun dus alles onder ja eens hier wie werd altijd wordt kunnen ons zelf "
+                    + "tegen na reeds wil kon niets uw iemand geweest andere jaar regering land stad twee nieuwe "
+                    + "mensen nederland nederlandse gemeente volgens tussen echter vandaag week werk maken groot"},
+            {"sl", "in je da se na v za so z ki pa ne bi to tudi pri od po kot sem \u0161e ni ali bo bil ga jih smo lahko "
+                    + "\u010de do bila iz ko samo kar \u017ee le vse zelo nas tem ter tako leta bilo imajo ve\u010d vendar kjer med "
+                    + "ker nato prav sta tega njegov njegova njihov danes dobro kako kaj zakaj kdo vlada dr\u017eava mesto "
+                    + "predsednik ljudje \u017eivljenje svet \u010dasa dveh treh let milijonov evropske slovenije slovenski "
+                    + "bodo bomo biti imeti mora lani zdaj tedna ljudi delo velik veliko nove novi ob\u010dine ministrstvo"},
+    };
+    // the languages identified by their script alone
+    private static final Map<Character.UnicodeScript, String> SCRIPTS = new HashMap<>();
+
+    static {
+        SCRIPTS.put(Character.UnicodeScript.HAN, "zh");
+        SCRIPTS.put(Character.UnicodeScript.HIRAGANA, "ja");
+        SCRIPTS.put(Character.UnicodeScript.KATAKANA, "ja");
+        SCRIPTS.put(Character.UnicodeScript.HANGUL, "ko");
+        SCRIPTS.put(Character.UnicodeScript.ARABIC, "ar");
+        SCRIPTS.put(Character.UnicodeScript.CYRILLIC, "ru");
+        SCRIPTS.put(Character.UnicodeScript.GREEK, "el");
+        SCRIPTS.put(Character.UnicodeScript.HEBREW, "he");
+    }
+
+    private static LanguageIdentifier _instance;
+
+    private final String[] languages;
+    private final List<String> scriptLanguages;
+    // open addressing table of the trigrams of the profiles, each slot holding the log-probability of the trigram in
+    // each language
+    private final long[] trigrams;
+    private final float[] logProbabilities;
+    private final int mask;
+
+    /**
+     * Private constructor for the LanguageIdentifier class
+     * Builds the trigram profiles of the languages
+     */
+    private LanguageIdentifier() {
+        languages = new String[PROFILES.length];
+        List<Map<Long, Double>> counts = new ArrayList<>();
+        Map<Long, Integer> indices = new HashMap<>();
+        for (int l = 0; l < PROFILES.length; ++l) {
+            languages[l] = PROFILES[l][0];
+            Map<Long, Double> languageCounts = new HashMap<>();
+            String[] words = PROFILES[l][1].split(" ");
+            for (int rank = 0; rank < words.length; ++rank) {
+                // the weight of a word follows its rank, as in Zipf's law
+                double weight = 1.0 / (rank + 10);
+                String word = " " + words[rank] + " ";
+                for (int i = 0; i + 3 <= word.length(); ++i) {
+                    long trigram = trigram(word.charAt(i), word.charAt(i + 1), word.charAt(i + 2));
+                    languageCounts.merge(trigram, weight, Double::sum);
+                    indices.putIfAbsent(trigram, indices.size());
+                }
+            }
+            counts.add(languageCounts);
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, indices.size() * 4));
+        trigrams = new long[capacity];
+        Arrays.fill(trigrams, -1);
+        logProbabilities = new float[capacity * languages.length];
+        mask = capacity - 1;
+        for (int l = 0; l < languages.length; ++l) {
+            double total = 0;
+            for (double count : counts.get(l).values()) {
+                total += count;
+            }
+            for (long trigram : indices.keySet()) {
+                int slot = slot(trigram);
+                trigrams[slot] = trigram;
+                Double count = counts.get(l).get(trigram);
+                logProbabilities[slot * languages.length + l] = count == null ? UNSEEN_LOG_PROBABILITY
+                        : (float) Math.log(count / total);
+            }
+        }
+        scriptLanguages = new ArrayList<>(new LinkedHashSet<>(SCRIPTS.values()));
+    }
+
+    /**
+     * Get an instance of the class
+     *
+     * @return an instance of LanguageIdentifier class
+     */
+    public static synchronized LanguageIdentifier getInstance() {
+        if (_instance == null) {
+            _instance = new LanguageIdentifier();
+        }
+        return _instance;
+    }
+
+    /**
+     * @return whether the language of a text needs to be identified, i.e. it's unknown or "auto"
+     */
+    public static boolean isUnknown(String language) {
+        return language == null || language.isEmpty() || language.equals(UNKNOWN) || language.equals("auto");
+    }
+
+    private static long trigram(char c1, char c2, char c3) {
+        return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+    }
+
+    /**
+     * @return the slot of the trigram in the table, or of the empty slot where it would be
+     */
+    private int slot(long trigram) {
+        int slot = (int) ((trigram * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (trigrams[slot] != -1 && trigrams[slot] != trigram) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Identify the language of a text
+     *
+     * @param text the text
+     * @return the ISO 639-1 code of the language, or {@link #UNKNOWN} if the text is too short, in none of the
+     * supported languages, or too close to several of them
+     */
+    public String identify(String text) {
+        long start = System.nanoTime();
+        try {
+            return identify(text, Math.min(text.length(), MAX_SAMPLE_LENGTH));
+        } finally {
+            Metrics.getInstance().observe("language_identification", System.nanoTime() - start);
+        }
+    }
+
+    private String identify(String text, int length) {
+        int nLanguages = languages.length;
+        double[] scores = new double[nLanguages];
+        int[] scriptCounts = new int[scriptLanguages.size()];
+        int latinLetters = 0;
+        int known = 0;
+        // the last two characters, a space standing for any non letter
+        char c1 = ' ';
+        char c2 = ' ';
+        for (int i = 0; i <= length; ++i) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (c < 128) {
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                    ++latinLetters;
+                } else if (c >= 'a' && c <= 'z') {
+                    ++latinLetters;
+                } else if (c != '\'') {
+                    c = ' ';
+                }
+            } else if (Character.isLetter(c)) {
+                Character.UnicodeScript script = Character.UnicodeScript.of(c);
+                if (script == Character.UnicodeScript.LATIN) {
+                    c = Character.toLowerCase(c);
+                    ++latinLetters;
+                } else {
+                    String language = SCRIPTS.get(script);
+                    if (language != null) {
+                        ++scriptCounts[scriptLanguages.indexOf(language)];
+                    }
+                    c = ' ';
+                }
+            } else {
+                c = ' ';
+            }
+            if (c == ' ' && c2 == ' ') {
+                continue;
+            }
+            if (c1 != ' ' || c2 != ' ') {
+                int slot = slot(trigram(c1, c2, c));
+                if (trigrams[slot] != -1) {
+                    ++known;
+                    int offset = slot * nLanguages;
+                    for (int l = 0; l < nLanguages; ++l) {
+                        scores[l] += logProbabilities[offset + l];
+                    }
+                }
+            }
+            c1 = c2;
+            c2 = c;
+        }
+        int bestScript = 0;
+        for (int s = 1; s < scriptCounts.length; ++s) {
+            if (scriptCounts[s] > scriptCounts[bestScript]) {
+                bestScript = s;
+            }
+        }
+        if (scriptCounts[bestScript] > latinLetters) {
+            // kana comes with han in japanese
+            if (scriptLanguages.get(bestScript).equals("zh") && scriptCounts[scriptLanguages.indexOf("ja")] > 0) {
+                return "ja";
+            }
+            return scriptLanguages.get(bestScript);
+        }
+        if (known < MIN_KNOWN_TRIGRAMS) {
+            return UNKNOWN;
+        }
+        int best = 0;
+        int second = 1;
+        for (int l = 1; l < nLanguages; ++l) {
+            if (scores[l] > scores[best]) {
+                second = best;
+                best = l;
+            } else if (l != second && scores[l] > scores[second]) {
+                second = l;
+            }
+        }
+        if (scores[best] - scores[second] < MIN_MARGIN * known) {
+            Metrics.getInstance().increment("languages_unsure");
+            return UNKNOWN;
+        }
+        return languages[best];
+    }
+
+    /**
+     * Identify the languages of the texts whose language is unknown, see {@link #isUnknown(String)}
+     *
+     * @param texts     the texts of a document
+     * @param languages the given languages of the texts
+     * @return the languages of the texts, the given ones if known, the identified ones otherwise
+     */
+    public List<String> identify(List<String> texts, List<String> languages) {
+        List<String> identified = new ArrayList<>(languages.size());
+        for (int i = 0; i < languages.size(); ++i) {
+            String language = languages.get(i);
+            if (isUnknown(language)) {
+                language = identify(texts.get(i));
+                Metrics.getInstance().increment("languages_identified");
+            }
+            identified.add(language);
+        }
+        return identified;
+    }
+}
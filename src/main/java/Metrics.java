@@ -0,0 +1,254 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Singleton registry of the latency histograms, counters and gauges of the annotation pipeline.
+ * <p>
+ * Latencies are recorded per stage (cleanText, each CoreNLP annotator, WordNet, Wikifier calls and chunks, ontology
+ * mapping, serialization, ...) with {@link #observe(String, long)}, and throughput counters (documents, tokens,
+ * bytes, ...) with {@link #increment(String, long)}.
+ * <p>
+ * The metrics can be scraped in the Prometheus text format using {@link #toPrometheus()}, or printed periodically as
+ * a human readable report using {@link #startPeriodicReport(int)}.
+ */
+public class Metrics {
+    private static final Metrics _instance = new Metrics();
+    private static final String PREFIX = "annotator_";
+    // upper bounds of the latency buckets in milliseconds
+    private static final double[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    /**
+     * Fixed buckets latency histogram, safe to update from multiple threads
+     */
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double millis) {
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]) {
+                ++i;
+            }
+            buckets[i].increment();
+            count.increment();
+            sum.add(millis);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * Approximate the given quantile with the upper bound of the bucket that contains it
+         *
+         * @param q the quantile, in [0,1]
+         * @return the upper bound (in ms) of the bucket, or infinity if the quantile falls in the last bucket
+         */
+        double quantile(double q) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; ++i) {
+                cumulative += buckets[i].sum();
+                if (cumulative >= rank) {
+                    return BUCKETS[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    /**
+     * Get an instance of the class
+     *
+     * @return the instance of Metrics class
+     */
+    public static Metrics getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Record the latency of a single execution of a stage
+     *
+     * @param stage the name of the stage, e.g. "corenlp_pos"
+     * @param nanos the time consumed by the stage in nanoseconds, as measured with {@link System#nanoTime()}
+     */
+    public void observe(String stage, long nanos) {
+        latencies.computeIfAbsent(stage, k -> new Histogram()).observe(nanos / 1e6);
+    }
+
+    public void increment(String counter) {
+        increment(counter, 1);
+    }
+
+    public void increment(String counter, long amount) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(amount);
+    }
+
+    public long getCount(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Register a value that is computed at the time of reporting, like the number of busy threads of a pool
+     *
+     * @param name  the name of the gauge
+     * @param gauge supplier of the current value
+     */
+    public void registerGauge(String name, Supplier<Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Number of bytes of the text when encoded in UTF-8, without encoding it
+     */
+    public static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static String formatBound(double bound) {
+        return bound == (long) bound ? String.valueOf((long) bound) : String.valueOf(bound);
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        String latencyName = PREFIX + "stage_latency_ms";
+        builder.append("# TYPE ").append(latencyName).append(" histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            String stage = entry.getKey();
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; ++i) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i < BUCKETS.length ? formatBound(BUCKETS[i]) : "+Inf";
+                builder.append(latencyName).append("_bucket{stage=\"").append(stage).append("\",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            builder.append(latencyName).append("_sum{stage=\"").append(stage).append("\"} ")
+                    .append(histogram.getSum()).append('\n');
+            builder.append(latencyName).append("_count{stage=\"").append(stage).append("\"} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            String name = PREFIX + entry.getKey() + "_total";
+            builder.append("# TYPE ").append(name).append(" counter\n");
+            builder.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<Number>> entry : new TreeMap<>(gauges).entrySet()) {
+            String name = PREFIX + entry.getKey();
+            builder.append("# TYPE ").append(name).append(" gauge\n");
+            builder.append(name).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Human readable summary of the metrics.
+     * For each stage the number of executions, the mean latency and the approximate p50/p99 are reported,
+     * followed by the counters, their rate per second over the given period, and the gauges.
+     *
+     * @param previousCounts the counter values at the start of the period, updated to the current values
+     * @param seconds        the length of the period in seconds
+     * @return the report
+     */
+    String report(Map<String, Long> previousCounts, double seconds) {
+        StringBuilder builder = new StringBuilder("Metrics report:\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            builder.append(String.format("  %-24s n=%-8d mean=%.1fms p50<=%sms p99<=%sms%n", entry.getKey(), count,
+                    count == 0 ? 0 : histogram.getSum() / count,
+                    formatBound(histogram.quantile(0.5)), formatBound(histogram.quantile(0.99))));
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            long value = entry.getValue().sum();
+            long previous = previousCounts.getOrDefault(entry.getKey(), 0L);
+            previousCounts.put(entry.getKey(), value);
+            builder.append(String.format("  %-24s total=%-10d %.1f/s%n", entry.getKey(), value,
+                    seconds > 0 ? (value - previous) / seconds : 0));
+        }
+        for (Map.Entry<String, Supplier<Number>> entry : new TreeMap<>(gauges).entrySet()) {
+            builder.append(String.format("  %-24s %s%n", entry.getKey(), entry.getValue().get()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Print a report of the metrics every given number of seconds, used in batch mode
+     *
+     * @param intervalSeconds the period between reports, a value of 0 disables reporting
+     */
+    public synchronized void startPeriodicReport(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        Map<String, Long> previousCounts = new TreeMap<>();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.print(report(previousCounts, intervalSeconds)),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic report, and print a final one covering the whole run
+     *
+     * @param totalSeconds the length of the whole run in seconds
+     */
+    public synchronized void stopPeriodicReport(double totalSeconds) {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        System.out.print(report(new TreeMap<>(), totalSeconds));
+    }
+}
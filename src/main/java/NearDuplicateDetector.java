@@ -0,0 +1,317 @@
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detection of the documents whose texts are the same as, or nearly the same as, the texts of an earlier document.
+ * <p>
+ * The texts are turned into shingles of {@link #SHINGLE_WORDS} consecutive words, and each document into a MinHash
+ * signature of {@link #SIGNATURE_LENGTH} values, whose share of equal values estimates the Jaccard similarity of the
+ * shingles of two documents. The signatures are indexed with locality sensitive hashing: split into bands of
+ * {@link #BAND_ROWS} values, so that only the documents sharing a band with the new one are compared with it.
+ * <p>
+ * A document is only compared with the earlier documents requested with the same options, whose outputs it may share,
+ * and it's only added to the index once it was annotated, so that a later document is never linked to one that wasn't.
+ * Only the signatures of the last maxDocuments documents are kept, the oldest ones are forgotten first.
+ */
+public class NearDuplicateDetector {
+    private static final int SHINGLE_WORDS = 3;
+    private static final int SIGNATURE_LENGTH = 128;
+    private static final int BAND_ROWS = 4;
+    private static final int BANDS = SIGNATURE_LENGTH / BAND_ROWS;
+    // the seeds of the hash functions of the signature
+    private static final long[] SEEDS = new long[SIGNATURE_LENGTH];
+
+    static {
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+            seed = mix(seed + i);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private final double threshold;
+    private final int maxDocuments;
+    // the documents in the index, oldest first, and the documents of each band bucket, guarded by this
+    private final ArrayDeque<Document> documents = new ArrayDeque<>();
+    private final Map<Long, List<Document>> buckets = new HashMap<>();
+    private long duplicates, nearDuplicates, checked, duplicateBytes;
+
+    private static class Document {
+        final String id;
+        final String textsHash;
+        final String options;
+        final int[] signature;
+        final long[] bands;
+
+        Document(String id, String textsHash, String options, int[] signature) {
+            this.id = id;
+            this.textsHash = textsHash;
+            this.options = options;
+            this.signature = signature;
+            this.bands = new long[BANDS];
+            for (int b = 0; b < BANDS; ++b) {
+                // the documents with other options fall in other buckets
+                long band = mix(options.hashCode() * 31L + b);
+                for (int r = 0; r < BAND_ROWS; ++r) {
+                    band = mix(band * 31 + signature[b * BAND_ROWS + r]);
+                }
+                bands[b] = band;
+            }
+        }
+    }
+
+    /**
+     * An earlier document found to be a duplicate of a new one
+     */
+    public static class Match {
+        private final String id;
+        private final String textsHash;
+        private final double similarity;
+
+        Match(String id, String textsHash, double similarity) {
+            this.id = id;
+            this.textsHash = textsHash;
+            this.similarity = similarity;
+        }
+
+        /**
+         * @return the id of the earlier document
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the hash of the texts of the earlier document, see {@link EnrichmentCache#hashTexts(List, List)}
+         */
+        public String getTextsHash() {
+            return textsHash;
+        }
+
+        /**
+         * @return the estimated Jaccard similarity of the shingles of the two documents, 1 for the same texts
+         */
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /**
+     * A document checked for duplicates, see {@link #check(String, List, String, String)}, to be added to the index
+     * once it's annotated, see {@link #register(Checked)}
+     */
+    public static class Checked {
+        // null if the texts have no words
+        private final Document document;
+        private final Match match;
+
+        Checked(Document document, Match match) {
+            this.document = document;
+            this.match = match;
+        }
+
+        /**
+         * @return the most similar earlier document, or null if there is none
+         */
+        public Match getMatch() {
+            return match;
+        }
+    }
+
+    /**
+     * Constructor for class #NearDuplicateDetector
+     *
+     * @param threshold    the minimum similarity of a near-duplicate, in (0, 1]
+     * @param maxDocuments the maximum number of documents whose signatures are kept
+     */
+    public NearDuplicateDetector(double threshold, int maxDocuments) {
+        this.threshold = threshold;
+        this.maxDocuments = Math.max(1, maxDocuments);
+        Metrics.getInstance().registerGauge("near_duplicate_index_size", this::size);
+    }
+
+    private static long mix(long x) {
+        // the finalizer of MurmurHash3
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * @return the MinHash signature of the shingles of the texts, or null if the texts have no words. The languages of
+     * the texts are left out, so that a change in their identification doesn't hide a duplicate
+     */
+    static int[] signature(List<String> texts) {
+        int[] signature = new int[SIGNATURE_LENGTH];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        boolean empty = true;
+        long[] words = new long[SHINGLE_WORDS];
+        for (int t = 0; t < texts.size(); ++t) {
+            String text = texts.get(t);
+            int nWords = 0;
+            long word = 0;
+            boolean inWord = false;
+            for (int i = 0; i <= text.length(); ++i) {
+                char c = i < text.length() ? text.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    // FNV-1a over the lower case characters of the word
+                    word = ((inWord ? word : 0xcbf29ce484222325L) ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                    inWord = true;
+                } else if (inWord) {
+                    inWord = false;
+                    words[nWords % SHINGLE_WORDS] = word;
+                    ++nWords;
+                    if (nWords >= SHINGLE_WORDS) {
+                        addShingle(signature, words, nWords);
+                        empty = false;
+                    }
+                }
+            }
+            // texts shorter than a shingle are a single shingle
+            if (nWords > 0 && nWords < SHINGLE_WORDS) {
+                addShingle(signature, words, nWords);
+                empty = false;
+            }
+        }
+        return empty ? null : signature;
+    }
+
+    /**
+     * Add the shingle of the last words to the signature
+     */
+    private static void addShingle(int[] signature, long[] words, int nWords) {
+        long shingle = 0;
+        for (int w = Math.max(0, nWords - SHINGLE_WORDS); w < nWords; ++w) {
+            shingle = mix(shingle * 31 + words[w % SHINGLE_WORDS]);
+        }
+        for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+            int h = (int) (mix(shingle ^ SEEDS[i]) >>> 33);
+            if (h < signature[i]) {
+                signature[i] = h;
+            }
+        }
+    }
+
+    /**
+     * Look for an earlier document with the same or nearly the same texts, annotated with the same options. The
+     * document isn't added to the index, see {@link #register(Checked)}.
+     *
+     * @param id        the id of the document
+     * @param texts     the cleaned texts of the document
+     * @param textsHash the hash of the texts and languages, see {@link EnrichmentCache#hashTexts(List, List)}
+     * @param options   the key of the options of the document, see {@link RequestOptions#getKey()}
+     * @return the document, with the most similar earlier document with a similarity of at least the threshold, if
+     * any
+     */
+    public Checked check(String id, List<String> texts, String textsHash, String options) {
+        long start = System.nanoTime();
+        int[] signature = signature(texts);
+        Metrics.getInstance().observe("near_duplicate_check", System.nanoTime() - start);
+        if (signature == null) {
+            return new Checked(null, null);
+        }
+        Document document = new Document(id, textsHash, options, signature);
+        Match match = null;
+        synchronized (this) {
+            ++checked;
+            for (int b = 0; b < BANDS; ++b) {
+                List<Document> bucket = buckets.get(document.bands[b]);
+                if (bucket == null) {
+                    continue;
+                }
+                for (Document candidate : bucket) {
+                    if (!candidate.options.equals(options)) {
+                        continue;
+                    }
+                    double similarity = candidate.textsHash.equals(textsHash) ? 1
+                            : similarity(candidate.signature, signature);
+                    if (similarity >= threshold && (match == null || similarity > match.similarity)) {
+                        match = new Match(candidate.id, candidate.textsHash, similarity);
+                    }
+                }
+            }
+            if (match == null) {
+                return new Checked(document, null);
+            }
+            if (match.textsHash.equals(textsHash)) {
+                ++duplicates;
+            } else {
+                ++nearDuplicates;
+            }
+            for (String text : texts) {
+                duplicateBytes += Metrics.utf8Length(text);
+            }
+        }
+        Metrics.getInstance().increment("near_duplicates");
+        return new Checked(document, match);
+    }
+
+    /**
+     * Add an annotated document to the index, for the next documents to be compared with it. The duplicates of earlier
+     * documents aren't added, the next duplicates are found from the earlier ones.
+     *
+     * @param checked the document, as returned by {@link #check(String, List, String, String)}
+     */
+    public void register(Checked checked) {
+        if (checked.document == null || checked.match != null) {
+            return;
+        }
+        synchronized (this) {
+            add(checked.document);
+        }
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+            if (a[i] == b[i]) {
+                ++equal;
+            }
+        }
+        return (double) equal / SIGNATURE_LENGTH;
+    }
+
+    private void add(Document document) {
+        documents.addLast(document);
+        for (long band : document.bands) {
+            buckets.computeIfAbsent(band, k -> new ArrayList<>(1)).add(document);
+        }
+        if (documents.size() > maxDocuments) {
+            Document oldest = documents.removeFirst();
+            for (long band : oldest.bands) {
+                List<Document> bucket = buckets.get(band);
+                bucket.remove(oldest);
+                if (bucket.isEmpty()) {
+                    buckets.remove(band);
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * @return the number of documents checked, of exact and near duplicates found, and the size of their texts
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("checked", checked);
+        stats.put("duplicates", duplicates);
+        stats.put("nearDuplicates", nearDuplicates);
+        stats.put("duplicateBytes", duplicateBytes);
+        stats.put("indexSize", documents.size());
+        stats.put("threshold", threshold);
+        return stats;
+    }
+}
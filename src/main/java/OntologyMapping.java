@@ -147,6 +147,24 @@ public class OntologyMapping {
         loadOntologies();
     }
 
+    private OntologyMapping(OntologyMapping base, boolean allowAlternativeNames, boolean hierarchy) {
+        this.inputDir = base.inputDir;
+        this.allowAlternativeNames = allowAlternativeNames;
+        this.hierarchy = hierarchy;
+        this.ontologies = base.ontologies;
+    }
+
+    /**
+     * @return a mapping sharing the loaded ontologies of this one, with the given options, so that requests with
+     * different options can be mapped at the same time
+     */
+    public OntologyMapping withOptions(boolean allowAlternativeNames, boolean hierarchy) {
+        if (allowAlternativeNames == this.allowAlternativeNames && hierarchy == this.hierarchy) {
+            return this;
+        }
+        return new OntologyMapping(this, allowAlternativeNames, hierarchy);
+    }
+
     public void MapWithOntology(JSONObject annotatedDocument, String ontologyName) {
         List<Ontology> chosenOntologies = new ArrayList<>();
         if (ontologyName.equals("ALL")) {
@@ -0,0 +1,92 @@
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the CoreNLP annotations of single paragraphs, see {@link CoreNLPAPI#setParagraphCache}.
+ * <p>
+ * Entries are keyed by the annotation options of the pipeline and a hash of the paragraph, so that a revised document
+ * only has its new or edited paragraphs annotated. Cached annotations are shared, they must not be modified.
+ */
+public class ParagraphCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, AnnotatedText> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor for class #ParagraphCache
+     *
+     * @param maxSize the maximum number of paragraphs kept in the cache
+     */
+    public ParagraphCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, AnnotatedText>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AnnotatedText> eldest) {
+                if (size() > ParagraphCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    Metrics.getInstance().increment("paragraph_cache_evictions");
+                    return true;
+                }
+                return false;
+            }
+        };
+        Metrics.getInstance().registerGauge("paragraph_cache_size", this::size);
+    }
+
+    public AnnotatedText get(String key) {
+        AnnotatedText result;
+        synchronized (entries) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            Metrics.getInstance().increment("paragraph_cache_misses");
+        } else {
+            hits.incrementAndGet();
+            Metrics.getInstance().increment("paragraph_cache_hits");
+        }
+        return result;
+    }
+
+    public void put(String key, AnnotatedText annotation) {
+        synchronized (entries) {
+            entries.put(key, annotation);
+        }
+    }
+
+    /**
+     * Drop a paragraph, if it's cached
+     */
+    public void remove(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return json object with the size, capacity, hits, misses, evictions and hit rate of the cache
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("size", size());
+        stats.put("maxSize", maxSize);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("evictions", evictions.get());
+        stats.put("hitRate", h + m == 0 ? 0.0 : h * 1.0 / (h + m));
+        return stats;
+    }
+}
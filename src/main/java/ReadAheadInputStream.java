@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the wrapped stream ahead on its own thread, in blocks, so that the work done by the wrapped stream
+ * (e.g. decompression) overlaps with the work of the reader (e.g. parsing and annotating documents).
+ */
+public class ReadAheadInputStream extends InputStream {
+    // marks the end of the stream
+    private static final byte[] END = new byte[0];
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> blocks;
+    private final Thread thread;
+    private volatile IOException error;
+    private byte[] block = new byte[0];
+    private int position;
+    private boolean ended;
+
+    /**
+     * Constructor for class #ReadAheadInputStream, starts reading right away
+     *
+     * @param in        the stream to read ahead
+     * @param blockSize the size of the blocks read at once
+     * @param maxBlocks the maximum number of blocks read ahead
+     */
+    public ReadAheadInputStream(InputStream in, int blockSize, int maxBlocks) {
+        this.in = in;
+        this.blocks = new ArrayBlockingQueue<>(Math.max(1, maxBlocks));
+        thread = new Thread(() -> readAhead(blockSize), "read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readAhead(int blockSize) {
+        try {
+            while (true) {
+                byte[] buffer = new byte[blockSize];
+                int length = 0;
+                int n;
+                while (length < blockSize && (n = in.read(buffer, length, blockSize - length)) != -1) {
+                    length += n;
+                }
+                if (length > 0) {
+                    blocks.put(length == blockSize ? buffer : Arrays.copyOf(buffer, length));
+                }
+                if (length < blockSize) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // the stream was closed
+            return;
+        }
+        try {
+            blocks.put(END);
+        } catch (InterruptedException e) {
+            // the stream was closed
+        }
+    }
+
+    /**
+     * @return false if the end of the stream was reached
+     */
+    private boolean nextBlock() throws IOException {
+        if (ended) {
+            return false;
+        }
+        try {
+            block = blocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead", e);
+        }
+        position = 0;
+        if (block == END) {
+            ended = true;
+            if (error != null) {
+                throw error;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    /**
+     * Stop reading ahead, and close the wrapped stream once the reading thread stopped using it
+     */
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The options of an annotation request, with their defaults filled in and the annotators resolved.
+ * <p>
+ * Instances are immutable and interned, so that the requests with the same options share the same instance, and the
+ * enrichers prepared for them, see {@link DocumentAnnotatorMicroservice#preparePipeLine(List, RequestOptions)}.
+ * The boolean options are packed in a bitmask: the options of the requests that only set some of them (the usual case)
+ * are taken from a table indexed by the bitmask. The other ones (custom annotators, wiki selection or ontology) are
+ * interned in a map of at most {@link #MAX_INTERNED} entries.
+ */
+public final class RequestOptions {
+    public static final int NER = 1;
+    public static final int WORD_ANNOTATIONS = 1 << 1;
+    public static final int SYNONYMS = 1 << 2;
+    public static final int SPLIT_INTO_PARAGRAPHS = 1 << 3;
+    public static final int NUMERIC_CLASSIFIERS = 1 << 4;
+    public static final int INDICES = 1 << 5;
+    public static final int SPACES = 1 << 6;
+    public static final int WIKI_CONCEPTS = 1 << 7;
+    public static final int ALLOW_ALTERNATIVE_NAMES = 1 << 8;
+    public static final int HIERARCHY = 1 << 9;
+    private static final int N_FLAGS = 10;
+    // the options of a request setting none of them
+    public static final int DEFAULT_FLAGS = NER | WORD_ANNOTATIONS | SYNONYMS | SPLIT_INTO_PARAGRAPHS
+            | NUMERIC_CLASSIFIERS | WIKI_CONCEPTS | ALLOW_ALTERNATIVE_NAMES;
+    public static final String DEFAULT_ONTOLOGY = "InforMEA";
+    private static final int MAX_INTERNED = 1024;
+
+    // the options with the default annotators, wiki selection and ontology, by bitmask, built when first requested
+    private static final AtomicReferenceArray<RequestOptions> PROFILES = new AtomicReferenceArray<>(1 << N_FLAGS);
+    private static final Map<String, RequestOptions> INTERNED = new ConcurrentHashMap<>();
+
+    private final int flags;
+    private final List<String> annotators;
+    private final double wikiCutoff;
+    private final int wikiTopK;
+    private final String ontology;
+    private final String key;
+
+    private RequestOptions(int flags, List<String> annotators, double wikiCutoff, int wikiTopK, String ontology,
+                           String key) {
+        this.flags = flags;
+        this.annotators = Collections.unmodifiableList(annotators);
+        this.wikiCutoff = wikiCutoff;
+        this.wikiTopK = wikiTopK;
+        this.ontology = ontology;
+        this.key = key;
+    }
+
+    /**
+     * Get the options of a request, the ones that are null taking their default value
+     *
+     * @param annotators the CoreNLP annotators to run, see {@link CoreNLPAPI#resolveAnnotators}. If null, the
+     *                   annotators needed by the NER and wordAnnotations options are run. Otherwise, they decide alone
+     *                   which annotations are produced: named entities only if "ner" is one of them, and pos, lemma
+     *                   and synonyms of the words only if "pos" and "lemma" are
+     * @param wikiCutoff the fraction of the squared pageRanks of the wiki concepts of each chunk to keep, in (0, 1]
+     * @param wikiTopK   the maximum number of wiki concepts to keep for each chunk, 0 for no limit
+     * @param ontology   the ontology to map with, "ALL" for all the ontologies, "" for no mapping
+     * @throws IllegalArgumentException if the annotators, the cutoff or the top k are invalid
+     */
+    public static RequestOptions of(List<String> annotators, Boolean NER, Boolean wordAnnotations, Boolean synonyms,
+                                    Boolean splitIntoParagraphs, Boolean numericClassifiers, Boolean indices,
+                                    Boolean spaces, Boolean wikiConcepts, Double wikiCutoff, Integer wikiTopK,
+                                    String ontology, Boolean allowAlternativeNames, Boolean hierarchy) {
+        int flags = DEFAULT_FLAGS;
+        flags = flag(flags, RequestOptions.NER, NER);
+        flags = flag(flags, WORD_ANNOTATIONS, wordAnnotations);
+        flags = flag(flags, SYNONYMS, synonyms);
+        flags = flag(flags, SPLIT_INTO_PARAGRAPHS, splitIntoParagraphs);
+        flags = flag(flags, NUMERIC_CLASSIFIERS, numericClassifiers);
+        flags = flag(flags, INDICES, indices);
+        flags = flag(flags, SPACES, spaces);
+        flags = flag(flags, WIKI_CONCEPTS, wikiConcepts);
+        flags = flag(flags, ALLOW_ALTERNATIVE_NAMES, allowAlternativeNames);
+        flags = flag(flags, HIERARCHY, hierarchy);
+        return of(flags, annotators, wikiCutoff == null ? Wikification.DEFAULT_CUTOFF : wikiCutoff,
+                wikiTopK == null ? 0 : wikiTopK, ontology == null ? DEFAULT_ONTOLOGY : ontology);
+    }
+
+    /**
+     * Same as {@link #of(List, Boolean, Boolean, Boolean, Boolean, Boolean, Boolean, Boolean, Boolean, Double,
+     * Integer, String, Boolean, Boolean)}, with the boolean options given as a bitmask of the flags of this class
+     */
+    public static RequestOptions of(int flags, List<String> annotators, double wikiCutoff, int wikiTopK,
+                                    String ontology) {
+        if (annotators != null) {
+            annotators = CoreNLPAPI.resolveAnnotators(annotators);
+            // the annotators decide whether there are named entities
+            flags = annotators.contains("ner") ? flags | NER : flags & ~NER;
+            if (annotators.equals(CoreNLPAPI.defaultAnnotators((flags & NER) != 0))) {
+                annotators = null;
+            }
+        }
+        if (annotators == null && wikiCutoff == Wikification.DEFAULT_CUTOFF && wikiTopK == 0
+                && ontology.equals(DEFAULT_ONTOLOGY)) {
+            RequestOptions options = PROFILES.get(flags);
+            if (options == null) {
+                PROFILES.compareAndSet(flags, null, create(flags, null, wikiCutoff, wikiTopK, ontology));
+                options = PROFILES.get(flags);
+            }
+            return options;
+        }
+        if (!(wikiCutoff > 0 && wikiCutoff <= 1)) {
+            throw new IllegalArgumentException("The wiki cutoff must be in (0, 1]: " + wikiCutoff);
+        }
+        if (wikiTopK < 0) {
+            throw new IllegalArgumentException("The wiki top k can't be negative: " + wikiTopK);
+        }
+        RequestOptions options = create(flags, annotators, wikiCutoff, wikiTopK, ontology);
+        RequestOptions interned = INTERNED.get(options.key);
+        if (interned != null) {
+            return interned;
+        }
+        // past the limit, the options of the unusual requests aren't kept
+        return INTERNED.size() < MAX_INTERNED ? INTERNED.computeIfAbsent(options.key, k -> options) : options;
+    }
+
+    private static RequestOptions create(int flags, List<String> annotators, double wikiCutoff, int wikiTopK,
+                                         String ontology) {
+        if (annotators == null) {
+            annotators = CoreNLPAPI.defaultAnnotators((flags & NER) != 0);
+        }
+        String key = Integer.toHexString(flags) + "|" + String.join(",", annotators) + "|" + wikiCutoff + "|"
+                + wikiTopK + "|" + ontology;
+        return new RequestOptions(flags, annotators, wikiCutoff, wikiTopK, ontology, key);
+    }
+
+    private static int flag(int flags, int flag, Boolean value) {
+        if (value == null) {
+            return flags;
+        }
+        return value ? flags | flag : flags & ~flag;
+    }
+
+    /**
+     * @return whether the given flag (one of the constants of this class) is set
+     */
+    public boolean is(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the CoreNLP annotators to run, in pipeline order, see {@link CoreNLPAPI#resolveAnnotators}
+     */
+    public List<String> getAnnotators() {
+        return annotators;
+    }
+
+    public double getWikiCutoff() {
+        return wikiCutoff;
+    }
+
+    public int getWikiTopK() {
+        return wikiTopK;
+    }
+
+    public String getOntology() {
+        return ontology;
+    }
+
+    /**
+     * @return a string identifying the options, the same for equal options
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The sentence boundaries of the texts of a single request, handed from the enricher that splits the texts into
+ * sentences (CoreNLP) to the enrichers that need them (the Wikifier chunking).
+ * <p>
+ * The boundaries of a text are published as soon as they are known, so the consumers can start while the producer
+ * carries on with the rest of its work. Texts that the producer doesn't split are skipped, and the consumers fall
+ * back to their own splitting.
+ */
+public class SentenceBoundaries {
+    private final List<CompletableFuture<int[]>> sentenceEnds;
+    // whether an enricher of the request is expected to split each text, see #markNotSplit
+    private final boolean[] split;
+
+    /**
+     * Constructor for class #SentenceBoundaries
+     *
+     * @param nTexts the number of texts of the request
+     */
+    public SentenceBoundaries(int nTexts) {
+        sentenceEnds = new ArrayList<>(nTexts);
+        for (int i = 0; i < nTexts; ++i) {
+            sentenceEnds.add(new CompletableFuture<>());
+        }
+        split = new boolean[nTexts];
+        Arrays.fill(split, true);
+    }
+
+    /**
+     * @return the number of texts of the request
+     */
+    public int size() {
+        return split.length;
+    }
+
+    /**
+     * Mark a text as not split by any enricher of the request, before the enrichers start, so that the consumers chunk
+     * it on their own from the start
+     *
+     * @param textIndex the index of the text in the request
+     */
+    public void markNotSplit(int textIndex) {
+        split[textIndex] = false;
+        skip(textIndex);
+    }
+
+    /**
+     * @param textIndex the index of the text in the request
+     * @return whether an enricher of the request is expected to split the text. Its sentence boundaries may still
+     * be missing, if it failed or took too long.
+     */
+    public boolean isSplit(int textIndex) {
+        return split[textIndex];
+    }
+
+    /**
+     * @param textIndex    the index of the text in the request
+     * @param sentenceEnds the end offsets (exclusive) of the sentences of the text, in increasing order
+     */
+    public void publish(int textIndex, int[] sentenceEnds) {
+        this.sentenceEnds.get(textIndex).complete(sentenceEnds);
+    }
+
+    /**
+     * Mark a text as not split, if it wasn't published yet, releasing the consumers waiting for it
+     *
+     * @param textIndex the index of the text in the request
+     */
+    public void skip(int textIndex) {
+        sentenceEnds.get(textIndex).complete(null);
+    }
+
+    /**
+     * Mark all the texts that weren't published yet as not split, releasing the consumers waiting for them
+     */
+    public void skipAll() {
+        for (CompletableFuture<int[]> ends : sentenceEnds) {
+            ends.complete(null);
+        }
+    }
+
+    /**
+     * Wait for the sentence boundaries of a text
+     *
+     * @param textIndex     the index of the text in the request
+     * @param timeoutMillis the maximum time to wait in ms
+     * @return the end offsets of the sentences of the text, or null if the text wasn't split in time
+     */
+    public int[] await(int textIndex, long timeoutMillis) {
+        long start = System.nanoTime();
+        try {
+            return sentenceEnds.get(textIndex).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } finally {
+            Metrics.getInstance().observe("sentence_boundaries_wait", System.nanoTime() - start);
+        }
+    }
+}
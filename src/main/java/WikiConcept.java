@@ -0,0 +1,84 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A wikipedia concept found by the wikifier, weighted by the share of the text of the chunk it was found in.
+ * The concepts of the chunks of a document are merged by uri with {@link #merge(WikiConcept)}, summing their scores,
+ * and only the merged concepts are turned into JSON.
+ */
+public class WikiConcept {
+    private final String uri;
+    private final String secUri;
+    private final String secName;
+    private final String lang;
+    private final JSONArray wikiDataClasses;
+    private final String dbPediaIri;
+    private double pageRank;
+    private double cosine;
+    private int supportLen;
+    // the name and uri of the concept in each of its languages
+    private final Map<String, String[]> langInfo = new LinkedHashMap<>();
+
+    /**
+     * Read a concept from an annotation of the wikifier
+     *
+     * @param annotation the annotation, as returned by the annotate-article endpoint
+     * @param weight     the weight of the chunk the concept was found in
+     */
+    public WikiConcept(JSONObject annotation, double weight) {
+        String url = annotation.getString("url");
+        this.lang = annotation.getString("lang");
+        this.secUri = annotation.has("secUrl") ? annotation.getString("secUrl") : null;
+        this.uri = secUri != null ? secUri : url;
+        this.secName = annotation.has("secTitle") ? annotation.getString("secTitle") : null;
+        this.wikiDataClasses = annotation.has("wikiDataClasses") ? annotation.getJSONArray("wikiDataClasses") : null;
+        this.cosine = annotation.getDouble("cosine") * weight;
+        this.pageRank = annotation.getDouble("pageRank") * weight;
+        this.dbPediaIri = annotation.getString("dbPediaIri");
+        this.supportLen = annotation.getInt("supportLen");
+        langInfo.put(lang, new String[]{annotation.getString("title"), url});
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Add the scores of the same concept, found in another chunk
+     */
+    public void merge(WikiConcept other) {
+        pageRank += other.pageRank;
+        cosine += other.cosine;
+        supportLen += other.supportLen;
+        for (Map.Entry<String, String[]> entry : other.langInfo.entrySet()) {
+            langInfo.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public JSONObject toJSON() {
+        JSONObject concept = new JSONObject();
+        concept.put("uri", uri);
+        JSONObject langs = new JSONObject();
+        for (Map.Entry<String, String[]> entry : langInfo.entrySet()) {
+            JSONObject info = new JSONObject();
+            info.put("name", entry.getValue()[0]);
+            info.put("uri", entry.getValue()[1]);
+            // the frequency of this language of this concept
+            info.put("freq", 1);
+            langs.put(entry.getKey(), info);
+        }
+        concept.put("langInfo", langs);
+        concept.put("secUri", secUri);
+        concept.put("secName", secName);
+        concept.put("lang", lang);
+        concept.put("wikiDataClasses", wikiDataClasses);
+        concept.put("cosine", cosine);
+        concept.put("pageRank", pageRank);
+        concept.put("dbPediaIri", dbPediaIri);
+        concept.put("supportLen", supportLen);
+        return concept;
+    }
+}
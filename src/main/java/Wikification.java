@@ -1,242 +1,423 @@
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Wikification implements DocumentEnricher {
-    private String userKey;
     private String wikifierUrl;
+    private WikifierClient client;
     private int maxLength;
     private int nThreads;
-    private volatile List<JSONObject> conceptsList = new ArrayList<>();
+    private long sentencesWaitMillis = 10000;
+    private WikifierCoalescer coalescer;
+    private int coalesceMaxChunkLength;
+    // the concepts of a chunk are selected by decreasing pageRank, until their squared pageRanks sum up to the cutoff
+    // fraction of the total, or until topK of them are selected
+    private double cutoff = DEFAULT_CUTOFF;
+    private int topK = 0;
 
-    public Wikification(String userKey, String wikifierUrl, int maxlength, int nThreads) {
-        this.userKey = userKey;
+    public static final double DEFAULT_CUTOFF = 0.8;
+
+    /**
+     * @param timeoutMillis the timeout of the calls to the wikifier
+     */
+    public Wikification(String userKey, String wikifierUrl, int maxlength, int nThreads, int timeoutMillis) {
         this.wikifierUrl = wikifierUrl;
         this.maxLength = maxlength;
         this.nThreads = nThreads;
+        // room for the hedged calls of the concurrent requests
+        this.client = new WikifierClient(userKey, wikifierUrl, 4 * nThreads, timeoutMillis);
     }
 
-    public Wikification(String userKey, String wikifierUrl) {
-        this(userKey, wikifierUrl, 10000, 5);
+    public Wikification(String userKey, String wikifierUrl, int maxlength, int nThreads) {
+        this(userKey, wikifierUrl, maxlength, nThreads, 60000);
     }
 
-    private JSONObject wikifyText(String text) {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpPost request = new HttpPost(wikifierUrl + "annotate-article");
-            List<NameValuePair> body = new ArrayList<>();
-            body.add(new BasicNameValuePair("text", text));
-            body.add(new BasicNameValuePair("lang", "auto"));
-            body.add(new BasicNameValuePair("support", "true"));
-            body.add(new BasicNameValuePair("ranges", "false"));
-            body.add(new BasicNameValuePair("includeCosines", "true"));
-            body.add(new BasicNameValuePair("userKey", userKey));
-            body.add(new BasicNameValuePair("nTopDfValuesToIgnore", "50"));
-            body.add(new BasicNameValuePair("nWordsToIgnoreFromList", "50"));
-            request.addHeader("content-type", "application/x-www-form-urlencoded");
-            request.setEntity(new UrlEncodedFormEntity(body));
-            HttpResponse result = httpClient.execute(request);
-
-            String json = EntityUtils.toString(result.getEntity(), "UTF-8");
-            try {
-                return new JSONObject(json);
-            } catch (Exception e) {
-                return new JSONObject("{}");
-            }
+    /**
+     * A copy of the given wikification, sharing its client, with its own selection of the concepts
+     */
+    private Wikification(Wikification base, double cutoff, int topK) {
+        this.wikifierUrl = base.wikifierUrl;
+        this.maxLength = base.maxLength;
+        this.nThreads = base.nThreads;
+        this.client = base.client;
+        this.sentencesWaitMillis = base.sentencesWaitMillis;
+        this.coalescer = base.coalescer;
+        this.coalesceMaxChunkLength = base.coalesceMaxChunkLength;
+        this.cutoff = cutoff;
+        this.topK = topK;
+    }
 
-        } catch (IOException ex) {
-            return new JSONObject("{}");
+    /**
+     * @param cutoff the fraction of the squared pageRanks of the concepts of each chunk to keep, in (0, 1]
+     * @param topK   the maximum number of concepts to keep for each chunk, 0 for no limit
+     * @return a wikification sharing the client, the settings and the coalescing of this one, but selecting the
+     * concepts with the given cutoff and top k
+     * @throws IllegalArgumentException if the cutoff or top k are out of range
+     */
+    public Wikification withSelection(double cutoff, int topK) {
+        if (!(cutoff > 0 && cutoff <= 1)) {
+            throw new IllegalArgumentException("The wiki cutoff must be in (0, 1]: " + cutoff);
+        }
+        if (topK < 0) {
+            throw new IllegalArgumentException("The wiki top k can't be negative: " + topK);
         }
+        if (cutoff == this.cutoff && topK == this.topK) {
+            return this;
+        }
+        return new Wikification(this, cutoff, topK);
     }
 
-    class PairRankConcept implements Comparable<PairRankConcept> {
-        double rank;
-        JSONObject concept;
+    public Wikification(String userKey, String wikifierUrl) {
+        this(userKey, wikifierUrl, 10000, 5);
+    }
 
-        public PairRankConcept(Object obj) {
-            concept = (JSONObject) obj;
-            rank = concept.getDouble("pageRank");
-        }
+    /**
+     * @param sentencesWaitMillis the maximum time to wait for the sentence boundaries of a text before chunking it
+     *                            on its own
+     */
+    public void setSentencesWaitMillis(long sentencesWaitMillis) {
+        this.sentencesWaitMillis = sentencesWaitMillis;
+    }
 
-        @Override
-        public int compareTo(PairRankConcept pairRankConcept) {
-            if (Math.abs(rank - pairRankConcept.rank) < 1e-6) {
-                return 0;
-            }
-            if (rank > pairRankConcept.rank) {
-                return -1;
-            }
-            return 1;
+    /**
+     * Wikify the chunks shorter than the given length together with the short chunks of other documents, in calls of at
+     * most {@link #maxLength} characters
+     *
+     * @param windowMillis           the maximum time a chunk waits for other chunks before it is wikified
+     * @param coalesceMaxChunkLength the length of the chunks that are coalesced
+     * @see WikifierCoalescer
+     */
+    public void enableCoalescing(long windowMillis, int coalesceMaxChunkLength) {
+        this.coalescer = new WikifierCoalescer(this::wikifyText, maxLength, windowMillis,
+                client.getMaxAnnotateMillis());
+        this.coalesceMaxChunkLength = coalesceMaxChunkLength;
+    }
+
+    /**
+     * @return the client calling the wikifier, to configure its retries, circuit breaker and hedging
+     */
+    public WikifierClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return the response of the wikifier, or null if it couldn't be reached
+     */
+    private JSONObject wikifyText(String text, String language) {
+        long start = System.nanoTime();
+        try {
+            return client.annotate(text, language);
+        } finally {
+            Metrics.getInstance().observe("wikifier_call", System.nanoTime() - start);
         }
     }
 
     class Task {
         String text;
+        String language;
         double weight;
         long totalTimeConsumed;
+        // the concepts of the chunk, set once: by the thread running the task when it ends, or to UNFINISHED by the
+        // document when it stops waiting for the task, so that a task ending late can't change what the document read
+        final AtomicReference<TaskResult> result = new AtomicReference<>();
 
-        public Task(String chunk, double weight) {
+        public Task(String chunk, String language, double weight) {
             this.text = chunk;
+            this.language = language;
             this.weight = weight;
         }
 
-        public List<JSONObject> executeTask() {
+        /**
+         * @return the concepts of the chunk, or null if the wikifier couldn't be reached
+         */
+        public List<WikiConcept> executeTask() {
             long startTime = System.currentTimeMillis();
-            JSONObject json = wikifyText(text);
+            long startNanos = System.nanoTime();
+            try {
+                return wikifyChunk();
+            } finally {
+                totalTimeConsumed = System.currentTimeMillis() - startTime;
+                Metrics.getInstance().observe("wikifier_chunk", System.nanoTime() - startNanos);
+            }
+        }
+
+        private List<WikiConcept> wikifyChunk() {
+            JSONObject json = coalescer != null && text.length() < coalesceMaxChunkLength
+                    ? coalescer.wikify(text, language) : wikifyText(text, language);
+            if (json == null) {
+                return null;
+            }
             if (!json.has("annotations") || json.getJSONArray("annotations").length() == 0) {
                 return new ArrayList<>();
             }
             JSONArray annotations = json.getJSONArray("annotations");
-            Iterator<Object> it = annotations.iterator();
-            List<PairRankConcept> objList = new ArrayList<>();
-            while (it.hasNext()) {
-                objList.add(new PairRankConcept(it.next()));
+            double[] ranks = new double[annotations.length()];
+            for (int i = 0; i < ranks.length; ++i) {
+                ranks[i] = annotations.getJSONObject(i).getDouble("pageRank");
             }
-            Collections.sort(objList);
             /*
-             * get top wikipedia concepts
+             * get top wikipedia concepts - noise reduction
              */
-            // calculate total pageRank from all concepts
-            double totalRank = 0;
-            for (PairRankConcept con : objList) {
-                totalRank += con.rank * con.rank;
-            }
-
-            // get top 80% concepts - noise reduction
-            double partial = 0;
-            for (int i = 0; i < objList.size(); ++i) {
-                double rank = objList.get(i).rank;
-                partial += rank * rank;
-                if (partial / totalRank > 0.8) {
-                    objList = objList.subList(0, i + 1);
-                    break;
-                }
-            }
+            int[] selected = selectTopRanked(ranks, cutoff, topK);
             /*
              * prepare concepts
              */
-            List<JSONObject> concepts = new ArrayList<>();
-            // create concept list
-            for (PairRankConcept concept : objList) {
-                JSONObject conceptInfo = new JSONObject();
-                JSONObject oldConcept = concept.concept;
-                conceptInfo.put("uri", oldConcept.getString("url"));
-                JSONObject lang_info = new JSONObject();
-                lang_info.put("name", oldConcept.getString("title"));
-                lang_info.put("uri", oldConcept.getString("url"));
-                // the frequency of this language of this concept
-                lang_info.put("freq", 1);
-                JSONObject lang = new JSONObject();
+            List<WikiConcept> concepts = new ArrayList<>(selected.length);
+            for (int i : selected) {
+                JSONObject annotation = annotations.getJSONObject(i);
                 try {
-                    lang.put(oldConcept.getString("lang"), lang_info);
-                    conceptInfo.put("langInfo", lang);
-                    conceptInfo.put("uri", oldConcept.has("secUrl") ? oldConcept.getString("secUrl") : oldConcept.getString("url"));
-                    conceptInfo.put("secUri", oldConcept.has("secUrl") ? oldConcept.getString("secUrl") : null);
-                    conceptInfo.put("secName", oldConcept.has("secTitle") ? oldConcept.getString("secTitle") : null);
-                    conceptInfo.put("lang", oldConcept.getString("lang"));
-                    conceptInfo.put("wikiDataClasses", oldConcept.has("wikiDataClasses") ? oldConcept.getJSONArray("wikiDataClasses") : null);
-                    conceptInfo.put("cosine", oldConcept.getDouble("cosine") * weight);
-                    conceptInfo.put("pageRank", oldConcept.getDouble("pageRank") * weight);
-                    conceptInfo.put("dbPediaIri", oldConcept.getString("dbPediaIri"));
-                    conceptInfo.put("supportLen", oldConcept.getInt("supportLen"));
+                    concepts.add(new WikiConcept(annotation, weight));
                 } catch (Exception e) {
-                    System.out.println("Error at " + conceptInfo.getString("url"));
+                    System.out.println("Error at " + annotation.optString("url"));
                 }
-
-                concepts.add(conceptInfo);
             }
-            long stopTime = System.currentTimeMillis();
-            totalTimeConsumed = stopTime - startTime;
             return concepts;
         }
     }
 
-    private List<Task> prepareWikificationTasks(String text) {
-// set placeholders
+    /**
+     * Select the highest ranks, until the sum of their squares exceeds the given fraction of the sum of the squares of
+     * all the ranks, or until maxCount ranks are selected. Only the selected ranks are ordered, by popping them from a
+     * heap built in linear time, so that long lists of low ranked candidates are never fully sorted.
+     *
+     * @param ranks    the ranks
+     * @param fraction the fraction of the sum of the squared ranks to select
+     * @param maxCount the maximum number of ranks to select, 0 for no limit
+     * @return the indices of the selected ranks, from the highest rank, equal ranks in the order of their index
+     */
+    static int[] selectTopRanked(double[] ranks, double fraction, int maxCount) {
+        int n = ranks.length;
+        double totalRank = 0;
+        for (double rank : ranks) {
+            totalRank += rank * rank;
+        }
+        int[] heap = new int[n];
+        for (int i = 0; i < n; ++i) {
+            heap[i] = i;
+        }
+        for (int i = n / 2 - 1; i >= 0; --i) {
+            siftDown(heap, i, n, ranks);
+        }
+        int limit = maxCount > 0 ? Math.min(maxCount, n) : n;
+        int[] selected = new int[limit];
+        int count = 0;
+        double partial = 0;
+        int size = n;
+        while (count < limit) {
+            int top = heap[0];
+            selected[count++] = top;
+            partial += ranks[top] * ranks[top];
+            if (partial / totalRank > fraction) {
+                break;
+            }
+            heap[0] = heap[--size];
+            siftDown(heap, 0, size, ranks);
+        }
+        return count == limit ? selected : Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * Restore the max-heap order below the given position
+     */
+    private static void siftDown(int[] heap, int position, int size, double[] ranks) {
+        int index = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && ranksBefore(heap[child + 1], heap[child], ranks)) {
+                ++child;
+            }
+            if (!ranksBefore(heap[child], index, ranks)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = index;
+    }
+
+    private static boolean ranksBefore(int i, int j, double[] ranks) {
+        return ranks[i] > ranks[j] || (ranks[i] == ranks[j] && i < j);
+    }
+
+    /**
+     * Split the text into chunks of at most {@link #maxLength} characters, in a single pass over the text.
+     * If the sentence boundaries of the text are known, each chunk ends at the end of a sentence whenever a sentence
+     * ends in it. Otherwise, or if a single sentence is longer than the maximum length, the chunk is cut at the last
+     * sentence end character, space or newline of the chunk.
+     *
+     * @param text         the text to split
+     * @param language     the language of the text
+     * @param sentenceEnds the end offsets of the sentences of the text in increasing order, or null if not known
+     * @return the wikification tasks of the chunks
+     */
+    private List<Task> prepareWikificationTasks(String text, String language, int[] sentenceEnds) {
         List<Task> tasks = new ArrayList<>();
         int textIndex = 0;
-
+        int sentence = 0;
         // go through whole text
         while (text.length() > textIndex) {
-            // get the text chunk
-            String chunk = text.substring(textIndex, Math.min(textIndex + maxLength, text.length()));
-            // there is not text to be processed, break the cycle
-            if (chunk.length() == 0) {
-                break;
-            }
-            if (chunk.length() == maxLength) {
+            int cutoff;
+            if (text.length() - textIndex >= maxLength) {
                 // text chunk is of max length - make a cutoff at last
-                // end character to avoid cutting in the middle of sentence
-                int cutoff = 0;
-                List<String> lastCharacter = new ArrayList<>();
-                Matcher m = Pattern.compile("[\\.?!]")
-                        .matcher(chunk);
-                while (m.find()) {
-                    lastCharacter.add(m.group());
+                // end of sentence to avoid cutting in the middle of sentence
+                cutoff = 0;
+                if (sentenceEnds != null) {
+                    while (sentence < sentenceEnds.length && sentenceEnds[sentence] <= textIndex + maxLength) {
+                        cutoff = Math.max(cutoff, sentenceEnds[sentence] - textIndex);
+                        ++sentence;
+                    }
                 }
-                if (lastCharacter.size() > 0) {
-                    cutoff = chunk.lastIndexOf(lastCharacter.get(lastCharacter.size() - 1));
+                if (cutoff == 0) {
+                    cutoff = lastIndexOfAny(text, textIndex, maxLength, ".?!");
                 }
                 // if there is not end character detected
-                if (cutoff == 0) {
-                    cutoff = chunk.lastIndexOf(' ');
+                if (cutoff <= 0) {
+                    cutoff = lastIndexOfAny(text, textIndex, maxLength, " ");
                 }
                 //if there is not space detected
-                if (cutoff == 0 || cutoff == -1) {
-                    cutoff = chunk.lastIndexOf('\n');
+                if (cutoff <= 0) {
+                    cutoff = lastIndexOfAny(text, textIndex, maxLength, "\n");
                 }
                 // if there is not newline detected - cut of the whole chunk
-                if (cutoff == 0 || cutoff == -1) {
-                    cutoff = chunk.length();
+                if (cutoff <= 0) {
+                    cutoff = maxLength;
                 }
-                // get the chunk
-                chunk = chunk.substring(0, cutoff);
-                // increment text index
-                textIndex += cutoff;
             } else {
                 // we got to the end of text
-                textIndex += maxLength;
+                cutoff = text.length() - textIndex;
             }
+            String chunk = text.substring(textIndex, textIndex + cutoff);
+            textIndex += cutoff;
             // calculate the weight we add to the found wikipedia concepts
             double weight = chunk.length() * 1.0 / text.length();
             // add a new wikification task on text chunk
-            tasks.add(new Task(chunk, weight));
+            tasks.add(new Task(chunk, language, weight));
         }
         return tasks;
     }
 
+    /**
+     * @return the index, relative to from, of the last of the given characters in text[from, from + length),
+     * or -1 if there is none
+     */
+    private static int lastIndexOfAny(String text, int from, int length, String characters) {
+        for (int i = from + length - 1; i >= from; --i) {
+            if (characters.indexOf(text.charAt(i)) >= 0) {
+                return i - from;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The concepts of a chunk, or null if the chunk wasn't wikified, because the wikifier couldn't be reached or the
+     * task didn't end in time
+     */
+    private static class TaskResult {
+        final List<WikiConcept> concepts;
+
+        TaskResult(List<WikiConcept> concepts) {
+            this.concepts = concepts;
+        }
+    }
+
+    private static final TaskResult UNFINISHED = new TaskResult(null);
+
     Long execute(Task task) {
-        conceptsList.addAll(task.executeTask());
+        task.result.compareAndSet(null, new TaskResult(task.executeTask()));
         return task.totalTimeConsumed;
     }
 
+    /**
+     * The concepts of a text and their scores barely change with a few edits, the concepts of a near-duplicate text
+     * can be used instead
+     */
+    @Override
+    public boolean dependsOnExactText() {
+        return false;
+    }
+
+    /**
+     * The result of texts that were to be chunked along their sentences, but were chunked on their own because their
+     * sentences didn't come in time. It differs from the result of both ways of chunking, so it isn't cached.
+     */
+    private static class FallbackChunkedResult extends JSONObject {
+    }
+
+    /**
+     * Degraded results, missing the concepts of the chunks the wikifier couldn't be reached for, aren't cached, nor
+     * are the results of texts that couldn't be chunked the way their signature says
+     */
+    @Override
+    public boolean isCacheable(JSONObject enrichment) {
+        return !enrichment.optBoolean("wikiDegraded") && !(enrichment instanceof FallbackChunkedResult);
+    }
+
+    /**
+     * @return whether the text is chunked along the sentences found by another enricher of the request
+     */
+    private boolean chunksAlongSentences(SentenceBoundaries sentences, int textIndex) {
+        return sentences != null && sentencesWaitMillis > 0 && sentences.isSplit(textIndex);
+    }
+
+    /**
+     * The signature tells, for each text, whether it's chunked along its sentences or on its own, as the chunks, and
+     * so the concepts, differ
+     */
+    @Override
+    public String getOptionsSignature(SentenceBoundaries sentences) {
+        StringBuilder chunking = new StringBuilder();
+        for (int i = 0; sentences != null && i < sentences.size(); ++i) {
+            chunking.append(chunksAlongSentences(sentences, i) ? 's' : 'c');
+        }
+        return getOptionsSignature() + ",chunking=" + (chunking.length() == 0 ? "c" : chunking);
+    }
+
+    @Override
+    public String getOptionsSignature() {
+        return "Wikifier:url=" + wikifierUrl + ",maxLength=" + maxLength
+                + (coalescer != null ? ",coalesce=" + coalesceMaxChunkLength : "")
+                + (cutoff != DEFAULT_CUTOFF ? ",cutoff=" + cutoff : "")
+                + (topK > 0 ? ",topK=" + topK : "");
+    }
+
     public JSONObject process(String id, List<String> texts, List<String> languages) {
-        conceptsList.clear();
+        return process(id, texts, languages, null);
+    }
+
+    /**
+     * Wikify the texts, chunking them along the sentence boundaries found by the CoreNLP enricher of the same request
+     * if it publishes them within {@link #sentencesWaitMillis}
+     */
+    @Override
+    public JSONObject process(String id, List<String> texts, List<String> languages, SentenceBoundaries sentences) {
         //combine all texts from all languages into tasks
         List<Task> tasks = new ArrayList<>();
-        for (String text : texts) {
-            tasks.addAll(prepareWikificationTasks(text));
+        boolean fallback = false;
+        for (int i = 0; i < texts.size(); ++i) {
+            int[] sentenceEnds = chunksAlongSentences(sentences, i) ? sentences.await(i, sentencesWaitMillis) : null;
+            fallback |= sentenceEnds == null && chunksAlongSentences(sentences, i);
+            tasks.addAll(prepareWikificationTasks(texts.get(i), languages.get(i), sentenceEnds));
+        }
+        if (fallback) {
+            Metrics.getInstance().increment("wikifier_chunking_fallbacks");
         }
-        List<JSONObject> concepts = new ArrayList<>();
         //should be paralleled
         int taskCounter = 0;
         try {
-            ExecutorService.parallelize(tasks, (task) -> {
+            ExecutorService.parallelize("wikifier", tasks, (task) -> {
                 return execute(task);
             }, nThreads);
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (InterruptedException e) {
+            // the chunks that weren't wikified are missing, see below
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
             e.printStackTrace();
         }
       /*
@@ -246,39 +427,43 @@ public class Wikification implements DocumentEnricher {
             execute(task);
         }
 */
+        // each task published its own results, they are collected in the order of the chunks
+        boolean degraded = false;
+        List<WikiConcept> conceptsList = new ArrayList<>();
+        for (Task task : tasks) {
+            // the tasks still running are given up, their chunks count as failed
+            task.result.compareAndSet(null, UNFINISHED);
+            List<WikiConcept> concepts = task.result.get().concepts;
+            degraded |= concepts == null;
+            if (concepts != null) {
+                conceptsList.addAll(concepts);
+            }
+        }
+        if (degraded) {
+            Metrics.getInstance().increment("wikifier_documents_degraded");
+        }
         if (conceptsList.isEmpty()) {
-            return new JSONObject();
+            JSONObject wikifications = fallback ? new FallbackChunkedResult() : new JSONObject();
+            if (degraded) {
+                wikifications.put("wikiDegraded", true);
+            }
+            return wikifications;
         }
 
-        HashMap<String, JSONObject> conceptsMap = new HashMap<>();
-        // merge concepts with matching uri
-        for (JSONObject concept : conceptsList) {
-            String uri = concept.getString("uri");
-            //there is only one initially, which is the original language of the concept
-            JSONObject conceptLangInfo = concept.getJSONObject("langInfo");
-            String conceptLang = conceptLangInfo.keys().next();
-            JSONObject langConceptLangInfo = conceptLangInfo.getJSONObject(conceptLang);//the specific language concept info
-            if (conceptsMap.containsKey(uri)) {
-                // concept exists in mapping - add weighted pageRank
-                JSONObject mergeConcept = conceptsMap.get(uri);
-                JSONObject langInfo = mergeConcept.getJSONObject("langInfo");
-                //if there is no occurrence of this language info (yet), add it
-                if (!langInfo.has(conceptLang)) {
-                    langInfo.put(conceptLang, langConceptLangInfo);
-                } else {//else increase its frequency
-                    langConceptLangInfo.put("freq", langConceptLangInfo.getInt("freq") + 1);
-                }
-                mergeConcept.put("pageRank", mergeConcept.getDouble("pageRank") + concept.getDouble("pageRank"));
-                mergeConcept.put("cosine", mergeConcept.getDouble("cosine") + concept.getDouble("cosine"));
-                mergeConcept.put("supportLen", mergeConcept.getInt("supportLen") + concept.getInt("supportLen"));
-            } else {
-                //  add concept to the mapping
-                conceptsMap.put(uri, concept);
+        HashMap<String, WikiConcept> conceptsMap = new HashMap<>();
+        // merge concepts with matching uri, adding their weighted scores
+        for (WikiConcept concept : conceptsList) {
+            WikiConcept mergeConcept = conceptsMap.putIfAbsent(concept.getUri(), concept);
+            if (mergeConcept != null) {
+                mergeConcept.merge(concept);
             }
         }
 
         // store merged concepts within the material object
-        List<JSONObject> wikipediaConcepts = new ArrayList<>(conceptsMap.values());
+        List<JSONObject> wikipediaConcepts = new ArrayList<>(conceptsMap.size());
+        for (WikiConcept concept : conceptsMap.values()) {
+            wikipediaConcepts.add(concept.toJSON());
+        }
         //System.out.println("unique concepts " + wikipediaConcepts.size());
 
         /*
@@ -302,10 +487,14 @@ public class Wikification implements DocumentEnricher {
             }
         }
          */
-        JSONObject wikifications = new JSONObject();
+        JSONObject wikifications = fallback ? new FallbackChunkedResult() : new JSONObject();
         wikifications.put("id", id);
         //wikifications.put("language", lang);
         wikifications.put("wiki", wikipediaConcepts);
+        if (degraded) {
+            // some chunks couldn't be wikified, the concepts are incomplete
+            wikifications.put("wikiDegraded", true);
+        }
         //wikifications.put("process", "wikification");
         return wikifications;
     }
@@ -0,0 +1,370 @@
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Calls the annotate-article endpoint of the wikifier through a shared pool of connections.
+ * <p>
+ * Failed calls (connection errors, timeouts, 5xx and 429 answers, and unparseable responses) are retried up to
+ * {@link #maxRetries} times, after a random backoff of up to {@link #retryBackoffMillis} doubled at each retry.
+ * After a number of consecutive failures the circuit opens, and calls fail right away for a while, after which a
+ * single trial call decides whether it closes again.
+ * Optionally, a call still running after {@link #hedgeAfterMillis} is sent a second time, and the first answer wins.
+ * A call is aborted, releasing its connection, when the thread waiting for it is interrupted.
+ * <p>
+ * The outcomes of the calls are counted in the metrics as wikifier_calls_ok, wikifier_calls_failed,
+ * wikifier_calls_retried, wikifier_calls_short_circuited, wikifier_calls_interrupted, wikifier_calls_hedged and
+ * wikifier_hedges_won.
+ */
+public class WikifierClient {
+    private final String userKey;
+    private final String wikifierUrl;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig requestConfig;
+    private final int timeoutMillis;
+    private int maxRetries = 2;
+    private long retryBackoffMillis = 500;
+    private long hedgeAfterMillis = 0;
+    private final CircuitBreaker breaker = new CircuitBreaker();
+    // runs the calls, so that the threads waiting for them can abort them when interrupted
+    private final java.util.concurrent.ExecutorService callers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "wikifier-call");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class CircuitBreaker {
+        int failureThreshold = 5;
+        long openMillis = 30000;
+        int consecutiveFailures;
+        // the time the circuit opened, -1 while it's closed
+        long openedAt = -1;
+        boolean trial;
+
+        synchronized boolean allowRequest() {
+            if (openedAt < 0) {
+                return true;
+            }
+            if (!trial && System.currentTimeMillis() - openedAt >= openMillis) {
+                // half open, let a single call through
+                trial = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            openedAt = -1;
+            trial = false;
+        }
+
+        synchronized void recordFailure() {
+            ++consecutiveFailures;
+            if (trial || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+                if (openedAt < 0) {
+                    System.out.println("Wikifier circuit opened after " + consecutiveFailures + " failures");
+                    Metrics.getInstance().increment("wikifier_circuit_opened");
+                }
+                openedAt = System.currentTimeMillis();
+                trial = false;
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return openedAt >= 0;
+        }
+    }
+
+    /**
+     * Constructor for class #WikifierClient
+     *
+     * @param userKey        the user key of the wikifier
+     * @param wikifierUrl    the url of the wikifier, ending with a slash
+     * @param maxConnections the maximum number of connections to the wikifier
+     * @param timeoutMillis  the timeout of connecting to the wikifier and of waiting for its answer, 0 for none
+     */
+    public WikifierClient(String userKey, String wikifierUrl, int maxConnections, int timeoutMillis) {
+        this.userKey = userKey;
+        this.wikifierUrl = wikifierUrl;
+        this.timeoutMillis = timeoutMillis;
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        Metrics.getInstance().registerGauge("wikifier_circuit_open", () -> breaker.isOpen() ? 1 : 0);
+    }
+
+    /**
+     * @param maxRetries         the number of times a failed call is retried
+     * @param retryBackoffMillis the maximum wait before the first retry, doubled at each retry
+     */
+    public void setRetries(int maxRetries, long retryBackoffMillis) {
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * @param failures   the number of consecutive failed calls that opens the circuit, 0 to never open it
+     * @param openMillis the time the circuit stays open before a trial call
+     */
+    public void setCircuitBreaker(int failures, long openMillis) {
+        synchronized (breaker) {
+            breaker.failureThreshold = failures;
+            breaker.openMillis = openMillis;
+        }
+    }
+
+    /**
+     * @param hedgeAfterMillis the time after which a call still running is sent again, 0 to never send it again
+     */
+    public void setHedgeAfterMillis(long hedgeAfterMillis) {
+        this.hedgeAfterMillis = hedgeAfterMillis;
+    }
+
+    /**
+     * @return the longest time {@link #annotate(String, String)} is expected to take, with its retries and backoffs,
+     * or 0 if the calls have no timeout
+     */
+    public long getMaxAnnotateMillis() {
+        if (timeoutMillis <= 0) {
+            return 0;
+        }
+        // each attempt may connect and wait for the answer, after the hedging delay
+        long attemptMillis = 2L * timeoutMillis + hedgeAfterMillis;
+        long backoffMillis = retryBackoffMillis * ((1L << maxRetries) - 1);
+        return (maxRetries + 1) * attemptMillis + backoffMillis;
+    }
+
+    /**
+     * Wikify a text, retrying if needed, letting the wikifier detect its language
+     *
+     * @return the response of the wikifier, or null if it couldn't be reached or the circuit is open
+     */
+    public JSONObject annotate(String text) {
+        return annotate(text, null);
+    }
+
+    /**
+     * Wikify a text of the given language, retrying if needed
+     *
+     * @param language the language of the text, the wikifier detects it if it's unknown
+     * @return the response of the wikifier, or null if it couldn't be reached, the circuit is open, or the thread was
+     * interrupted
+     */
+    public JSONObject annotate(String text, String language) {
+        Metrics metrics = Metrics.getInstance();
+        for (int attempt = 0; ; ++attempt) {
+            if (!breaker.allowRequest()) {
+                metrics.increment("wikifier_calls_short_circuited");
+                return null;
+            }
+            // an unexpected error counts as a failure, so that a trial call never leaves the circuit half open
+            boolean recorded = false;
+            try {
+                JSONObject response = hedgeAfterMillis > 0 ? callHedged(text, language)
+                        : callInterruptibly(newRequest(text, language));
+                breaker.recordSuccess();
+                recorded = true;
+                metrics.increment("wikifier_calls_ok");
+                return response;
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // given up by the caller, it says nothing about the wikifier
+                    recorded = true;
+                    metrics.increment("wikifier_calls_interrupted");
+                    return null;
+                }
+                boolean retryable = isRetryable(e);
+                if (retryable) {
+                    breaker.recordFailure();
+                } else {
+                    // the wikifier answered, the request is wrong
+                    breaker.recordSuccess();
+                }
+                recorded = true;
+                if (!retryable || attempt >= maxRetries) {
+                    System.out.println("Wikifier call failed: " + e);
+                    metrics.increment("wikifier_calls_failed");
+                    return null;
+                }
+                metrics.increment("wikifier_calls_retried");
+                try {
+                    // full jitter, so that the retries of concurrent calls don't hit the wikifier together
+                    Thread.sleep(retryBackoffMillis > 0
+                            ? ThreadLocalRandom.current().nextLong(retryBackoffMillis << attempt) : 0);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            } finally {
+                if (!recorded) {
+                    breaker.recordFailure();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false for the errors the wikifier will answer again, the 4xx answers other than 429
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    private HttpPost newRequest(String text, String language) throws IOException {
+        HttpPost request = new HttpPost(wikifierUrl + "annotate-article");
+        List<NameValuePair> body = new ArrayList<>();
+        body.add(new BasicNameValuePair("text", text));
+        body.add(new BasicNameValuePair("lang", LanguageIdentifier.isUnknown(language) ? "auto" : language));
+        body.add(new BasicNameValuePair("support", "true"));
+        body.add(new BasicNameValuePair("ranges", "false"));
+        body.add(new BasicNameValuePair("includeCosines", "true"));
+        body.add(new BasicNameValuePair("userKey", userKey));
+        body.add(new BasicNameValuePair("nTopDfValuesToIgnore", "50"));
+        body.add(new BasicNameValuePair("nWordsToIgnoreFromList", "50"));
+        request.addHeader("content-type", "application/x-www-form-urlencoded");
+        request.setEntity(new UrlEncodedFormEntity(body));
+        return request;
+    }
+
+    private JSONObject call(HttpPost request) throws IOException {
+        HttpResponse result = httpClient.execute(request);
+        String json;
+        try {
+            json = EntityUtils.toString(result.getEntity(), "UTF-8");
+        } finally {
+            // always consumed, even if it can't be read, so that the connection goes back to the pool
+            EntityUtils.consumeQuietly(result.getEntity());
+        }
+        int status = result.getStatusLine().getStatusCode();
+        if (status != 200) {
+            throw new HttpResponseException(status, result.getStatusLine().getReasonPhrase());
+        }
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            throw new IOException("Unparseable wikifier response", e);
+        }
+    }
+
+    /**
+     * Make the call, aborting it if the thread is interrupted while waiting for the answer
+     */
+    private JSONObject callInterruptibly(HttpPost request) throws IOException {
+        try {
+            return callAsync(request).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the wikifier", e);
+        } finally {
+            // no effect on a call that already answered
+            request.abort();
+        }
+    }
+
+    /**
+     * Make the call, and send it a second time if it doesn't answer within {@link #hedgeAfterMillis}. The first
+     * successful answer is returned, and the other call is aborted.
+     */
+    private JSONObject callHedged(String text, String language) throws IOException {
+        Metrics metrics = Metrics.getInstance();
+        HttpPost first = newRequest(text, language);
+        CompletableFuture<JSONObject> primary = callAsync(first);
+        try {
+            return primary.get(hedgeAfterMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            metrics.increment("wikifier_calls_hedged");
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            first.abort();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the wikifier", e);
+        }
+        HttpPost second = newRequest(text, language);
+        CompletableFuture<JSONObject> hedge = callAsync(second);
+        CompletableFuture<JSONObject> winner = new CompletableFuture<>();
+        // fails only when both calls failed
+        primary.whenComplete((response, error) -> {
+            if (error == null) {
+                winner.complete(response);
+            } else if (hedge.isCompletedExceptionally()) {
+                winner.completeExceptionally(error);
+            }
+        });
+        hedge.whenComplete((response, error) -> {
+            if (error == null) {
+                if (winner.complete(response)) {
+                    metrics.increment("wikifier_hedges_won");
+                }
+            } else if (primary.isCompletedExceptionally()) {
+                winner.completeExceptionally(error);
+            }
+        });
+        try {
+            return winner.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the wikifier", e);
+        } finally {
+            // no effect on the call that already answered
+            first.abort();
+            second.abort();
+        }
+    }
+
+    private CompletableFuture<JSONObject> callAsync(HttpPost request) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call(request);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, callers);
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+}
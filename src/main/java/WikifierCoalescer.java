@@ -0,0 +1,271 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+/**
+ * Groups the small chunks sent to the wikifier by concurrent documents into fewer, larger calls.
+ * <p>
+ * Chunks of the same language are appended to a pending batch, separated by an empty line, until the batch would
+ * exceed the maximum length of a call, or until the latency budget of its first chunk is spent. The batch is then
+ * wikified in a single call, and the annotations are split back to the chunks according to the character offsets of
+ * their support (the mentions in the text): each chunk gets the annotations mentioned in it, with its own mentions.
+ * <p>
+ * The pageRank of an annotation is computed by the wikifier over the whole batch, so it is recomputed for each chunk:
+ * it is shared between the chunks in proportion to the mentions of the annotation in each of them, and the pageRanks of
+ * the annotations of a chunk are then scaled to sum up to the sum of the pageRanks of the batch, as if the chunk had
+ * been wikified alone. The selection of the concepts of a chunk by their pageRank thus depends on that chunk only.
+ * The cosine of an annotation is kept as it is.
+ */
+public class WikifierCoalescer {
+    private static final String SEPARATOR = "\n\n";
+
+    private final BiFunction<String, String, JSONObject> wikifier;
+    private final int maxLength;
+    private final long windowMillis;
+    private final long callTimeoutMillis;
+    // pending batches by language, guarded by this
+    private final Map<String, Batch> pending = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final java.util.concurrent.ExecutorService callers;
+
+    private static class Part {
+        final int offset;
+        final int length;
+        final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+
+        Part(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Batch {
+        final String language;
+        final StringBuilder text = new StringBuilder();
+        final List<Part> parts = new ArrayList<>();
+        ScheduledFuture<?> deadline;
+
+        Batch(String language) {
+            this.language = language;
+        }
+    }
+
+    /**
+     * Constructor for class #WikifierCoalescer
+     *
+     * @param wikifier     makes a single call to the wikifier with a text and its language, returning its response,
+     *                     or null if it failed
+     * @param maxLength    the maximum length of the text of a call
+     * @param windowMillis      the maximum time a chunk waits for other chunks before its batch is sent
+     * @param callTimeoutMillis the maximum time a chunk waits for the response of its batch once sent, 0 for no limit
+     */
+    public WikifierCoalescer(BiFunction<String, String, JSONObject> wikifier, int maxLength, long windowMillis,
+                             long callTimeoutMillis) {
+        this.wikifier = wikifier;
+        this.maxLength = maxLength;
+        this.windowMillis = windowMillis;
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wikifier-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.callers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "wikifier-coalesced-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wikify a chunk as part of a batch, waiting for the result of the batch
+     *
+     * @param text     the chunk
+     * @param language the language of the chunk, only chunks of the same language are grouped
+     * @return the response of the wikifier, restricted to the annotations mentioned in the chunk, or null if the
+     * wikifier couldn't be reached or didn't answer in time
+     */
+    public JSONObject wikify(String text, String language) {
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<JSONObject> result = submit(text, language);
+            if (callTimeoutMillis <= 0) {
+                return result.get();
+            }
+            return result.get(windowMillis + callTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (TimeoutException e) {
+            System.out.println("Coalesced wikifier call timed out");
+            Metrics.getInstance().increment("wikifier_coalesced_timeouts");
+            return null;
+        } finally {
+            Metrics.getInstance().observe("wikifier_coalesced_chunk", System.nanoTime() - start);
+        }
+    }
+
+    private synchronized CompletableFuture<JSONObject> submit(String text, String language) {
+        Batch batch = pending.get(language);
+        if (batch != null && batch.text.length() + SEPARATOR.length() + text.length() > maxLength) {
+            dispatch(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            Batch newBatch = new Batch(language);
+            newBatch.deadline = scheduler.schedule(() -> dispatchIfPending(newBatch), windowMillis,
+                    TimeUnit.MILLISECONDS);
+            pending.put(language, newBatch);
+            batch = newBatch;
+        } else {
+            batch.text.append(SEPARATOR);
+        }
+        Part part = new Part(batch.text.length(), text.length());
+        batch.text.append(text);
+        batch.parts.add(part);
+        if (batch.text.length() + SEPARATOR.length() >= maxLength) {
+            dispatch(batch);
+        }
+        return part.result;
+    }
+
+    private synchronized void dispatchIfPending(Batch batch) {
+        if (pending.get(batch.language) == batch) {
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * Send the batch on its own thread, must be called while holding the lock
+     */
+    private void dispatch(Batch batch) {
+        pending.remove(batch.language);
+        batch.deadline.cancel(false);
+        callers.execute(() -> call(batch));
+    }
+
+    private void call(Batch batch) {
+        try {
+            JSONObject response = wikifier.apply(batch.text.toString(), batch.language);
+            Metrics metrics = Metrics.getInstance();
+            metrics.increment("wikifier_coalesced_calls");
+            metrics.increment("wikifier_coalesced_chunks", batch.parts.size());
+            if (response == null) {
+                // the wikifier couldn't be reached, for any of the chunks
+                for (Part part : batch.parts) {
+                    part.result.complete(null);
+                }
+            } else if (batch.parts.size() == 1) {
+                batch.parts.get(0).result.complete(response);
+            } else {
+                split(response, batch.parts);
+            }
+        } catch (Exception e) {
+            for (Part part : batch.parts) {
+                part.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Split the annotations of the response of a batch back to its parts, by the offsets of their mentions, and
+     * recompute their pageRanks for each part
+     */
+    private static void split(JSONObject response, List<Part> parts) {
+        List<JSONArray> partAnnotations = new ArrayList<>();
+        double[] partPageRanks = new double[parts.size()];
+        for (int i = 0; i < parts.size(); ++i) {
+            partAnnotations.add(new JSONArray());
+        }
+        double batchPageRank = 0;
+        JSONArray annotations = response.optJSONArray("annotations");
+        if (annotations != null) {
+            for (int a = 0; a < annotations.length(); ++a) {
+                JSONObject annotation = annotations.getJSONObject(a);
+                double pageRank = annotation.optDouble("pageRank", 0);
+                batchPageRank += pageRank;
+                JSONArray support = annotation.optJSONArray("support");
+                if (support == null) {
+                    continue;
+                }
+                // the mentions of the annotation in each part
+                Map<Integer, JSONArray> partSupport = new HashMap<>();
+                for (int s = 0; s < support.length(); ++s) {
+                    JSONObject mention = support.getJSONObject(s);
+                    int chFrom = mention.getInt("chFrom");
+                    int i = findPart(parts, chFrom);
+                    if (i < 0) {
+                        continue;
+                    }
+                    Part part = parts.get(i);
+                    JSONObject partMention = new JSONObject(mention, JSONObject.getNames(mention));
+                    partMention.put("chFrom", chFrom - part.offset);
+                    partMention.put("chTo", Math.min(mention.getInt("chTo"), part.offset + part.length - 1)
+                            - part.offset);
+                    // word indices refer to the whole batch
+                    partMention.remove("wFrom");
+                    partMention.remove("wTo");
+                    partSupport.computeIfAbsent(i, k -> new JSONArray()).put(partMention);
+                }
+                for (Map.Entry<Integer, JSONArray> entry : partSupport.entrySet()) {
+                    JSONObject partAnnotation = new JSONObject(annotation, JSONObject.getNames(annotation));
+                    partAnnotation.put("support", entry.getValue());
+                    partAnnotation.put("supportLen", entry.getValue().length());
+                    // the share of the pageRank of the annotation mentioned in the part
+                    double partPageRank = pageRank * entry.getValue().length() / support.length();
+                    partAnnotation.put("pageRank", partPageRank);
+                    partPageRanks[entry.getKey()] += partPageRank;
+                    partAnnotations.get(entry.getKey()).put(partAnnotation);
+                }
+            }
+        }
+        for (int i = 0; i < parts.size(); ++i) {
+            JSONArray annotationsOfPart = partAnnotations.get(i);
+            if (partPageRanks[i] > 0) {
+                double scale = batchPageRank / partPageRanks[i];
+                for (int a = 0; a < annotationsOfPart.length(); ++a) {
+                    JSONObject annotation = annotationsOfPart.getJSONObject(a);
+                    annotation.put("pageRank", annotation.getDouble("pageRank") * scale);
+                }
+            }
+            JSONObject partResponse = new JSONObject();
+            partResponse.put("annotations", annotationsOfPart);
+            parts.get(i).result.complete(partResponse);
+        }
+    }
+
+    /**
+     * @return the index of the part containing the offset, or -1 if it falls in a separator
+     */
+    private static int findPart(List<Part> parts, int offset) {
+        int lo = 0;
+        int hi = parts.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Part part = parts.get(mid);
+            if (offset < part.offset) {
+                hi = mid - 1;
+            } else if (offset >= part.offset + part.length) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
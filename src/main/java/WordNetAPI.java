@@ -53,6 +53,15 @@ public class WordNetAPI {
      * @return list of synonyms of the given word
      */
      ArrayList<String> getSynonyms(String word, String pos) {
+        long start = System.nanoTime();
+        try {
+            return findSynonyms(word, pos);
+        } finally {
+            Metrics.getInstance().observe("wordnet", System.nanoTime() - start);
+        }
+    }
+
+    private ArrayList<String> findSynonyms(String word, String pos) {
         // construct the URL to the WordNet dictionary directory
         // construct the dictionary object and open it
         ArrayList<String> words = new ArrayList<>();
@@ -0,0 +1,275 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker processes annotating the requests of the API, each with its own heap, pipelines, dictionary and ontologies,
+ * so that a long GC pause or an out of memory error in one of them doesn't stop the others.
+ * <p>
+ * Each worker is an {@link AnnotationWorker} listening on its own loopback port. A worker that exits is started again
+ * after {@link #restartDelayMillis}, doubled each time it exits before being ready, up to a minute. A worker is ready
+ * once it accepts connections, which it does after its warm-up, see {@link DocumentAnnotatorMicroservice#warmUp()}.
+ * Each request goes to the ready worker with the fewest requests in progress.
+ */
+public class WorkerPool implements AutoCloseable {
+    private static final long MAX_RESTART_DELAY_MILLIS = 60000;
+    private static final long PROBE_INTERVAL_MILLIS = 500;
+    // the time a worker is given to answer on top of the deadline of the request, and at least when there is none
+    private static final int ANSWER_GRACE_MILLIS = 10000;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<String> command = new ArrayList<>();
+    private final long restartDelayMillis;
+    private final long maxAnswerMillis;
+    private final int retryAfterSeconds;
+    private final ScheduledExecutorService supervisor;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    private class Worker {
+        final int index;
+        final int port;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile Process process;
+        volatile boolean ready;
+        // the number of times in a row the worker exited before being ready
+        int failedStarts;
+
+        Worker(int index, int port) {
+            this.index = index;
+            this.port = port;
+        }
+
+        synchronized void start() {
+            if (closed) {
+                return;
+            }
+            List<String> workerCommand = new ArrayList<>(command);
+            workerCommand.add(String.valueOf(port));
+            try {
+                // the input stays a pipe, the worker exits when it's closed with this process
+                Process started = new ProcessBuilder(workerCommand)
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                process = started;
+                started.onExit().thenRun(() -> exited(started));
+                supervisor.schedule(() -> probe(started), PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                e.printStackTrace();
+                scheduleRestart();
+            }
+        }
+
+        private void probe(Process started) {
+            if (closed || process != started || !started.isAlive()) {
+                return;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                synchronized (this) {
+                    failedStarts = 0;
+                }
+                ready = true;
+                System.out.println("Worker " + index + " ready on port " + port);
+            } catch (IOException e) {
+                // still loading
+                supervisor.schedule(() -> probe(started), PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void exited(Process exited) {
+            if (process != exited) {
+                return;
+            }
+            if (!ready) {
+                ++failedStarts;
+            }
+            ready = false;
+            if (closed) {
+                return;
+            }
+            System.out.println("Worker " + index + " exited with code " + exited.exitValue() + ", restarting");
+            Metrics.getInstance().increment("worker_restarts");
+            scheduleRestart();
+        }
+
+        private synchronized void scheduleRestart() {
+            long delay = Math.min(MAX_RESTART_DELAY_MILLIS, restartDelayMillis << Math.min(failedStarts, 16));
+            supervisor.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Constructor for class #WorkerPool, starts the workers
+     *
+     * @param nWorkers           the number of worker processes
+     * @param basePort           the port of the first worker, the others use the next ports
+     * @param javaOptions        the options of the JVMs of the workers, separated by spaces (e.g. "-Xmx4g")
+     * @param restartDelayMillis the time to wait before starting a worker that exited again
+     * @param maxAnswerMillis    the time a worker is given to answer a request without deadline, so that a worker
+     *                           stuck without exiting doesn't hold the request forever
+     * @param retryAfterSeconds  the time after which clients may retry when no worker can take their request
+     */
+    public WorkerPool(int nWorkers, int basePort, String javaOptions, long restartDelayMillis, long maxAnswerMillis,
+                      int retryAfterSeconds) {
+        this.restartDelayMillis = Math.max(1, restartDelayMillis);
+        this.maxAnswerMillis = Math.max(ANSWER_GRACE_MILLIS, maxAnswerMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String option : javaOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), AnnotationWorker.class.getName()));
+        for (int i = 0; i < nWorkers; ++i) {
+            workers.add(new Worker(i, basePort + i));
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.registerGauge("workers_ready", this::getReadyWorkers);
+        metrics.registerGauge("workers_in_flight", () -> {
+            int inFlight = 0;
+            for (Worker worker : workers) {
+                inFlight += worker.inFlight.get();
+            }
+            return inFlight;
+        });
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * @return the number of workers ready to take requests
+     */
+    public int getReadyWorkers() {
+        int ready = 0;
+        for (Worker worker : workers) {
+            ready += worker.ready ? 1 : 0;
+        }
+        return ready;
+    }
+
+    /**
+     * @return the ready worker with the fewest requests in progress, or null if none is ready
+     */
+    private Worker chooseWorker() {
+        int n = workers.size();
+        // ties go round robin
+        int first = Math.floorMod(next.getAndIncrement(), n);
+        Worker chosen = null;
+        for (int i = 0; i < n; ++i) {
+            Worker worker = workers.get((first + i) % n);
+            if (worker.ready && (chosen == null || worker.inFlight.get() < chosen.inFlight.get())) {
+                chosen = worker;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Annotate the document of a request in one of the workers
+     *
+     * @param params        the parameters of the request
+     * @param timeoutMillis the time left for the request in ms, 0 for no deadline (the worker is then given
+     *                      {@link #maxAnswerMillis} to answer)
+     * @return the body of the answer
+     * @throws IllegalArgumentException             if a parameter is invalid
+     * @throws TimeoutException                     if the annotation didn't finish in time
+     * @throws AdmissionController.RejectedException if no worker is ready, or the worker failed
+     */
+    public String annotate(Map<String, String[]> params, long timeoutMillis) throws TimeoutException {
+        Worker worker = chooseWorker();
+        if (worker == null) {
+            throw new AdmissionController.RejectedException(503, retryAfterSeconds, "No annotation worker is ready");
+        }
+        JSONObject request = new JSONObject();
+        JSONObject requestParams = new JSONObject();
+        for (Map.Entry<String, String[]> param : params.entrySet()) {
+            requestParams.put(param.getKey(), new JSONArray(param.getValue()));
+        }
+        request.put("params", requestParams);
+        request.put("timeoutMillis", timeoutMillis);
+        String answer;
+        worker.inFlight.incrementAndGet();
+        Metrics.getInstance().increment("worker_requests");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), worker.port), 1000);
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+                    timeoutMillis > 0 ? timeoutMillis + ANSWER_GRACE_MILLIS : maxAnswerMillis));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(request.toString());
+            out.write('\n');
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            answer = in.readLine();
+            if (answer == null) {
+                throw new IOException("connection closed");
+            }
+        } catch (SocketTimeoutException e) {
+            throw new TimeoutException("Worker " + worker.index + " didn't answer in time");
+        } catch (IOException e) {
+            Metrics.getInstance().increment("worker_failures");
+            throw new AdmissionController.RejectedException(503, retryAfterSeconds,
+                    "Annotation worker " + worker.index + " failed: " + e.getMessage());
+        } finally {
+            worker.inFlight.decrementAndGet();
+        }
+        int space = answer.indexOf(' ');
+        int status = Integer.parseInt(answer.substring(0, space));
+        String body = answer.substring(space + 1);
+        switch (status) {
+            case 200:
+                return body;
+            case 400:
+                throw new IllegalArgumentException(body);
+            case 503:
+                throw new TimeoutException(body);
+            default:
+                throw new IllegalStateException("Annotation worker " + worker.index + " failed: " + body);
+        }
+    }
+
+    /**
+     * Stop the workers, without restarting them
+     */
+    @Override
+    public void close() {
+        closed = true;
+        supervisor.shutdownNow();
+        for (Worker worker : workers) {
+            Process process = worker.process;
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+}
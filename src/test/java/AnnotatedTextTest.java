@@ -0,0 +1,108 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Joins the annotations of paragraphs built by hand, and checks that they are the annotation of the whole text: the
+ * same tokens, sentences and mentions, at the offsets of the text. The character offsets of the tokens and mentions are
+ * the iFrom/iTo of the output, the word offsets of the mentions its wFrom/wTo.
+ */
+public class AnnotatedTextTest {
+    private static final String FIRST = "Obama met Merkel.";
+    private static final String SECOND = "Merkel left.";
+
+    /**
+     * @param text   the annotated text
+     * @param tokens the tokens of the text, found in order
+     */
+    private static AnnotatedText annotate(String text, String[] tokens, int[] sentenceEnds,
+                                          AnnotatedText.Mention... mentions) {
+        AnnotatedText annotated = new AnnotatedText(tokens.length, sentenceEnds.length,
+                new ArrayList<>(Arrays.asList(mentions)));
+        int at = 0;
+        for (int i = 0; i < tokens.length; ++i) {
+            at = text.indexOf(tokens[i], at);
+            annotated.words[i] = tokens[i];
+            annotated.norms[i] = tokens[i].toLowerCase();
+            annotated.tags[i] = "T" + i;
+            annotated.begins[i] = at;
+            annotated.ends[i] = at + tokens[i].length();
+            at += tokens[i].length();
+        }
+        System.arraycopy(sentenceEnds, 0, annotated.sentenceEnds, 0, sentenceEnds.length);
+        return annotated;
+    }
+
+    private static AnnotatedText first() {
+        return annotate(FIRST, new String[]{"Obama", "met", "Merkel", "."}, new int[]{17},
+                new AnnotatedText.Mention("PERSON", "Obama", 0, 5, 0, 0),
+                new AnnotatedText.Mention("PERSON", "Merkel", 10, 16, 2, 2));
+    }
+
+    private static AnnotatedText second() {
+        return annotate(SECOND, new String[]{"Merkel", "left", "."}, new int[]{12},
+                new AnnotatedText.Mention("PERSON", "Merkel", 0, 6, 0, 0));
+    }
+
+    private static void assertMention(String text, AnnotatedText.Mention mention, String expected, int wordFrom,
+                                      int wordTo) {
+        assertEquals(expected, mention.text);
+        assertEquals(expected, text.substring(mention.begin, mention.end));
+        assertEquals(wordFrom, mention.wordFrom);
+        assertEquals(wordTo, mention.wordTo);
+    }
+
+    @Test
+    public void shiftsTheTokensSentencesAndMentionsOfEachParagraph() {
+        String text = FIRST + "\n\n" + SECOND;
+        AnnotatedText joined = AnnotatedText.concat(Arrays.asList(first(), second()),
+                new int[]{0, text.indexOf(SECOND)});
+
+        AnnotatedText whole = annotate(text, new String[]{"Obama", "met", "Merkel", ".", "Merkel", "left", "."},
+                new int[]{17, 31});
+        assertArrayEquals(whole.words, joined.words);
+        assertArrayEquals(new String[]{"T0", "T1", "T2", "T3", "T0", "T1", "T2"}, joined.tags);
+        assertArrayEquals(whole.begins, joined.begins);
+        assertArrayEquals(whole.ends, joined.ends);
+        assertArrayEquals(whole.sentenceEnds, joined.sentenceEnds);
+
+        List<AnnotatedText.Mention> mentions = joined.mentions;
+        assertEquals(3, mentions.size());
+        assertMention(text, mentions.get(0), "Obama", 0, 0);
+        assertMention(text, mentions.get(1), "Merkel", 2, 2);
+        // the fifth word of the text
+        assertMention(text, mentions.get(2), "Merkel", 4, 4);
+    }
+
+    @Test
+    public void shiftsAParagraphAfterLeadingWhitespace() {
+        String text = "  " + FIRST + " \n \n\t" + SECOND + "\n";
+        AnnotatedText joined = AnnotatedText.concat(Arrays.asList(first(), second()),
+                new int[]{text.indexOf(FIRST), text.indexOf(SECOND)});
+
+        assertEquals(7, joined.size());
+        for (int i = 0; i < joined.size(); ++i) {
+            assertEquals(joined.words[i], text.substring(joined.begins[i], joined.ends[i]));
+        }
+        assertArrayEquals(new int[]{text.indexOf(FIRST) + FIRST.length(), text.indexOf(SECOND) + SECOND.length()},
+                joined.sentenceEnds);
+        assertMention(text, joined.mentions.get(0), "Obama", 0, 0);
+        assertMention(text, joined.mentions.get(2), "Merkel", 4, 4);
+    }
+
+    @Test
+    public void keepsASingleParagraph() {
+        AnnotatedText joined = AnnotatedText.concat(Arrays.asList(first()), new int[]{0});
+        AnnotatedText part = first();
+        assertArrayEquals(part.words, joined.words);
+        assertArrayEquals(part.begins, joined.begins);
+        assertArrayEquals(part.ends, joined.ends);
+        assertArrayEquals(part.sentenceEnds, joined.sentenceEnds);
+        assertMention(FIRST, joined.mentions.get(1), "Merkel", 2, 2);
+    }
+}
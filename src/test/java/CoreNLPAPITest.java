@@ -0,0 +1,194 @@
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the offset logic of {@link CoreNLPAPI} that doesn't need the CoreNLP models: the split of a text into
+ * paragraphs, and of a tokenized and sentence split document into segments, built here by hand.
+ */
+public class CoreNLPAPITest {
+    /**
+     * @param text the text, whose sentences end with a period, and whose tokens are separated by spaces
+     * @return the text, tokenized and split into sentences
+     */
+    private static Annotation split(String text) {
+        Annotation annotation = new Annotation(text);
+        List<CoreLabel> tokens = new ArrayList<>();
+        List<CoreMap> sentences = new ArrayList<>();
+        int sentenceBegin = -1;
+        int tokenBegin = 0;
+        for (int at = 0; at < text.length(); ) {
+            if (Character.isWhitespace(text.charAt(at))) {
+                ++at;
+                continue;
+            }
+            int end = at;
+            while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+                ++end;
+            }
+            CoreLabel token = new CoreLabel();
+            token.setOriginalText(text.substring(at, end));
+            token.setBeginPosition(at);
+            token.setEndPosition(end);
+            tokens.add(token);
+            if (sentenceBegin < 0) {
+                sentenceBegin = at;
+            }
+            if (text.charAt(end - 1) == '.') {
+                CoreMap sentence = new ArrayCoreMap();
+                sentence.set(CoreAnnotations.CharacterOffsetBeginAnnotation.class, sentenceBegin);
+                sentence.set(CoreAnnotations.CharacterOffsetEndAnnotation.class, end);
+                sentence.set(CoreAnnotations.TokenBeginAnnotation.class, tokenBegin);
+                sentence.set(CoreAnnotations.TokenEndAnnotation.class, tokens.size());
+                sentences.add(sentence);
+                sentenceBegin = -1;
+                tokenBegin = tokens.size();
+            }
+            at = end;
+        }
+        annotation.set(CoreAnnotations.TokensAnnotation.class, tokens);
+        annotation.set(CoreAnnotations.SentencesAnnotation.class, sentences);
+        return annotation;
+    }
+
+    /**
+     * @return the text of each segment, from its first to its last token
+     */
+    private static List<String> segments(String text, int segmentLength) {
+        Annotation annotation = split(text);
+        List<String> segments = new ArrayList<>();
+        for (Annotation segment : CoreNLPAPI.splitIntoSegments(annotation, segmentLength)) {
+            // a view of the text and of the tokens of the document
+            assertTrue(segment.get(CoreAnnotations.TextAnnotation.class) == text);
+            List<CoreLabel> tokens = segment.get(CoreAnnotations.TokensAnnotation.class);
+            List<CoreMap> sentences = segment.get(CoreAnnotations.SentencesAnnotation.class);
+            assertTrue(tokens.get(0) == annotation.get(CoreAnnotations.TokensAnnotation.class)
+                    .get(sentences.get(0).get(CoreAnnotations.TokenBeginAnnotation.class)));
+            segments.add(text.substring(tokens.get(0).beginPosition(), tokens.get(tokens.size() - 1).endPosition()));
+        }
+        return segments;
+    }
+
+    private static CoreMap mention(String text) {
+        CoreMap mention = new ArrayCoreMap();
+        mention.set(CoreAnnotations.TextAnnotation.class, text);
+        return mention;
+    }
+
+    private static List<String> paragraphs(String text) {
+        List<String> paragraphs = new ArrayList<>();
+        for (int[] paragraph : CoreNLPAPI.splitParagraphs(text)) {
+            paragraphs.add(text.substring(paragraph[0], paragraph[1]));
+        }
+        return paragraphs;
+    }
+
+    @Test
+    public void splitsParagraphsWithoutTheirSurroundingWhitespace() {
+        String text = "  First paragraph. \n\n Second one.\n \t\n\nThird.  ";
+        List<int[]> split = CoreNLPAPI.splitParagraphs(text);
+        assertEquals(3, split.size());
+        assertArrayEquals(new int[]{2, 18}, split.get(0));
+        assertArrayEquals(new int[]{text.indexOf("Second"), text.indexOf("one.") + 4}, split.get(1));
+        assertArrayEquals(new int[]{text.indexOf("Third"), text.indexOf("Third") + 6}, split.get(2));
+    }
+
+    @Test
+    public void keepsTheSingleNewlinesInAParagraph() {
+        assertEquals(List.of("First line.\nSecond line."), paragraphs("First line.\nSecond line.\n"));
+    }
+
+    @Test
+    public void hasNoParagraphsInABlankText() {
+        assertTrue(CoreNLPAPI.splitParagraphs("").isEmpty());
+        assertTrue(CoreNLPAPI.splitParagraphs(" \n\n \t\n").isEmpty());
+    }
+
+    @Test
+    public void splitsWindowsNewlinesAtTheSameOffsets() {
+        String text = "\r\nFirst.\r\n\r\nSecond.\r\n";
+        List<int[]> raw = CoreNLPAPI.splitParagraphs(text);
+        assertEquals(List.of("First.", "Second."), paragraphs(text));
+
+        // as split by process, which replaces the \r\n without changing the length of the text
+        String normalized = CoreNLPAPI.normalizeNewlines(text);
+        assertEquals(" \nFirst. \n \nSecond. \n", normalized);
+        List<int[]> split = CoreNLPAPI.splitParagraphs(normalized);
+        assertEquals(raw.size(), split.size());
+        for (int i = 0; i < raw.size(); ++i) {
+            assertArrayEquals(raw.get(i), split.get(i));
+        }
+    }
+
+    @Test
+    public void cutsTheSegmentsAtTheSentenceReachingTheirLength() {
+        // 20 characters a sentence, with a space between them
+        String text = "Aaaa bbbb cccc dddd. Eeee ffff gggg hhhh. Iiii jjjj kkkk llll. Mmmm nnnn oooo pppp.";
+        assertEquals(List.of("Aaaa bbbb cccc dddd. Eeee ffff gggg hhhh.", "Iiii jjjj kkkk llll. Mmmm nnnn oooo pppp."),
+                segments(text, 40));
+        // the last segment holds what's left
+        assertEquals(List.of("Aaaa bbbb cccc dddd. Eeee ffff gggg hhhh. Iiii jjjj kkkk llll.",
+                "Mmmm nnnn oooo pppp."), segments(text, 60));
+        assertEquals(List.of(text), segments(text, 1000));
+    }
+
+    @Test
+    public void cutsTheSegmentsAfterAParagraph() {
+        String text = "Aaaa bbbb cccc dddd eeee.\n\nFfff gggg. Hhhh iiii jjjj kkkk. Llll mmmm nnnn oooo.";
+        // the first paragraph is at least half of the length, its segment ends with it instead of with the third
+        // sentence, which reaches the length
+        assertEquals(List.of("Aaaa bbbb cccc dddd eeee.", "Ffff gggg. Hhhh iiii jjjj kkkk. Llll mmmm nnnn oooo."),
+                segments(text, 40));
+    }
+
+    @Test
+    public void doesNotCutTheSegmentsAfterAShortParagraph() {
+        String text = "Aaaa.\n\nBbbb cccc dddd eeee. Ffff gggg hhhh iiii. Jjjj.";
+        // the first paragraph is less than half of the length
+        assertEquals(List.of("Aaaa.\n\nBbbb cccc dddd eeee. Ffff gggg hhhh iiii.", "Jjjj."), segments(text, 40));
+    }
+
+    @Test
+    public void keepsADocumentWithoutSentencesWhole() {
+        Annotation annotation = new Annotation("no sentences");
+        assertEquals(List.of(annotation), CoreNLPAPI.splitIntoSegments(annotation, 5));
+    }
+
+    @Test
+    public void mergesTheMentionsOfTheSegmentsInOrder() {
+        Annotation annotation = split("Aaaa. Bbbb. Cccc.");
+        Annotation first = new Annotation("");
+        first.set(CoreAnnotations.MentionsAnnotation.class, Arrays.asList(mention("Paris"), mention("Berlin")));
+        // a segment without mentions, as left by an annotator that found none
+        Annotation second = new Annotation("");
+        Annotation third = new Annotation("");
+        third.set(CoreAnnotations.MentionsAnnotation.class, Collections.singletonList(mention("Rome")));
+        CoreNLPAPI.mergeSegments(annotation, Arrays.asList(first, second, third));
+
+        List<String> mentions = new ArrayList<>();
+        for (CoreMap mention : annotation.get(CoreAnnotations.MentionsAnnotation.class)) {
+            mentions.add(mention.get(CoreAnnotations.TextAnnotation.class));
+        }
+        assertEquals(List.of("Paris", "Berlin", "Rome"), mentions);
+    }
+
+    @Test
+    public void mergesNoMentionsWhenNoSegmentHasAny() {
+        Annotation annotation = split("Aaaa. Bbbb.");
+        CoreNLPAPI.mergeSegments(annotation, Arrays.asList(new Annotation(""), new Annotation("")));
+        assertNull(annotation.get(CoreAnnotations.MentionsAnnotation.class));
+    }
+}
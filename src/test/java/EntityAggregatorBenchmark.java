@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Timing harness of {@link EntityAggregator} on entity-dense documents, against the aggregation it replaced
+ * (concatenated "type$$$text" keys in a HashMap, then a sort of the distinct entities).
+ * <p>
+ * The documents are generated from a fixed seed: each has the given number of mentions of a few thousand distinct
+ * entities, with a Zipf-like distribution as in real texts. Both aggregations are run until the JIT settles, then timed,
+ * and their outputs are checked to be the same.
+ * <p>
+ * Run with {@code mvn -q test-compile && java -cp target/test-classes:target/classes EntityAggregatorBenchmark
+ * [mentions] [distinct entities] [iterations]}
+ */
+public class EntityAggregatorBenchmark {
+    private static final String[] TYPES = {"PERSON", "LOCATION", "ORGANIZATION", "MISC", "DATE", "NUMBER"};
+
+    private static class Mention {
+        final String type;
+        final String text;
+
+        Mention(String type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    public static void main(String[] args) {
+        int nMentions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int nEntities = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        List<Mention> mentions = generate(nMentions, nEntities, new Random(42));
+        if (!aggregate(mentions).equals(aggregateWithKeys(mentions))) {
+            throw new IllegalStateException("The aggregations differ");
+        }
+        System.out.println(nMentions + " mentions of " + nEntities + " entities, " + iterations + " iterations");
+        for (int round = 0; round < 2; ++round) {
+            // the first round warms up the JIT, the second one is reported
+            long aggregator = time(mentions, iterations, true);
+            long keys = time(mentions, iterations, false);
+            if (round == 1) {
+                System.out.printf("EntityAggregator:   %8.1f ns/mention%n", aggregator * 1.0 / iterations / nMentions);
+                System.out.printf("concatenated keys:  %8.1f ns/mention%n", keys * 1.0 / iterations / nMentions);
+            }
+        }
+    }
+
+    private static List<Mention> generate(int nMentions, int nEntities, Random random) {
+        String[] texts = new String[nEntities];
+        for (int i = 0; i < nEntities; ++i) {
+            StringBuilder text = new StringBuilder();
+            int words = 1 + random.nextInt(3);
+            for (int w = 0; w < words; ++w) {
+                if (w > 0) {
+                    text.append(' ');
+                }
+                text.append((char) ('A' + random.nextInt(26)));
+                for (int c = 2 + random.nextInt(8); c > 0; --c) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            texts[i] = text.toString();
+        }
+        List<Mention> mentions = new ArrayList<>(nMentions);
+        for (int i = 0; i < nMentions; ++i) {
+            // the i-th entity is mentioned about 1/i times as often as the first one
+            int entity = (int) Math.min(nEntities - 1, Math.floor(Math.pow(nEntities + 1, random.nextDouble())) - 1);
+            mentions.add(new Mention(TYPES[entity % TYPES.length], texts[entity]));
+        }
+        return mentions;
+    }
+
+    private static long time(List<Mention> mentions, int iterations, boolean aggregator) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            checksum += aggregator ? aggregate(mentions).size() : aggregateWithKeys(mentions).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return the entities as "type text frequency", most frequent first
+     */
+    private static List<String> aggregate(List<Mention> mentions) {
+        EntityAggregator<Mention> aggregator = new EntityAggregator<>();
+        for (Mention mention : mentions) {
+            aggregator.add(mention.type, mention.text, mention);
+        }
+        List<String> result = new ArrayList<>();
+        for (EntityAggregator.Entity<Mention> entity : aggregator.getEntities(0)) {
+            result.add(entity.getType() + " " + entity.getText() + " " + entity.getFrequency());
+        }
+        return result;
+    }
+
+    /**
+     * The aggregation replaced by {@link EntityAggregator}
+     */
+    private static List<String> aggregateWithKeys(List<Mention> mentions) {
+        class FreqType implements Comparable<FreqType> {
+            final int freq;
+            final int idx;
+
+            FreqType(int freq, int idx) {
+                this.freq = freq;
+                this.idx = idx;
+            }
+
+            @Override
+            public int compareTo(FreqType freqType) {
+                return freqType.freq - freq;
+            }
+        }
+        HashMap<String, Integer> frequency = new HashMap<>();
+        List<Boolean> repeated = new ArrayList<>();
+        List<FreqType> freqToIdx = new ArrayList<>();
+        for (Mention mention : mentions) {
+            String annotType = mention.type + "$$$" + mention.text;
+            if (!frequency.containsKey(annotType)) {
+                frequency.put(annotType, 1);
+                repeated.add(false);
+            } else {
+                frequency.put(annotType, frequency.get(annotType) + 1);
+                repeated.add(true);
+            }
+        }
+        for (int i = 0; i < mentions.size(); ++i) {
+            if (!repeated.get(i)) {
+                Mention mention = mentions.get(i);
+                freqToIdx.add(new FreqType(frequency.get(mention.type + "$$$" + mention.text), i));
+            }
+        }
+        Collections.sort(freqToIdx);
+        List<String> result = new ArrayList<>();
+        for (FreqType type : freqToIdx) {
+            Mention mention = mentions.get(type.idx);
+            result.add(mention.type + " " + mention.text + " " + type.freq);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Timing harness of {@link LanguageIdentifier} on documents of the supported latin languages, and of a few unsupported
+ * ones, which must be left unknown.
+ * <p>
+ * The documents are generated from a fixed seed, each made of sentences of its language drawn at random until it
+ * reaches the given size. Their languages are checked, then the identification is run until the JIT settles, and
+ * timed. The time is reported per document and per KB of text read, the identifier reading at most the first 4 KB.
+ * <p>
+ * Run with {@code mvn -q test-compile && java -cp target/test-classes:target/classes LanguageIdentifierBenchmark
+ * [document size in characters] [documents per language] [iterations]}
+ */
+public class LanguageIdentifierBenchmark {
+    // the sentences of each language, the languages the identifier doesn't support are expected to be unknown
+    private static final String[][] SENTENCES = {
+            {"en", "The president of the country said that the government would work with the people.",
+                    "Prices rose again last month, after a year of slow growth in most of the region.",
+                    "The new bridge over the river will be open to traffic by the end of the summer.",
+                    "Researchers found that the treatment worked better when it was given early."},
+            {"de", "Der Pr\u00e4sident sagte, dass die Regierung mit den Menschen arbeiten werde.",
+                    "Die Preise sind im letzten Monat wieder gestiegen, nach einem Jahr mit wenig Wachstum.",
+                    "Die neue Br\u00fccke \u00fcber den Fluss soll bis zum Ende des Sommers ge\u00f6ffnet werden.",
+                    "Forscher haben gezeigt, dass die Behandlung fr\u00fcher besser wirkt."},
+            {"fr", "Le pr\u00e9sident a dit que le gouvernement travaillerait avec les gens.",
+                    "Les prix ont encore augment\u00e9 le mois dernier, apr\u00e8s une ann\u00e9e de croissance lente.",
+                    "Le nouveau pont sur la rivi\u00e8re sera ouvert \u00e0 la circulation avant la fin de l'\u00e9t\u00e9.",
+                    "Les chercheurs ont montr\u00e9 que le traitement est plus efficace quand il est donn\u00e9 t\u00f4t."},
+            {"es", "El presidente dijo que el gobierno trabajar\u00eda con la gente.",
+                    "Los precios volvieron a subir el mes pasado, despu\u00e9s de un a\u00f1o de crecimiento lento.",
+                    "El nuevo puente sobre el r\u00edo estar\u00e1 abierto al tr\u00e1fico antes del final del verano.",
+                    "Los investigadores encontraron que el tratamiento funciona mejor cuando se da pronto."},
+            {"it", "Il presidente ha detto che il governo lavorer\u00e0 con le persone.",
+                    "I prezzi sono saliti ancora il mese scorso, dopo un anno di crescita lenta.",
+                    "Il nuovo ponte sul fiume sar\u00e0 aperto al traffico entro la fine dell'estate.",
+                    "I ricercatori hanno scoperto che la cura funziona meglio quando \u00e8 data presto."},
+            {"pt", "O presidente disse que o governo trabalhar\u00e1 com as pessoas.",
+                    "Os pre\u00e7os voltaram a subir no m\u00eas passado, depois de um ano de crescimento lento.",
+                    "A nova ponte sobre o rio estar\u00e1 aberta ao tr\u00e2nsito at\u00e9 ao fim do ver\u00e3o.",
+                    "Os investigadores descobriram que o tratamento funciona melhor quando \u00e9 dado cedo."},
+            {"nl", "De president zei dat de regering met de mensen zou werken.",
+                    "De prijzen zijn vorige maand weer gestegen, na een jaar van trage groei.",
+                    "De nieuwe brug over de rivier wordt voor het einde van de zomer geopend.",
+                    "Onderzoekers vonden dat de behandeling beter werkt als ze vroeg wordt gegeven."},
+            {"sl", "Predsednik je dejal, da bo vlada delala z ljudmi.",
+                    "Cene so se prej\u0161nji mesec spet zvi\u0161ale, po letu po\u010dasne rasti.",
+                    "Novi most \u010dez reko bo odprt za promet do konca poletja.",
+                    "Raziskovalci so ugotovili, da zdravljenje bolje deluje, \u010de se za\u010dne zgodaj."},
+            {LanguageIdentifier.UNKNOWN, "Suomi on tasavalta Pohjois-Euroopassa, It\u00e4meren rannalla.",
+                    "Polska jest pa\u0144stwem w Europie \u015arodkowej, po\u0142o\u017conym mi\u0119dzy morzem a g\u00f3rami.",
+                    "Svenska \u00e4r ett \u00f6stnordiskt spr\u00e5k som talas av ungef\u00e4r tio miljoner personer.",
+                    "Paris Berlin London Madrid Roma Amsterdam Ljubljana Wien Praha Budapest"},
+    };
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int perLanguage = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Random random = new Random(42);
+        List<String> documents = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (String[] language : SENTENCES) {
+            for (int d = 0; d < perLanguage; ++d) {
+                StringBuilder document = new StringBuilder();
+                while (document.length() < size) {
+                    document.append(language[1 + random.nextInt(language.length - 1)]).append(' ');
+                }
+                documents.add(document.substring(0, size));
+                expected.add(language[0]);
+            }
+        }
+        LanguageIdentifier identifier = LanguageIdentifier.getInstance();
+        int wrong = 0;
+        for (int i = 0; i < documents.size(); ++i) {
+            if (!identifier.identify(documents.get(i)).equals(expected.get(i))) {
+                ++wrong;
+            }
+        }
+        System.out.println(documents.size() + " documents of " + size + " characters, " + iterations
+                + " iterations, " + wrong + " misidentified");
+        long read = 0;
+        for (String document : documents) {
+            read += Math.min(document.length(), 4096);
+        }
+        for (int round = 0; round < 2; ++round) {
+            // the first round warms up the JIT, the second one is reported
+            long checksum = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                for (String document : documents) {
+                    checksum += identifier.identify(document).length();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                double perDocument = elapsed / 1000.0 / iterations / documents.size();
+                System.out.printf("identify: %8.2f us/document %8.2f us/KB (checksum %d)%n", perDocument,
+                        elapsed / 1000.0 / iterations / (read / 1024.0), checksum);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the client against a stub wikifier injecting faults: each call takes the next fault of the queue, and answers
+ * normally once the queue is empty.
+ */
+public class WikifierClientTest {
+    private static final String OK = "{\"annotations\": []}";
+
+    private static class Fault {
+        final int status;
+        final String body;
+        final long delayMillis;
+        final String contentType;
+
+        Fault(int status, String body, long delayMillis) {
+            this(status, body, delayMillis, "application/json; charset=UTF-8");
+        }
+
+        Fault(int status, String body, long delayMillis, String contentType) {
+            this.status = status;
+            this.body = body;
+            this.delayMillis = delayMillis;
+            this.contentType = contentType;
+        }
+    }
+
+    private HttpServer server;
+    private final ConcurrentLinkedQueue<Fault> faults = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile Fault always;
+    private WikifierClient client;
+
+    @Before
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.createContext("/annotate-article", exchange -> {
+            calls.incrementAndGet();
+            Fault fault = always != null ? always : faults.poll();
+            if (fault == null) {
+                fault = new Fault(200, OK, 0);
+            }
+            try {
+                Thread.sleep(fault.delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = fault.body.getBytes(StandardCharsets.UTF_8);
+            try {
+                exchange.getResponseHeaders().set("Content-Type", fault.contentType);
+                exchange.sendResponseHeaders(fault.status, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } catch (IOException e) {
+                // the client aborted the call
+            }
+        });
+        server.start();
+        client = new WikifierClient("key", "http://localhost:" + server.getAddress().getPort() + "/", 8, 5000);
+        client.setRetries(2, 10);
+        client.setCircuitBreaker(0, 0);
+    }
+
+    @After
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    @Test
+    public void retriesServerErrorsAndUnparseableResponses() {
+        long retried = Metrics.getInstance().getCount("wikifier_calls_retried");
+        faults.add(new Fault(503, "busy", 0));
+        faults.add(new Fault(200, "<html>not json</html>", 0));
+        assertNotNull(client.annotate("text", "en"));
+        assertEquals(3, calls.get());
+        assertEquals(retried + 2, Metrics.getInstance().getCount("wikifier_calls_retried"));
+    }
+
+    @Test
+    public void givesUpAfterTheRetries() {
+        always = new Fault(500, "down", 0);
+        assertNull(client.annotate("text", "en"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void doesNotRetryRequestErrors() {
+        faults.add(new Fault(400, "bad request", 0));
+        assertNull(client.annotate("text", "en"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void opensTheCircuitAndClosesItAfterATrialCall() throws InterruptedException {
+        client.setRetries(0, 0);
+        client.setCircuitBreaker(2, 300);
+        always = new Fault(500, "down", 0);
+        assertNull(client.annotate("text", "en"));
+        assertNull(client.annotate("text", "en"));
+        // open, the call fails without reaching the wikifier
+        assertNull(client.annotate("text", "en"));
+        assertEquals(2, calls.get());
+
+        always = null;
+        Thread.sleep(400);
+        assertNotNull(client.annotate("text", "en"));
+        assertNotNull(client.annotate("text", "en"));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void closesTheCircuitAfterATrialCallThatThrew() throws InterruptedException {
+        client.setRetries(0, 0);
+        client.setCircuitBreaker(1, 300);
+        always = new Fault(500, "down", 0);
+        assertNull(client.annotate("text", "en"));
+
+        // a response in an invalid charset fails the trial call with an unchecked exception
+        Thread.sleep(400);
+        always = new Fault(200, OK, 0, "application/json; charset=@@@");
+        try {
+            assertNull(client.annotate("text", "en"));
+        } catch (RuntimeException e) {
+            // thrown by the call
+        }
+        assertEquals(2, calls.get());
+
+        always = null;
+        Thread.sleep(400);
+        assertNotNull(client.annotate("text", "en"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void abortsTheCallOfAnInterruptedThread() throws InterruptedException {
+        faults.add(new Fault(200, OK, 3000));
+        long interrupted = Metrics.getInstance().getCount("wikifier_calls_interrupted");
+        CompletableFuture<JSONObject> response = new CompletableFuture<>();
+        Thread caller = new Thread(() -> response.complete(client.annotate("text", "en")));
+        long start = System.currentTimeMillis();
+        caller.start();
+        Thread.sleep(200);
+        caller.interrupt();
+        caller.join(2000);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNull(response.getNow(new JSONObject()));
+        assertEquals(1, calls.get());
+        assertEquals(interrupted + 1, Metrics.getInstance().getCount("wikifier_calls_interrupted"));
+    }
+
+    @Test
+    public void hedgesASlowCall() throws InterruptedException {
+        long won = Metrics.getInstance().getCount("wikifier_hedges_won");
+        client.setHedgeAfterMillis(100);
+        faults.add(new Fault(200, OK, 3000));
+        long start = System.currentTimeMillis();
+        assertNotNull(client.annotate("text", "en"));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(2, calls.get());
+        // counted by the hedged call once it completed the answer
+        for (int wait = 0; wait < 100 && Metrics.getInstance().getCount("wikifier_hedges_won") == won; ++wait) {
+            Thread.sleep(10);
+        }
+        assertEquals(won + 1, Metrics.getInstance().getCount("wikifier_hedges_won"));
+    }
+
+    @Test
+    public void failsEveryChunkOfAFailedCoalescedCall() {
+        client.setRetries(0, 0);
+        always = new Fault(500, "down", 0);
+        WikifierCoalescer coalescer = new WikifierCoalescer(client::annotate, 1000, 300, 10000);
+        long start = System.currentTimeMillis();
+        CompletableFuture<JSONObject> first = CompletableFuture.supplyAsync(() -> coalescer.wikify("Paris", "en"));
+        CompletableFuture<JSONObject> second = CompletableFuture.supplyAsync(() -> coalescer.wikify("Berlin", "en"));
+        assertNull(first.join());
+        assertNull(second.join());
+        // without waiting for the timeout of the batch
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void coalescedChunksGetTheirOwnResponse() {
+        always = new Fault(200, new JSONObject().put("annotations", new JSONArray()).toString(), 0);
+        WikifierCoalescer coalescer = new WikifierCoalescer(client::annotate, 1000, 300, 10000);
+        CompletableFuture<JSONObject> first = CompletableFuture.supplyAsync(() -> coalescer.wikify("Paris", "en"));
+        CompletableFuture<JSONObject> second = CompletableFuture.supplyAsync(() -> coalescer.wikify("Berlin", "en"));
+        assertEquals(0, first.join().getJSONArray("annotations").length());
+        assertEquals(0, second.join().getJSONArray("annotations").length());
+        assertEquals(1, calls.get());
+    }
+}
@@ -0,0 +1,142 @@
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the coalescer against a stub wikifier, which annotates the names of a few cities with fixed pageRanks and
+ * answers after a configurable delay.
+ */
+public class WikifierCoalescerTest {
+    private static final Map<String, Double> PAGE_RANKS = new HashMap<>();
+
+    static {
+        PAGE_RANKS.put("Paris", 0.6);
+        PAGE_RANKS.put("Berlin", 0.4);
+    }
+
+    private HttpServer server;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile long delayMillis;
+    private WikifierClient client;
+
+    @Before
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/annotate-article", exchange -> {
+            calls.incrementAndGet();
+            String text = null;
+            String body = new Scanner(exchange.getRequestBody(), "UTF-8").useDelimiter("\\A").next();
+            for (String field : body.split("&")) {
+                if (field.startsWith("text=")) {
+                    text = URLDecoder.decode(field.substring(5), "UTF-8");
+                }
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = annotate(text).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        client = new WikifierClient("key", "http://localhost:" + server.getAddress().getPort() + "/", 4, 2000);
+        client.setRetries(0, 0);
+    }
+
+    @After
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    /**
+     * @return an annotation for each city mentioned in the text, supported by all its mentions
+     */
+    private static JSONObject annotate(String text) {
+        JSONArray annotations = new JSONArray();
+        for (Map.Entry<String, Double> city : PAGE_RANKS.entrySet()) {
+            JSONArray support = new JSONArray();
+            for (int at = text.indexOf(city.getKey()); at >= 0; at = text.indexOf(city.getKey(), at + 1)) {
+                support.put(new JSONObject().put("chFrom", at).put("chTo", at + city.getKey().length() - 1)
+                        .put("wFrom", 0).put("wTo", 0));
+            }
+            if (support.length() > 0) {
+                annotations.put(new JSONObject().put("title", city.getKey()).put("pageRank", city.getValue())
+                        .put("cosine", 0.1).put("support", support).put("supportLen", support.length()));
+            }
+        }
+        return new JSONObject().put("annotations", annotations);
+    }
+
+    private static Map<String, JSONObject> byTitle(JSONObject response) {
+        Map<String, JSONObject> annotations = new HashMap<>();
+        JSONArray array = response.getJSONArray("annotations");
+        for (int i = 0; i < array.length(); ++i) {
+            annotations.put(array.getJSONObject(i).getString("title"), array.getJSONObject(i));
+        }
+        return annotations;
+    }
+
+    @Test
+    public void splitsTheBatchAndRecomputesThePageRanksOfEachChunk() {
+        WikifierCoalescer coalescer = new WikifierCoalescer(client::annotate, 1000, 500, 10000);
+        String first = "From Paris to Berlin.";
+        String second = "Back in Paris.";
+        CompletableFuture<JSONObject> firstResult = CompletableFuture.supplyAsync(() -> coalescer.wikify(first, "en"));
+        CompletableFuture<JSONObject> secondResult = CompletableFuture.supplyAsync(() -> coalescer.wikify(second, "en"));
+
+        Map<String, JSONObject> firstAnnotations = byTitle(firstResult.join());
+        Map<String, JSONObject> secondAnnotations = byTitle(secondResult.join());
+        assertEquals(1, calls.get());
+        assertEquals(2, firstAnnotations.size());
+        assertEquals(1, secondAnnotations.size());
+
+        // the mentions refer to the chunk
+        JSONObject paris = secondAnnotations.get("Paris");
+        assertEquals(second.indexOf("Paris"), paris.getJSONArray("support").getJSONObject(0).getInt("chFrom"));
+        assertEquals(1, paris.getInt("supportLen"));
+
+        // Paris is mentioned twice in the batch, once in each chunk, Berlin once, in the first chunk
+        assertEquals(0.3 / 0.7, firstAnnotations.get("Paris").getDouble("pageRank"), 1e-9);
+        assertEquals(0.4 / 0.7, firstAnnotations.get("Berlin").getDouble("pageRank"), 1e-9);
+        assertEquals(1.0, paris.getDouble("pageRank"), 1e-9);
+    }
+
+    @Test
+    public void aChunkAloneKeepsTheResponse() {
+        WikifierCoalescer coalescer = new WikifierCoalescer(client::annotate, 1000, 50, 10000);
+        Map<String, JSONObject> annotations = byTitle(coalescer.wikify("From Paris to Berlin.", "en"));
+        assertEquals(0.6, annotations.get("Paris").getDouble("pageRank"), 1e-9);
+        assertEquals(0.4, annotations.get("Berlin").getDouble("pageRank"), 1e-9);
+    }
+
+    @Test
+    public void stopsWaitingForASlowBatch() {
+        delayMillis = 3000;
+        WikifierCoalescer coalescer = new WikifierCoalescer(client::annotate, 1000, 50, 300);
+        long start = System.currentTimeMillis();
+        assertNull(coalescer.wikify("From Paris to Berlin.", "en"));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+}